@@ -0,0 +1,56 @@
+package org.jcoro;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Loads classes of benchmark fixture instrumented by program (generated frame classes too),
+ * other classes are loaded by parent.
+ *
+ * @author elwood
+ */
+class FixtureClassLoader extends ClassLoader {
+    private final String fixtureClassName;
+    private final Program program;
+    private final Map<String, byte[]> generatedClasses = new HashMap<>();
+
+    FixtureClassLoader(ClassLoader parent, Class<?> fixtureClass, Program program) {
+        super(parent);
+        this.fixtureClassName = fixtureClass.getName();
+        this.program = program;
+    }
+
+    @Override
+    protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (!name.startsWith(fixtureClassName)) return super.loadClass(name, resolve);
+        Class<?> loaded = findLoadedClass(name);
+        if (loaded == null) {
+            final String internalName = name.replace('.', '/');
+            byte[] bytes = generatedClasses.remove(internalName);
+            if (bytes == null) {
+                final TransformResult result = program.transform(readClass(internalName));
+                generatedClasses.putAll(result.getGeneratedClasses());
+                bytes = result.getData();
+            }
+            loaded = defineClass(name, bytes, 0, bytes.length);
+        }
+        if (resolve) resolveClass(loaded);
+        return loaded;
+    }
+
+    private byte[] readClass(String internalName) throws ClassNotFoundException {
+        try (InputStream in = getParent().getResourceAsStream(internalName + ".class")) {
+            if (in == null) throw new ClassNotFoundException(internalName);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new ClassNotFoundException(internalName, e);
+        }
+    }
+}
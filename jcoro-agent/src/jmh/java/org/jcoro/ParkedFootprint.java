@@ -0,0 +1,73 @@
+package org.jcoro;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.Constructor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Measures heap footprint of suspended coroutines (ParkedFootprintFixture suspended at `depth` frames)
+ * kept on heap and deep parked by DeepParker. Heap usage is measured after full GC, so it includes
+ * only reachable objects. JMH doesn't measure footprint, so this is a plain program.
+ *
+ * Run: gradlew :jcoro-agent:parkedFootprint -PfootprintArgs="<count> <depth> <classic|frameClasses|continuations>"
+ * (default: 1000000 coroutines at depth 5 in classic mode).
+ *
+ * @author elwood
+ */
+public class ParkedFootprint {
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        final int depth = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final String mode = args.length > 2 ? args[2] : "classic";
+
+        final ClassLoader parent = ParkedFootprint.class.getClassLoader();
+        final Program program = new Program(new ClassHierarchyIndex(parent), !"classic".equals(mode),
+                "continuations".equals(mode), 0);
+        final Class<?> fixtureClass = new FixtureClassLoader(parent, ParkedFootprintFixture.class, program)
+                .loadClass(ParkedFootprintFixture.class.getName());
+        final Constructor<?> constructor = fixtureClass.getConstructor(int.class, long.class);
+
+        System.out.println(String.format("%d coroutines suspended at depth %d, %s mode", count, depth, mode));
+        for (boolean deepPark : new boolean[]{false, true}) {
+            final long heapBefore = usedHeap();
+            final Coro[] coros = new Coro[count];
+            final LongSupplier[] fixtures = new LongSupplier[count];
+            final DeepParker parker = new DeepParker(0, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < count; i++) {
+                final Object fixture = constructor.newInstance(depth, i);
+                fixtures[i] = (LongSupplier) fixture;
+                coros[i] = Coro.initSuspended((ICoroRunnable) fixture);
+                if (deepPark) parker.track(coros[i]);
+                coros[i].start();
+            }
+            final long parkStart = System.nanoTime();
+            final int parked = parker.sweep();
+            final long parkNanos = System.nanoTime() - parkStart;
+            final long heap = usedHeap() - heapBefore;
+            final long parkedBytes = parker.getParkedBytes();
+
+            // Resume all coroutines (parked states are moved back to heap) and check their results
+            final long resumeStart = System.nanoTime();
+            for (Coro coro : coros) coro.resume();
+            final long resumeNanos = System.nanoTime() - resumeStart;
+            for (int i = 0; i < count; i++) {
+                if (fixtures[i].getAsLong() != ParkedFootprintFixture.expected(depth, i))
+                    throw new IllegalStateException("Wrong result of coroutine " + i);
+            }
+
+            System.out.println(String.format("%s: heap %d bytes per coroutine, off-heap %d bytes per coroutine " +
+                            "(%d MB reserved), parked %d in %d ms, resumed in %d ms",
+                    deepPark ? "deep parked" : "on heap", heap / count,
+                    parkedBytes / count, parker.getReservedBytes() >> 20,
+                    parked, TimeUnit.NANOSECONDS.toMillis(parkNanos), TimeUnit.NANOSECONDS.toMillis(resumeNanos)));
+        }
+    }
+
+    private static long usedHeap() {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,56 @@
+package org.jcoro;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Coroutine for ParkedFootprint (idle long-poll connection): goes down through `depth` instrumented frames,
+ * each of them keeps primitive locals, and waits at the bottom. Compiled as usual and instrumented
+ * by ParkedFootprint when loaded.
+ *
+ * @author elwood
+ */
+public class ParkedFootprintFixture implements ICoroRunnable, LongSupplier {
+    private final int depth;
+    private final long seed;
+    private long result;
+
+    public ParkedFootprintFixture(int depth, long seed) {
+        this.depth = depth;
+        this.seed = seed;
+    }
+
+    @Override
+    @Async(@Await("descend"))
+    public void run() {
+        result = descend(depth, seed);
+    }
+
+    @Async({@Await("descend"), @Await("yield")})
+    private long descend(int level, long value) {
+        final long next = value * 31 + level;
+        final double ratio = value / 3.0;
+        final int bytesRead = level * 7;
+        if (level > 1) {
+            return descend(level - 1, next) + (long) ratio + bytesRead;
+        }
+        Coro.get().yield();
+        return next + (long) ratio + bytesRead;
+    }
+
+    /**
+     * Returns result of coroutine (0 if it's not finished).
+     */
+    @Override
+    public long getAsLong() {
+        return result;
+    }
+
+    /**
+     * Computes result of coroutine without suspending.
+     */
+    public static long expected(int level, long value) {
+        final long next = value * 31 + level;
+        final long rest = (long) (value / 3.0) + level * 7;
+        return level > 1 ? expected(level - 1, next) + rest : next + rest;
+    }
+}
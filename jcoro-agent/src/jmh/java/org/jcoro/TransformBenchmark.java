@@ -0,0 +1,89 @@
+package org.jcoro;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Measures time of Program.transform() on a corpus of compiled classes (by default - classes of jcoro-app,
+ * main and test ones: they contain both instrumented and not instrumented classes).
+ * Corpus is set by system property "jcoro.benchmark.classes" - list of class directories separated
+ * by path separator.
+ *
+ * Run: gradlew :jcoro-agent:jmh
+ *
+ * @author elwood
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TransformBenchmark {
+    private List<byte[]> corpus;
+    private Program program;
+
+    @Setup
+    public void setup() throws IOException {
+        final String classesProperty = System.getProperty("jcoro.benchmark.classes");
+        if (classesProperty == null) throw new IllegalStateException("jcoro.benchmark.classes is not set");
+        final List<File> directories = new ArrayList<>();
+        for (String path : classesProperty.split(File.pathSeparator)) {
+            directories.add(new File(path));
+        }
+
+        corpus = new ArrayList<>();
+        for (File directory : directories) {
+            try (Stream<Path> files = Files.walk(directory.toPath())) {
+                for (Path path : files.filter(p -> p.toString().endsWith(".class")).sorted().collect(toList())) {
+                    corpus.add(Files.readAllBytes(path));
+                }
+            }
+        }
+        if (corpus.isEmpty()) throw new IllegalStateException("No classes found in " + classesProperty);
+
+        final URL[] urls = directories.stream().map(directory -> {
+            try {
+                return directory.toURI().toURL();
+            } catch (MalformedURLException e) {
+                throw new RuntimeException(e);
+            }
+        }).toArray(URL[]::new);
+        final ClassHierarchyIndex hierarchyIndex = new ClassHierarchyIndex(new URLClassLoader(urls));
+        directories.forEach(hierarchyIndex::addDirectory);
+        program = new Program(hierarchyIndex, false);
+    }
+
+    /**
+     * Transforms all classes of corpus (one by one, in one thread).
+     */
+    @Benchmark
+    public void transformCorpus(Blackhole blackhole) {
+        for (byte[] bytes : corpus) {
+            blackhole.consume(program.transform(bytes));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.jcoro;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Measures cost of one resume() + yield() cycle of coroutine, suspended at depth 1, 10 and 100 frames,
+ * instrumented in classic mode (all frames are restored by calling methods again) and in continuations mode
+ * (only the innermost frame is continued). Fixture (YieldResumeFixture) is instrumented by Program when loaded.
+ *
+ * Run: gradlew :jcoro-agent:jmh -PjmhArgs="YieldResumeBenchmark"
+ *
+ * @author elwood
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 10, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class YieldResumeBenchmark {
+    @Param({"1", "10", "100"})
+    public int depth;
+
+    @Param({"classic", "continuations"})
+    public String mode;
+
+    private LongSupplier fixture;
+    private Coro coro;
+    private long resumes;
+
+    @Setup(Level.Trial)
+    public void setup() throws ReflectiveOperationException {
+        final ClassLoader parent = YieldResumeBenchmark.class.getClassLoader();
+        final Program program = new Program(new ClassHierarchyIndex(parent), false,
+                "continuations".equals(mode), 0);
+        final Class<?> fixtureClass = new FixtureClassLoader(parent, YieldResumeFixture.class, program)
+                .loadClass(YieldResumeFixture.class.getName());
+        final Object instance = fixtureClass.getConstructor(int.class).newInstance(depth);
+        fixture = (LongSupplier) instance;
+        coro = Coro.initSuspended((ICoroRunnable) instance);
+        coro.start();
+        resumes = 0;
+    }
+
+    /**
+     * Resumes coro, which continues and yields again at the same depth.
+     */
+    @Benchmark
+    public void resumeAndYield() {
+        coro.resume();
+        resumes++;
+    }
+
+    @TearDown(Level.Trial)
+    public void checkYields() {
+        // Fixture yields once when started and once per resume
+        if (fixture.getAsLong() != resumes + 1)
+            throw new IllegalStateException("Expected " + (resumes + 1) + " yields, but was " + fixture.getAsLong());
+    }
+}
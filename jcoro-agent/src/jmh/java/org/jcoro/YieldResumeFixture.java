@@ -0,0 +1,45 @@
+package org.jcoro;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Coroutine for YieldResumeBenchmark: goes down through `depth` instrumented frames and yields in the loop.
+ * Compiled as usual and instrumented by YieldResumeBenchmark when loaded.
+ *
+ * @author elwood
+ */
+public class YieldResumeFixture implements ICoroRunnable, LongSupplier {
+    private final int depth;
+    private long yields;
+
+    public YieldResumeFixture(int depth) {
+        this.depth = depth;
+    }
+
+    @Override
+    @Async(@Await("descend"))
+    public void run() {
+        descend(depth);
+    }
+
+    @Async({@Await("descend"), @Await("yield")})
+    private void descend(int level) {
+        if (level > 1) {
+            descend(level - 1);
+            return;
+        }
+        final Coro coro = Coro.get();
+        while (true) {
+            yields++;
+            coro.yield();
+        }
+    }
+
+    /**
+     * Returns count of yields done.
+     */
+    @Override
+    public long getAsLong() {
+        return yields;
+    }
+}
@@ -0,0 +1,145 @@
+package org.jcoro;
+
+import org.objectweb.asm.ClassReader;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load-time instrumentation agent. Instruments classes when they are loaded, so offline
+ * instrumentation (Program) is not needed.
+ *
+ * Usage: java -javaagent:jcoro-agent.jar=com.example,org.example.other ...
+ * Agent argument is a comma-separated list of package prefixes, only classes from these packages are
+ * instrumented (all classes except JDK and jcoro ones if argument is empty).
+ * ASM and jcoro-api should be in the classpath. Frame classes mode (see Program) is not supported by agent.
+ *
+ * If system property "jcoro.agent.verbose" is set to true, agent prints count of instrumented classes
+ * and total time spent for instrumentation when JVM exits.
+ * System property "jcoro.agent.splitMethodsLimit" enables splitting of methods, which are larger than
+ * specified count of bytes after instrumenting (see MethodSplitter).
+ *
+ * @author elwood
+ */
+public class Agent {
+    public static void premain(String agentArgs, Instrumentation inst) {
+        final Transformer transformer = new Transformer(parsePackages(agentArgs),
+                Integer.getInteger("jcoro.agent.splitMethodsLimit", 0));
+        inst.addTransformer(transformer);
+        if (Boolean.getBoolean("jcoro.agent.verbose")) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(String.format(
+                    "jcoro agent: %d classes instrumented, %d classes checked, %d ms spent",
+                    transformer.instrumentedClasses.get(), transformer.checkedClasses.get(),
+                    transformer.transformNanos.get() / 1000000))));
+        }
+    }
+
+    private static List<String> parsePackages(String agentArgs) {
+        List<String> packages = new ArrayList<>();
+        if (agentArgs == null) return packages;
+        for (String packageName : agentArgs.split(",")) {
+            packageName = packageName.trim();
+            if (packageName.isEmpty()) continue;
+            // Internal names are used by transformer
+            String prefix = packageName.replace('.', '/');
+            if (!prefix.endsWith("/")) prefix += "/";
+            packages.add(prefix);
+        }
+        return packages;
+    }
+
+    static class Transformer implements ClassFileTransformer {
+        private final List<String> packages;
+        private final int splitMethodsLimit;
+
+        final AtomicInteger checkedClasses = new AtomicInteger();
+        final AtomicInteger instrumentedClasses = new AtomicInteger();
+        final AtomicLong transformNanos = new AtomicLong();
+
+        // Index doesn't keep class loader reachable, so entry is removed when class loader is collected
+        private final Map<ClassLoader, ClassHierarchyIndex> hierarchyIndexes = new WeakHashMap<>();
+
+        Transformer(List<String> packages, int splitMethodsLimit) {
+            this.packages = packages;
+            this.splitMethodsLimit = splitMethodsLimit;
+        }
+
+        @Override
+        public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                                ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+            // Bootstrap classes and redefinitions are not instrumented
+            if (loader == null || className == null || classBeingRedefined != null) return null;
+            if (!isIncluded(className) || isAgentClass(protectionDomain)) return null;
+            // Classes of versions newer than ASM supports can't be read
+            if (!ClassHierarchyIndex.isSupportedVersion(classfileBuffer)) return null;
+            // Fast check by constant pool: class without @Async annotations has nothing to instrument
+            final ClassReader reader = new ClassReader(classfileBuffer);
+            if (!Program.refersToAsync(reader)) return null;
+
+            final long start = System.nanoTime();
+            try {
+                checkedClasses.incrementAndGet();
+                final TransformResult result = new Program(getHierarchyIndex(loader), false, splitMethodsLimit)
+                        .transform(reader);
+                if (!result.wasModified()) return null;
+                instrumentedClasses.incrementAndGet();
+                if (splitMethodsLimit > 0) {
+                    for (MethodReport report : result.getMethodReports()) {
+                        if (!report.isHuge(splitMethodsLimit)) continue;
+                        System.err.println(String.format("jcoro agent: warning: %s is %d bytes after splitting, "
+                                        + "it is over split limit (%d bytes)",
+                                report, report.instrumentedSize, splitMethodsLimit));
+                    }
+                }
+                return result.getData();
+            } catch (Throwable e) {
+                // Exceptions thrown from transformer are ignored by JVM, so report it here
+                System.err.println("jcoro agent: cannot instrument class " + className);
+                e.printStackTrace();
+                return null;
+            } finally {
+                transformNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Returns hierarchy index of class loader: classes read from class loader are cached while it is alive.
+         */
+        private ClassHierarchyIndex getHierarchyIndex(ClassLoader loader) {
+            synchronized (hierarchyIndexes) {
+                return hierarchyIndexes.computeIfAbsent(loader, ClassHierarchyIndex::new);
+            }
+        }
+
+        private boolean isIncluded(String className) {
+            if (className.startsWith("java/") || className.startsWith("javax/")
+                    || className.startsWith("sun/") || className.startsWith("com/sun/")
+                    || className.startsWith("jdk/")
+                    || className.startsWith("org/objectweb/asm/")) return false;
+            if (packages.isEmpty()) return true;
+            for (String prefix : packages) {
+                if (className.startsWith(prefix)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if class is loaded from the same location as agent (agent shouldn't instrument itself).
+     */
+    private static boolean isAgentClass(ProtectionDomain protectionDomain) {
+        if (protectionDomain == null || protectionDomain.getCodeSource() == null) return false;
+        final CodeSource agentCodeSource = Agent.class.getProtectionDomain().getCodeSource();
+        return agentCodeSource != null
+                && Objects.equals(agentCodeSource.getLocation(), protectionDomain.getCodeSource().getLocation());
+    }
+}
@@ -0,0 +1,76 @@
+package org.jcoro;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Class hierarchy used while instrumenting one class: super classes and interface flags are taken
+ * from shared ClassHierarchyIndex (without loading classes). Loading of classes while instrumenting
+ * is not safe for agent: classes loaded from transformer are not transformed by JVM, and class being
+ * transformed can't be loaded at all. Not thread-safe, each instrumented class has its own hierarchy.
+ *
+ * @author elwood
+ */
+public class ClassHierarchy {
+    public static class ClassInfo {
+        public final String superName; // null for java/lang/Object
+        public final boolean isInterface;
+
+        public ClassInfo(String superName, boolean isInterface) {
+            this.superName = superName;
+            this.isInterface = isInterface;
+        }
+    }
+
+    private final ClassHierarchyIndex index;
+    private final Map<String, ClassInfo> classes = new HashMap<>();
+    private final Set<String> readClasses = new TreeSet<>();
+
+    public ClassHierarchy(ClassHierarchyIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Registers class which can't be taken from index (class being instrumented now, for example).
+     */
+    public void put(String className, ClassInfo classInfo) {
+        classes.put(className, classInfo);
+    }
+
+    public ClassInfo get(String className) {
+        ClassInfo info = classes.get(className);
+        if (info == null) {
+            info = index.get(className);
+            classes.put(className, info);
+            readClasses.add(className);
+        }
+        return info;
+    }
+
+    /**
+     * Returns names of classes taken from index (registered classes are not included).
+     */
+    public Set<String> getReadClasses() {
+        return readClasses;
+    }
+
+    /**
+     * Returns nearest common super class of two classes (java/lang/Object if one of them is interface),
+     * as ClassWriter.getCommonSuperClass() does, but without loading classes.
+     */
+    public String getCommonSuperClass(String type1, String type2) {
+        if (type1.equals(type2)) return type1;
+        if (get(type1).isInterface || get(type2).isInterface) return "java/lang/Object";
+        final Set<String> superClasses1 = new HashSet<>();
+        for (String type = type1; type != null; type = get(type).superName) {
+            superClasses1.add(type);
+        }
+        for (String type = type2; type != null; type = get(type).superName) {
+            if (superClasses1.contains(type)) return type;
+        }
+        return "java/lang/Object";
+    }
+}
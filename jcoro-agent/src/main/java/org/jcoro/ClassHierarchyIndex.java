@@ -0,0 +1,145 @@
+package org.jcoro;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Shared index of class hierarchy (super class and interface flag of each class), built from bytecode only:
+ * classes are never loaded, so their static initializers are not run, and classes being instrumented
+ * by agent stay transformable. Directories and jars are scanned once when index is created, other classes
+ * (JDK ones, for example) are read as resources of class loader on first request. All read classes
+ * are cached, so each class file is parsed at most once.
+ *
+ * Index is thread-safe and is shared by all classes being instrumented; each class uses its own
+ * ClassHierarchy view, which tracks classes used by instrumentation of this class.
+ *
+ * @author elwood
+ */
+public class ClassHierarchyIndex {
+    // Class loader isn't kept reachable by index (agent keeps index for each class loader)
+    private final WeakReference<ClassLoader> classLoader;
+    private final Map<String, ClassHierarchy.ClassInfo> classes = new ConcurrentHashMap<>();
+
+    /**
+     * Creates index, which reads classes not added explicitly from specified class loader
+     * (from system class loader, if null).
+     */
+    public ClassHierarchyIndex(ClassLoader classLoader) {
+        this.classLoader = classLoader != null ? new WeakReference<>(classLoader) : null;
+    }
+
+    /**
+     * Adds all class files of directory (recursively) to index.
+     */
+    public void addDirectory(File directory) {
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            files.parallel()
+                    .filter(path -> path.toString().endsWith(".class"))
+                    .forEach(path -> {
+                        try {
+                            add(Files.readAllBytes(path));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+        } catch (IOException | UncheckedIOException e) {
+            throw new RuntimeException("Cannot scan directory " + directory.getPath(), e);
+        }
+    }
+
+    /**
+     * Adds all class files of jar to index (except of module descriptors, versioned classes of multi-release
+     * jar and classes of versions, which are not supported by ASM).
+     */
+    public void addJar(File jar) {
+        try (ZipFile zipFile = new ZipFile(jar)) {
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                if (!isClassEntry(entry)) continue;
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    add(new ClassReader(in));
+                } catch (IllegalArgumentException e) {
+                    // Class version is newer than ASM supports
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot scan jar " + jar.getPath(), e);
+        }
+    }
+
+    /**
+     * Returns true if jar entry is class file, which can be instrumented: module descriptors (module-info.class)
+     * and versioned classes of multi-release jar (META-INF/versions/N/...) are not (versioned class shouldn't
+     * replace base class in index, and their versions are newer than ASM supports).
+     */
+    static boolean isClassEntry(ZipEntry entry) {
+        final String name = entry.getName();
+        return !entry.isDirectory() && name.endsWith(".class")
+                && !name.equals("module-info.class") && !name.endsWith("/module-info.class")
+                && !name.startsWith("META-INF/versions/");
+    }
+
+    /**
+     * Returns true if version of class file is supported by ASM (ClassReader throws IllegalArgumentException
+     * for newer classes).
+     */
+    static boolean isSupportedVersion(byte[] classBytes) {
+        return classBytes.length >= 8 && (((classBytes[6] & 0xFF) << 8) | (classBytes[7] & 0xFF)) <= Opcodes.V1_8;
+    }
+
+    public void add(byte[] classBytes) {
+        add(new ClassReader(classBytes));
+    }
+
+    private void add(ClassReader reader) {
+        classes.put(reader.getClassName(), classInfo(reader));
+    }
+
+    public ClassHierarchy.ClassInfo get(String className) {
+        ClassHierarchy.ClassInfo info = classes.get(className);
+        if (info == null) {
+            // Class is read without lock, so it may be read twice by concurrent threads - it's ok
+            info = read(className);
+            final ClassHierarchy.ClassInfo existing = classes.putIfAbsent(className, info);
+            if (existing != null) info = existing;
+        }
+        return info;
+    }
+
+    private ClassHierarchy.ClassInfo read(String className) {
+        final String resourceName = className + ".class";
+        final InputStream stream;
+        if (classLoader != null) {
+            final ClassLoader loader = classLoader.get();
+            if (loader == null) throw new IllegalStateException("Class loader has been collected");
+            stream = loader.getResourceAsStream(resourceName);
+        } else {
+            stream = ClassLoader.getSystemResourceAsStream(resourceName);
+        }
+        if (stream == null) throw new RuntimeException("Class not found: " + className);
+        try (InputStream in = stream) {
+            return classInfo(new ClassReader(in));
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read class " + className, e);
+        }
+    }
+
+    private static ClassHierarchy.ClassInfo classInfo(ClassReader reader) {
+        return new ClassHierarchy.ClassInfo(reader.getSuperName(), (reader.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+    }
+}
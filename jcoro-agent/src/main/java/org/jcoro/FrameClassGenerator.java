@@ -0,0 +1,277 @@
+package org.jcoro;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates frame classes for restore points of instrumented class (if instrumenting with frame classes).
+ * Frame class has typed public field for each saved local and stack bottom operand of restore point,
+ * so the whole frame is saved as single object by Coro.pushFrame().
+ *
+ * Frame classes are placed into the same package as instrumented class, and named as
+ * `Owner$$Frame0`, `Owner$$Frame1` etc.
+ *
+ * In continuations mode frame classes extend Continuation: resume() calls static synthetic bridge
+ * `Owner.$$resumeN`, generated into instrumented class for each instrumented method. Bridge calls the method
+ * (without virtual dispatch) on saved "this" with default args, and method restores itself from the frame.
+ *
+ * @author elwood
+ */
+public class FrameClassGenerator {
+    private final String ownerClassName;
+    private final Map<String, byte[]> generatedClasses = new LinkedHashMap<>();
+
+    // Continuations mode: frame classes extend Continuation, methods are resumed by bridges
+    private final boolean continuations;
+    private final boolean ownerIsInterface;
+    // Name and descriptor of instrumented method -> its resume bridge
+    private final Map<String, ResumeBridge> resumeBridges = new LinkedHashMap<>();
+
+    public FrameClassGenerator(String ownerClassName) {
+        this(ownerClassName, false, false);
+    }
+
+    public FrameClassGenerator(String ownerClassName, boolean continuations, boolean ownerIsInterface) {
+        this.ownerClassName = ownerClassName;
+        this.continuations = continuations;
+        this.ownerIsInterface = ownerIsInterface;
+    }
+
+    public boolean isContinuations() {
+        return continuations;
+    }
+
+    private static class ResumeBridge {
+        final String name;
+        final String methodName;
+        final String methodDesc;
+        final boolean isStatic;
+
+        ResumeBridge(String name, String methodName, String methodDesc, boolean isStatic) {
+            this.name = name;
+            this.methodName = methodName;
+            this.methodDesc = methodDesc;
+            this.isStatic = isStatic;
+        }
+
+        String desc() {
+            return isStatic ? "()Ljava/lang/Object;" : "(Ljava/lang/Object;)Ljava/lang/Object;";
+        }
+    }
+
+    /**
+     * Field of frame class.
+     */
+    public static class Field {
+        public final String name;
+        public final String desc;
+
+        public Field(String name, String desc) {
+            this.name = name;
+            this.desc = desc;
+        }
+    }
+
+    /**
+     * Generates new frame class with specified fields and returns its internal name.
+     */
+    public String generate(List<Field> fields) {
+        return generate(fields, null);
+    }
+
+    /**
+     * Generates frame class, which extends Continuation, for restore point of specified method
+     * (in continuations mode) and returns its internal name.
+     */
+    public String generateContinuation(List<Field> fields, String methodName, String methodDesc, boolean isStatic) {
+        assert continuations;
+        ResumeBridge bridge = resumeBridges.get(methodName + methodDesc);
+        if (bridge == null) {
+            bridge = new ResumeBridge("$$resume" + resumeBridges.size(), methodName, methodDesc, isStatic);
+            resumeBridges.put(methodName + methodDesc, bridge);
+        }
+        return generate(fields, bridge);
+    }
+
+    private String generate(List<Field> fields, ResumeBridge bridge) {
+        final String className = ownerClassName + "$$Frame" + generatedClasses.size();
+        final String superName = bridge != null ? "org/jcoro/Continuation" : "java/lang/Object";
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER | Opcodes.ACC_SYNTHETIC,
+                className, null, superName, null);
+        for (Field field : fields) {
+            FieldVisitor fv = cw.visitField(Opcodes.ACC_PUBLIC, field.name, field.desc, null, null);
+            fv.visitEnd();
+        }
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        if (bridge != null) {
+            // public Object resume() { return Owner.$$resumeN(self); }
+            mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "resume", "()Ljava/lang/Object;", null, null);
+            mv.visitCode();
+            if (!bridge.isStatic) {
+                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                mv.visitFieldInsn(Opcodes.GETFIELD, "org/jcoro/Continuation", "self", "Ljava/lang/Object;");
+            }
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, ownerClassName, bridge.name, bridge.desc(), ownerIsInterface);
+            mv.visitInsn(Opcodes.ARETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        cw.visitEnd();
+        generatedClasses.put(className, cw.toByteArray());
+        return className;
+    }
+
+    /**
+     * Returns descriptor of field for storing value of specified type. All references are stored
+     * in Object fields (and casted back when restoring), so frame class doesn't refer user types.
+     */
+    public static String fieldDescriptor(Type type) {
+        switch (type.getSort()) {
+            case Type.OBJECT:
+            case Type.ARRAY:
+                return "Ljava/lang/Object;";
+            case Type.INT:
+            case Type.SHORT:
+            case Type.BYTE:
+            case Type.BOOLEAN:
+            case Type.CHAR:
+                return "I";
+            case Type.LONG:
+                return "J";
+            case Type.DOUBLE:
+                return "D";
+            case Type.FLOAT:
+                return "F";
+            default:
+                throw new AssertionError("This shouldn't happen");
+        }
+    }
+
+    /**
+     * Generates resume bridges into instrumented class (should be called when class is visited).
+     * Bridge calls the method with default args (method restores them from its frame) and returns
+     * its result boxed.
+     */
+    public void generateResumeBridges(ClassVisitor cv) {
+        for (ResumeBridge bridge : resumeBridges.values()) {
+            // Static methods of interface should be public
+            final int access = Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC | (ownerIsInterface ? Opcodes.ACC_PUBLIC : 0);
+            final MethodVisitor mv = cv.visitMethod(access, bridge.name, bridge.desc(), null, null);
+            mv.visitCode();
+            if (!bridge.isStatic) {
+                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                mv.visitTypeInsn(Opcodes.CHECKCAST, ownerClassName);
+            }
+            final Type methodType = Type.getMethodType(bridge.methodDesc);
+            for (Type argumentType : methodType.getArgumentTypes()) {
+                pushDefaultValue(mv, argumentType);
+            }
+            // Not virtual call: the frame belongs to this very method, not to its override
+            mv.visitMethodInsn(bridge.isStatic ? Opcodes.INVOKESTATIC : Opcodes.INVOKESPECIAL,
+                    ownerClassName, bridge.methodName, bridge.methodDesc, ownerIsInterface);
+            box(mv, methodType.getReturnType());
+            mv.visitInsn(Opcodes.ARETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+    }
+
+    private static void pushDefaultValue(MethodVisitor mv, Type type) {
+        switch (type.getSort()) {
+            case Type.OBJECT:
+            case Type.ARRAY:
+                mv.visitInsn(Opcodes.ACONST_NULL);
+                break;
+            case Type.LONG:
+                mv.visitInsn(Opcodes.LCONST_0);
+                break;
+            case Type.DOUBLE:
+                mv.visitInsn(Opcodes.DCONST_0);
+                break;
+            case Type.FLOAT:
+                mv.visitInsn(Opcodes.FCONST_0);
+                break;
+            default:
+                mv.visitInsn(Opcodes.ICONST_0);
+                break;
+        }
+    }
+
+    /**
+     * Boxes value of specified type on the top of stack (void result is replaced by null).
+     */
+    private static void box(MethodVisitor mv, Type type) {
+        final String wrapper = wrapperClass(type);
+        if (type.getSort() == Type.VOID) {
+            mv.visitInsn(Opcodes.ACONST_NULL);
+        } else if (wrapper != null) {
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, wrapper, "valueOf",
+                    "(" + type.getDescriptor() + ")L" + wrapper + ";", false);
+        }
+    }
+
+    /**
+     * Unboxes (or casts) result of resumed method on the top of stack to specified type (see box()).
+     */
+    public static void unbox(MethodVisitor mv, Type type) {
+        final String wrapper = wrapperClass(type);
+        if (type.getSort() == Type.VOID) {
+            mv.visitInsn(Opcodes.POP);
+        } else if (wrapper != null) {
+            mv.visitTypeInsn(Opcodes.CHECKCAST, wrapper);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, wrapper, type.getClassName() + "Value",
+                    "()" + type.getDescriptor(), false);
+        } else {
+            mv.visitTypeInsn(Opcodes.CHECKCAST, type.getInternalName());
+        }
+    }
+
+    private static String wrapperClass(Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+                return "java/lang/Boolean";
+            case Type.CHAR:
+                return "java/lang/Character";
+            case Type.BYTE:
+                return "java/lang/Byte";
+            case Type.SHORT:
+                return "java/lang/Short";
+            case Type.INT:
+                return "java/lang/Integer";
+            case Type.LONG:
+                return "java/lang/Long";
+            case Type.FLOAT:
+                return "java/lang/Float";
+            case Type.DOUBLE:
+                return "java/lang/Double";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Map: internal name of generated class -> bytecode.
+     */
+    public Map<String, byte[]> getGeneratedClasses() {
+        return generatedClasses;
+    }
+}
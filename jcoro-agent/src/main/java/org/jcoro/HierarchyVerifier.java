@@ -0,0 +1,67 @@
+package org.jcoro;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.analysis.SimpleVerifier;
+
+/**
+ * SimpleVerifier which doesn't load classes: class hierarchy is taken from ClassHierarchy.
+ * Interfaces are treated as java/lang/Object (as SimpleVerifier does).
+ *
+ * @author elwood
+ */
+public class HierarchyVerifier extends SimpleVerifier {
+    private static final Type OBJECT_TYPE = Type.getObjectType("java/lang/Object");
+
+    private final ClassHierarchy hierarchy;
+
+    public HierarchyVerifier(ClassHierarchy hierarchy) {
+        super(Opcodes.ASM5, null, null, null, false);
+        this.hierarchy = hierarchy;
+    }
+
+    @Override
+    protected boolean isInterface(Type t) {
+        if (t.getSort() != Type.OBJECT) return false;
+        return hierarchy.get(t.getInternalName()).isInterface;
+    }
+
+    @Override
+    protected Type getSuperClass(Type t) {
+        if (t.getSort() == Type.ARRAY) return OBJECT_TYPE;
+        final String superName = hierarchy.get(t.getInternalName()).superName;
+        return superName != null ? Type.getObjectType(superName) : null;
+    }
+
+    @Override
+    protected boolean isAssignableFrom(Type t, Type u) {
+        if (t.equals(u)) return true;
+        if (t.equals(OBJECT_TYPE)) return true;
+        if (t.getSort() == Type.ARRAY) {
+            if (u.getSort() != Type.ARRAY) return false;
+            final Type tElement = Type.getType(t.getDescriptor().substring(1));
+            final Type uElement = Type.getType(u.getDescriptor().substring(1));
+            if (isReference(tElement) && isReference(uElement))
+                return isAssignableFrom(tElement, uElement);
+            return tElement.equals(uElement);
+        }
+        if (u.getSort() == Type.ARRAY) {
+            final String name = t.getInternalName();
+            return name.equals("java/lang/Cloneable") || name.equals("java/io/Serializable");
+        }
+        if (isInterface(t)) return true;
+        for (Type s = getSuperClass(u); s != null; s = getSuperClass(s)) {
+            if (s.equals(t)) return true;
+        }
+        return false;
+    }
+
+    private static boolean isReference(Type type) {
+        return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
+    }
+
+    @Override
+    protected Class<?> getClass(Type t) {
+        throw new UnsupportedOperationException("Classes shouldn't be loaded: " + t);
+    }
+}
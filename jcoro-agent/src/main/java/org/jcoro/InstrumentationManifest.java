@@ -0,0 +1,130 @@
+package org.jcoro;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Manifest of incremental instrumentation: for each source class keeps hash of its bytes, flag whether
+ * class was instrumented, names of generated classes and names of source classes, on which the result
+ * depends (hierarchy of these classes was used by verifier when instrumenting).
+ *
+ * Class should be instrumented again if its bytes are changed, or some of its dependencies is changed.
+ * Declarations of restore points (@Async/@Await) are read only from the class itself, so they are
+ * covered by hash of class bytes.
+ *
+ * Stored as text file, one line per class:
+ * `className \t hash \t instrumented \t generatedClass1,generatedClass2 \t dependency1,dependency2`.
+ * First line holds options of instrumentation, manifest written with other options is ignored.
+ *
+ * @author elwood
+ */
+public class InstrumentationManifest {
+    public static class Entry {
+        public final String className;
+        public final String hash;
+        public final boolean instrumented;
+        public final Collection<String> generatedClasses;
+        public final Collection<String> dependencies;
+
+        public Entry(String className, String hash, boolean instrumented,
+                     Collection<String> generatedClasses, Collection<String> dependencies) {
+            this.className = className;
+            this.hash = hash;
+            this.instrumented = instrumented;
+            this.generatedClasses = generatedClasses;
+            this.dependencies = dependencies;
+        }
+    }
+
+    private static final String HEADER_PREFIX = "# jcoro manifest 1 ";
+
+    private final String options;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public InstrumentationManifest(String options) {
+        this.options = options;
+    }
+
+    public Entry get(String className) {
+        return entries.get(className);
+    }
+
+    public void put(Entry entry) {
+        entries.put(entry.className, entry);
+    }
+
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * Reads manifest from file. Returns null if file doesn't exist or has been written with other options.
+     */
+    public static InstrumentationManifest read(File file, String options) {
+        if (!file.exists()) return null;
+        final InstrumentationManifest manifest = new InstrumentationManifest(options);
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            final String header = reader.readLine();
+            if (header == null || !header.equals(HEADER_PREFIX + options)) return null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split("\t", -1);
+                if (parts.length != 5) throw new RuntimeException("Incorrect manifest line: " + line);
+                manifest.put(new Entry(parts[0], parts[1], Boolean.parseBoolean(parts[2]),
+                        splitNames(parts[3]), splitNames(parts[4])));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read manifest: " + file.getPath(), e);
+        }
+        return manifest;
+    }
+
+    /**
+     * Writes manifest (entries are sorted by class name, so manifest doesn't depend on order of processing).
+     */
+    public void write(File file) {
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER_PREFIX + options);
+            writer.newLine();
+            for (Entry entry : new TreeMap<>(entries).values()) {
+                writer.write(entry.className + "\t" + entry.hash + "\t" + entry.instrumented + "\t"
+                        + String.join(",", entry.generatedClasses) + "\t"
+                        + String.join(",", entry.dependencies));
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write manifest: " + file.getPath(), e);
+        }
+    }
+
+    private static Collection<String> splitNames(String names) {
+        if (names.isEmpty()) return Collections.emptyList();
+        return Arrays.asList(names.split(","));
+    }
+
+    public static String hash(byte[] bytes) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest(bytes)) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,111 @@
+package org.jcoro;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.Interpreter;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Analyzer, which remembers control flow edges while computing frames, and then computes
+ * live locals for each instruction (backward liveness pass).
+ *
+ * Local is live before instruction if there is a path from this instruction to some load
+ * (or iinc) of this local, and this path doesn't contain stores to the local.
+ * Locals which are not live before restore point call are not needed to be saved.
+ *
+ * @author elwood
+ */
+public class LivenessAnalyzer extends Analyzer<BasicValue> {
+    // Successors and exception handlers of each instruction (null if instruction has none)
+    private List<List<Integer>> successors;
+    private List<List<Integer>> handlers;
+
+    public LivenessAnalyzer(Interpreter<BasicValue> interpreter) {
+        super(interpreter);
+    }
+
+    @Override
+    public Frame<BasicValue>[] analyze(String owner, MethodNode m) throws AnalyzerException {
+        final int n = m.instructions.size();
+        successors = new ArrayList<>(Collections.<List<Integer>>nCopies(n, null));
+        handlers = new ArrayList<>(Collections.<List<Integer>>nCopies(n, null));
+        return super.analyze(owner, m);
+    }
+
+    @Override
+    protected void newControlFlowEdge(int insn, int successor) {
+        addEdge(successors, insn, successor);
+    }
+
+    @Override
+    protected boolean newControlFlowExceptionEdge(int insn, int successor) {
+        addEdge(handlers, insn, successor);
+        return true;
+    }
+
+    private static void addEdge(List<List<Integer>> edges, int insn, int successor) {
+        List<Integer> insnEdges = edges.get(insn);
+        if (insnEdges == null) {
+            insnEdges = new ArrayList<>(2);
+            edges.set(insn, insnEdges);
+        }
+        insnEdges.add(successor);
+    }
+
+    /**
+     * Returns set of live locals for each instruction (locals which are live before instruction is executed).
+     * Should be called after analyze().
+     */
+    public BitSet[] computeLiveLocals(AbstractInsnNode[] insns) {
+        final int n = insns.length;
+        final BitSet[] liveIn = new BitSet[n];
+        for (int i = 0; i < n; i++) liveIn[i] = new BitSet();
+
+        boolean changed;
+        do {
+            changed = false;
+            for (int i = n - 1; i >= 0; i--) {
+                final BitSet live = new BitSet();
+                if (successors.get(i) != null) {
+                    for (int successor : successors.get(i)) live.or(liveIn[successor]);
+                }
+                final AbstractInsnNode insn = insns[i];
+                if (insn instanceof VarInsnNode) {
+                    final VarInsnNode varInsn = (VarInsnNode) insn;
+                    if (isStore(varInsn.getOpcode())) {
+                        live.clear(varInsn.var);
+                    } else {
+                        live.set(varInsn.var); // xLOAD or RET
+                    }
+                } else if (insn instanceof IincInsnNode) {
+                    live.set(((IincInsnNode) insn).var);
+                }
+                // Exception can be thrown before instruction completes, so locals used by handler
+                // are live before instruction regardless of its stores
+                if (handlers.get(i) != null) {
+                    for (int handler : handlers.get(i)) live.or(liveIn[handler]);
+                }
+                if (!live.equals(liveIn[i])) {
+                    liveIn[i] = live;
+                    changed = true;
+                }
+            }
+        } while (changed);
+        return liveIn;
+    }
+
+    private static boolean isStore(int opcode) {
+        return opcode >= Opcodes.ISTORE && opcode <= Opcodes.ASTORE;
+    }
+}
@@ -18,25 +18,81 @@ public class MethodAdapter extends MethodVisitor {
     private final boolean isStatic;
     private final Type returnType;
 
+    // Index of synthetic local variable, which holds current coro (or null if method is called outside of coro)
+    // Coro is retrieved once when method starts, and all save/restore calls are made on this instance
+    private final int coroLocal;
+
+    // Generator of frame classes (null if locals and stack operands are saved one by one)
+    private final FrameClassGenerator frameClassGenerator;
+
+    // Continuations mode (see Continuation): frames are saved by Coro.pushContinuation(), and method
+    // is resumed by its frame (when callee is completed) instead of being called again by the caller
+    private final boolean continuations;
+    private final MethodId methodId;
+
+    // Index of synthetic local variable (continuations mode only), which holds frame of method while it is
+    // parked in recalled call: the frame is still saved, and it's pushed again if coro yields inside the call
+    private final int parkedLocal;
+
+    // Generator of bulk save helpers (null if values are saved by separate calls)
+    private final SaveHelperGenerator saveHelperGenerator;
+
     private int insnIndex = 0; // Currently monitoring index of original instruction
+
+    // Count of values saved by all restore points: refs, ints, longs, floats, doubles (see MethodReport)
+    private final int[] savedValues = new int[5];
     private Label[] restoreLabels;
     private int restorePointsProcessed = 0;
 
     public MethodAdapter(int api, MethodVisitor mv, MethodAnalyzeResult methodAnalyzeResult,
                          boolean isStatic, Type returnType) {
+        this(api, mv, methodAnalyzeResult, null, isStatic, returnType, null, null);
+    }
+
+    public MethodAdapter(int api, MethodVisitor mv, MethodAnalyzeResult methodAnalyzeResult, MethodId methodId,
+                         boolean isStatic, Type returnType, FrameClassGenerator frameClassGenerator,
+                         SaveHelperGenerator saveHelperGenerator) {
         super(api, mv);
         //
         this.analyzeResult = methodAnalyzeResult;
+        this.methodId = methodId;
         this.isStatic = isStatic;
         this.returnType = returnType;
+        this.frameClassGenerator = frameClassGenerator;
+        this.saveHelperGenerator = saveHelperGenerator;
+        this.continuations = frameClassGenerator != null && frameClassGenerator.isContinuations();
+        this.coroLocal = methodAnalyzeResult.getFrame(0).getLocals();
+        this.parkedLocal = coroLocal + 1;
+    }
+
+    private Frame<?> currentFrame() {
+        return analyzeResult.getFrame(insnIndex);
+    }
+
+    private Frame<?> nextFrame() {
+        return analyzeResult.getFrame(insnIndex + 1);
+    }
+
+    private void loadCoro() {
+        mv.visitVarInsn(Opcodes.ALOAD, coroLocal);
     }
 
-    private Frame currentFrame() {
-        return analyzeResult.getFrames()[insnIndex];
+    private void invokeCoro(String name, String desc) {
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "org/jcoro/Coro", name, desc, false);
     }
 
-    private Frame nextFrame() {
-        return analyzeResult.getFrames()[insnIndex + 1];
+    /**
+     * Puts coro instance under the value on top of stack, so instance method of coro
+     * can be called with this value as argument.
+     */
+    private void loadCoroUnderTop(Type valueType) {
+        loadCoro();
+        if (valueType.getSize() == 2) {
+            mv.visitInsn(Opcodes.DUP_X2);
+            mv.visitInsn(Opcodes.POP);
+        } else {
+            mv.visitInsn(Opcodes.SWAP);
+        }
     }
 
     private static class TryCatchBlock {
@@ -147,51 +203,61 @@ public class MethodAdapter extends MethodVisitor {
 
     @Override
     public void visitCode() {
-        // if (Coro.get() == null) goto noActiveCoroLabel;
+        if (continuations) {
+            visitContinuationCode();
+            return;
+        }
+        // coro = Coro.getSafe();
+        // if (coro == null) goto noActiveCoroLabel;
         mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "getSafe", "()Lorg/jcoro/Coro;", false);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitVarInsn(Opcodes.ASTORE, coroLocal);
         Label noActiveCoroLabel = new Label();
         mv.visitJumpInsn(Opcodes.IFNULL, noActiveCoroLabel);
 
-        // popState()
-        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "popState", "()Ljava/lang/Integer;", false);
+        // coro.restoreState() (returns Coro.NO_STATE = -1 if there is no state to restore)
+        loadCoro();
+        invokeCoro("restoreState", "()I");
         mv.visitInsn(Opcodes.DUP);
         Label noActiveStateLabel = new Label();
-        mv.visitJumpInsn(Opcodes.IFNULL, noActiveStateLabel);
+        mv.visitJumpInsn(Opcodes.IFLT, noActiveStateLabel);
 
-        // Now, when state != null, we have to pop extra ref (saved "this") if current method is not static
+        // Now, when state != NO_STATE, we have to pop extra ref (saved "this") if current method is not static
         // and if this method has been called from unpatchable context
         if (!isStatic) {
-            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "isUnpatchableCall", "()Z", false);
+            loadCoro();
+            invokeCoro("getUnpatchableCallFlag", "()Z");
             Label noUnpatchableFlag = new Label();
             mv.visitJumpInsn(Opcodes.IFEQ, noUnpatchableFlag);
 
-            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "popRef", "()Ljava/lang/Object;", false);
+            loadCoro();
+            invokeCoro("restoreRef", "()Ljava/lang/Object;");
             mv.visitInsn(Opcodes.POP);
 
             mv.visitLabel(noUnpatchableFlag);
-            putFrame(currentFrame(), "Ljava/lang/Integer;");
+            putFrame(currentFrame(), Opcodes.INTEGER);
         }
         // Reset Coro.unpatchableCall flag to false always (when restoring state)
+        loadCoro();
         mv.visitLdcInsn(false);
-        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "setUnpatchableCall", "(Z)V", false);
+        invokeCoro("setUnpatchableCallFlag", "(Z)V");
 
         // switch (state)
         final int nRestorePoints = analyzeResult.getRestorePointCallsCount();
         restoreLabels = new Label[nRestorePoints];
         for (int i = 0; i < nRestorePoints; i++) restoreLabels[i] = new Label();
         if (nRestorePoints == 1) {
-            // If state != null and there is only one restore point in this method, jump to label directly
+            // If state exists and there is only one restore point in this method, jump to label directly
             mv.visitInsn(Opcodes.POP);
             mv.visitJumpInsn(Opcodes.GOTO, restoreLabels[0]);
         } else {
             assert nRestorePoints > 1;
-            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "Ljava/lang/Integer;", "intValue", "()I", false);
             mv.visitTableSwitchInsn(0, nRestorePoints - 1, noActiveCoroLabel, restoreLabels);
         }
 
         // noActiveStateLabel:
         mv.visitLabel(noActiveStateLabel);
-        putFrame(currentFrame(), "Ljava/lang/Integer;");
+        putFrame(currentFrame(), Opcodes.INTEGER);
         mv.visitInsn(Opcodes.POP); // Remove extra (duplicated) `state`
 
         // noActiveCoroLabel:
@@ -200,10 +266,61 @@ public class MethodAdapter extends MethodVisitor {
         super.visitCode();
     }
 
+    /**
+     * Prologue in continuations mode: if method is resumed by its frame, jumps to restore point of the frame.
+     * Frame object is kept on the stack.
+     */
+    private void visitContinuationCode() {
+        // parked = null;
+        mv.visitInsn(Opcodes.ACONST_NULL);
+        mv.visitVarInsn(Opcodes.ASTORE, parkedLocal);
+
+        // coro = Coro.getSafe();
+        // if (coro == null) goto noActiveCoroLabel;
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "getSafe", "()Lorg/jcoro/Coro;", false);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitVarInsn(Opcodes.ASTORE, coroLocal);
+        Label noActiveCoroLabel = new Label();
+        mv.visitJumpInsn(Opcodes.IFNULL, noActiveCoroLabel);
+
+        // coro.takeContinuation() (returns null if method is not resumed)
+        loadCoro();
+        invokeCoro("takeContinuation", "()Lorg/jcoro/Continuation;");
+        mv.visitInsn(Opcodes.DUP);
+        Label noContinuationLabel = new Label();
+        mv.visitJumpInsn(Opcodes.IFNULL, noContinuationLabel);
+
+        // switch (frame.state)
+        final int nRestorePoints = analyzeResult.getRestorePointCallsCount();
+        restoreLabels = new Label[nRestorePoints];
+        for (int i = 0; i < nRestorePoints; i++) restoreLabels[i] = new Label();
+        if (nRestorePoints == 1) {
+            mv.visitJumpInsn(Opcodes.GOTO, restoreLabels[0]);
+        } else {
+            assert nRestorePoints > 1;
+            mv.visitInsn(Opcodes.DUP);
+            mv.visitFieldInsn(Opcodes.GETFIELD, "org/jcoro/Continuation", "state", "I");
+            mv.visitTableSwitchInsn(0, nRestorePoints - 1, noContinuationLabel, restoreLabels);
+        }
+
+        // noContinuationLabel:
+        mv.visitLabel(noContinuationLabel);
+        putFrame(currentFrame(), "org/jcoro/Continuation");
+        mv.visitInsn(Opcodes.POP); // Remove null
+
+        // noActiveCoroLabel:
+        mv.visitLabel(noActiveCoroLabel);
+        putFrame(currentFrame());
+        super.visitCode();
+    }
+
     private Object convertFrameOperandToInsn(Value value) {
         final BasicValue local = (BasicValue) value;
         if (local.isReference()) {
-            return local.getType().getDescriptor();
+            final String typeDescriptor = local.getType().getDescriptor();
+            if ("Lnull;".equals(typeDescriptor))
+                return Opcodes.NULL;
+            return local.getType().getInternalName();
         } else if (local == BasicValue.RETURNADDRESS_VALUE) {
             // Эта штука возможна только в старый версиях джавы - когда в рамках метода можно было
             // делать подпрограммы (см инструкции jsr и ret) - после выхода джавы 1.6 это уже не актуально
@@ -236,11 +353,11 @@ public class MethodAdapter extends MethodVisitor {
         }
     }
 
-    private void putFrame(Frame frame) {
+    private void putFrame(Frame<?> frame) {
         putFrame(frame, null);
     }
 
-    private void putFrame(Frame frame, String additionalStackOperand) {
+    private void putFrame(Frame<?> frame, Object additionalStackOperand) {
         Object[] locals = new Object[frame.getLocals()];
         for (int i = 0; i < frame.getLocals(); i++) {
             locals[i] = convertFrameOperandToInsn(frame.getLocal(i));
@@ -252,14 +369,52 @@ public class MethodAdapter extends MethodVisitor {
         if (additionalStackOperand != null) {
             stacks[stacks.length - 1] = additionalStackOperand;
         }
-        Object[] fixedLocals = fixLocals(locals);
+        Object[] fixedLocals = withCoroLocal(fixLocals(locals));
         callVisitFrame(Opcodes.F_FULL, fixedLocals.length, fixedLocals, stacks.length, stacks);
     }
 
     private void visitCurrentFrameWithoutStack() {
+        final Object[] locals = thisOnlyLocals(currentFrame());
+        callVisitFrame(Opcodes.F_FULL, locals.length, locals, 0, new Object[0]);
+    }
+
+    /**
+     * Puts frame of restore label in continuations mode: locals are not restored yet,
+     * frame object is on the stack.
+     */
+    private void visitCurrentFrameWithContinuation() {
+        final Object[] locals = thisOnlyLocals(currentFrame());
+        callVisitFrame(Opcodes.F_FULL, locals.length, locals, 1, new Object[]{"org/jcoro/Continuation"});
+    }
+
+    /**
+     * Puts frame with locals of specified frame and specified stack operands.
+     */
+    private void putLocalsFrame(Frame<?> frame, Object... stack) {
+        Object[] locals = new Object[frame.getLocals()];
+        for (int i = 0; i < frame.getLocals(); i++) {
+            locals[i] = convertFrameOperandToInsn(frame.getLocal(i));
+        }
+        Object[] fixedLocals = withCoroLocal(fixLocals(locals));
+        callVisitFrame(Opcodes.F_FULL, fixedLocals.length, fixedLocals, stack.length, stack);
+    }
+
+    /**
+     * Puts frame, in which all locals except "this" are TOP (used around tail restore point calls,
+     * after which locals are not needed).
+     */
+    private void putTailFrame(Frame<?> frame) {
+        final Object[] locals = thisOnlyLocals(frame);
+        Object[] stacks = new Object[frame.getStackSize()];
+        for (int i = 0; i < frame.getStackSize(); i++) {
+            stacks[i] = convertFrameOperandToInsn(frame.getStack(i));
+        }
+        callVisitFrame(Opcodes.F_FULL, locals.length, locals, stacks.length, stacks);
+    }
+
+    private Object[] thisOnlyLocals(Frame<?> frame) {
         // Если метод статический - все локальные переменные еще равны TOP
         // Если метод нестатический - первая переменная - this, остальное - TOP
-        final Frame frame = currentFrame();
         Object[] locals = new Object[frame.getLocals()];
         int i = 0;
         if (!isStatic) {
@@ -269,8 +424,7 @@ public class MethodAdapter extends MethodVisitor {
         for (int j = i; j < locals.length; j++) {
             locals[j] = Opcodes.TOP;
         }
-        Object[] fixedLocals = fixLocals(locals);
-        callVisitFrame(Opcodes.F_FULL, fixedLocals.length, fixLocals(locals), 0, new Object[0]);
+        return withCoroLocal(fixLocals(locals));
     }
 
     private void callVisitFrame(int type, int nLocal, Object[] local, int nStack,
@@ -290,6 +444,18 @@ public class MethodAdapter extends MethodVisitor {
         return fixed.toArray(new Object[fixed.size()]);
     }
 
+    /**
+     * Appends synthetic coro local (and parked frame local in continuations mode) to locals of frame.
+     * Synthetic locals are placed after all original locals, so original locals indexes are kept unchanged.
+     */
+    private Object[] withCoroLocal(Object[] locals) {
+        Object[] result = new Object[locals.length + (continuations ? 2 : 1)];
+        System.arraycopy(locals, 0, result, 0, locals.length);
+        result[locals.length] = "org/jcoro/Coro";
+        if (continuations) result[locals.length + 1] = "org/jcoro/Continuation";
+        return result;
+    }
+
     /**
      * Generates ldc 0 (null) instruction for specified type.
      */
@@ -323,226 +489,551 @@ public class MethodAdapter extends MethodVisitor {
         }
     }
 
+    /**
+     * Returns kind of coro storage for values of specified type: "Ref", "Int", "Long", "Float" or "Double".
+     * Used to build names of save/restore methods of Coro.
+     */
+    private static String storageKind(Type type) {
+        final int sort = type.getSort();
+        switch (sort) {
+            case Type.OBJECT:
+            case Type.ARRAY:
+                return "Ref";
+            case Type.INT:
+            case Type.SHORT:
+            case Type.BYTE:
+            case Type.BOOLEAN:
+            case Type.CHAR:
+                return "Int";
+            case Type.LONG:
+                return "Long";
+            case Type.DOUBLE:
+                return "Double";
+            case Type.FLOAT:
+                return "Float";
+            default:
+                throw new AssertionError("This shouldn't happen");
+        }
+    }
+
+    private static String storageDescriptor(String kind) {
+        switch (kind) {
+            case "Ref":
+                return "Ljava/lang/Object;";
+            case "Int":
+                return "I";
+            case "Long":
+                return "J";
+            case "Double":
+                return "D";
+            case "Float":
+                return "F";
+            default:
+                throw new AssertionError("This shouldn't happen");
+        }
+    }
+
+    /**
+     * Generates coro.saveXxx(value) call. Coro and value should be already placed on the stack.
+     */
+    private void invokeSave(Type type) {
+        final String kind = storageKind(type);
+        invokeCoro("save" + kind, "(" + storageDescriptor(kind) + ")V");
+    }
+
+    /**
+     * Generates coro.restoreXxx() call (with checkcast if value is reference).
+     */
+    private void restoreValue(Type type) {
+        final String kind = storageKind(type);
+        loadCoro();
+        invokeCoro("restore" + kind, "()" + storageDescriptor(kind));
+        if (type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY) {
+            mv.visitTypeInsn(Opcodes.CHECKCAST, type.getInternalName());
+        }
+    }
+
+    /**
+     * Returns true if value is not needed to be saved (no value or unknown value in the slot).
+     */
+    private static boolean isSkippedValue(BasicValue value) {
+        // RETURNADDRESS_VALUE возможно только в старых версиях джавы (подпрограммы jsr/ret)
+        return value == BasicValue.UNINITIALIZED_VALUE || value == BasicValue.RETURNADDRESS_VALUE;
+    }
+
+    private static boolean isNullValue(BasicValue value) {
+        return value.isReference() && "Lnull;".equals(value.getType().getDescriptor());
+    }
+
+    /**
+     * Returns count of values saved by all restore points of method: refs, ints, longs, floats, doubles.
+     */
+    public int[] getSavedValues() {
+        return savedValues;
+    }
+
+    /**
+     * Counts values saved by current restore point: stack bottom operands, live locals and "this"
+     * (nulls are not saved, they are restored by ACONST_NULL).
+     */
+    private void countSavedValues(Type callingMethodReturnType) {
+        final Frame<?> frame = nextFrame();
+        final int stackBottomSize = frame.getStackSize() - (callingMethodReturnType.getSort() != Type.VOID ? 1 : 0);
+        for (int i = 0; i < stackBottomSize; i++) {
+            BasicValue value = (BasicValue) frame.getStack(i);
+            if (isSkippedValue(value) || isNullValue(value)) continue;
+            savedValues["RIJFD".indexOf(storageKindChar(value.getType()))]++;
+        }
+        for (int i = 0; i < frame.getLocals(); i++) {
+            BasicValue local = (BasicValue) frame.getLocal(i);
+            if (isSkippedValue(local) || isNullValue(local) || !isLiveLocal(i)) continue;
+            // "this" is counted here too (it is always live)
+            savedValues["RIJFD".indexOf(storageKindChar(local.getType()))]++;
+        }
+    }
+
+    /**
+     * Returns true if local can be read after current instruction (restore point call).
+     * Dead locals are not saved; when restoring, they are initialized by default values
+     * (frame after restoring should be the same as original frame, so verifier needs them).
+     */
+    private boolean isLiveLocal(int local) {
+        // "this" is read by saveThis() when method is unwound again after restoring, so it is always live
+        if (!isStatic && local == 0) return true;
+        return analyzeResult.getLiveLocals(insnIndex).get(local);
+    }
+
     private void restoreLocals() {
-        Frame frame = currentFrame();
+        Frame<?> frame = currentFrame();
         for (int i = frame.getLocals() - 1; i >= 0; i--) {
             BasicValue local = (BasicValue) frame.getLocal(i);
-            if (local == BasicValue.UNINITIALIZED_VALUE) {
-                // do nothing
-            } else if (local == BasicValue.RETURNADDRESS_VALUE) {
-                // do nothing
-            } else if (local.isReference()) {
-                final String typeDescriptor = local.getType().getDescriptor();
-                mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "popRef", "()Ljava/lang/Object;", false);
-                mv.visitTypeInsn(Opcodes.CHECKCAST, typeDescriptor);
-                mv.visitVarInsn(Opcodes.ASTORE, i);
+            if (isSkippedValue(local)) continue;
+            if (isLiveLocal(i)) {
+                restoreValue(local.getType());
             } else {
-                final int sort = local.getType().getSort();
-                switch (sort) {
-                    case Type.VOID:
-                    case Type.OBJECT:
-                    case Type.ARRAY:
-                        // Should be already processed in if (isReference()) case
-                        throw new AssertionError("This shouldn't happen");
-                    case Type.INT:
-                    case Type.SHORT:
-                    case Type.BYTE:
-                    case Type.BOOLEAN:
-                    case Type.CHAR:
-                        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "popInt", "()I", false);
-                        mv.visitVarInsn(Opcodes.ISTORE, i);
-                        break;
-                    case Type.LONG:
-                        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "popLong", "()J", false);
-                        mv.visitVarInsn(Opcodes.LSTORE, i);
-                        break;
-                    case Type.DOUBLE:
-                        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "popDouble", "()D", false);
-                        mv.visitVarInsn(Opcodes.DSTORE, i);
-                        break;
-                    case Type.FLOAT:
-                        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "popFloat", "()F", false);
-                        mv.visitVarInsn(Opcodes.FSTORE, i);
-                        break;
-                    default:
-                        throw new AssertionError("This shouldn't happen");
-                }
+                visitLdcDefaultValueForType(local.getType());
             }
+            mv.visitVarInsn(local.getType().getOpcode(Opcodes.ISTORE), i);
         }
     }
 
+    /**
+     * Восстанавливает дно стека - все операнды, которые лежали на стеке под instance и аргументами вызова.
+     * Дно стека сохранялось начиная с верхушки, поэтому восстанавливаем начиная с самого нижнего операнда.
+     */
     private void restoreStackBottom(Type callingMethodType, boolean callingMethodIsStatic) {
         final Type[] argumentTypes = callingMethodType.getArgumentTypes();
         int nArgs = argumentTypes.length;
         int skipStackVars = nArgs + ((!callingMethodIsStatic) ? 1 : 0);
         //
-        Frame frame = currentFrame();
-        for (int i = frame.getStackSize() - 1; i >= skipStackVars; i--) {
+        Frame<?> frame = currentFrame();
+        for (int i = 0; i < frame.getStackSize() - skipStackVars; i++) {
             BasicValue local = (BasicValue) frame.getStack(i);
-            if (local == BasicValue.UNINITIALIZED_VALUE) {
-                // do nothing
-            } else if (local == BasicValue.RETURNADDRESS_VALUE) {
-                // do nothing
-            } else if (local.isReference()) {
-                final String typeDescriptor = local.getType().getDescriptor();
-                if (!"Lnull;".equals(typeDescriptor)) {
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "popRef", "()Ljava/lang/Object;", false);
-                    mv.visitTypeInsn(Opcodes.CHECKCAST, typeDescriptor);
-                } else
-                    mv.visitInsn(Opcodes.ACONST_NULL);
+            if (isSkippedValue(local)) continue;
+            if (isNullValue(local)) {
+                // null не сохранялся, просто кладём его обратно
+                mv.visitInsn(Opcodes.ACONST_NULL);
             } else {
-                final int sort = local.getType().getSort();
-                switch (sort) {
-                    case Type.VOID:
-                    case Type.OBJECT:
-                    case Type.ARRAY:
-                        // Should be already processed in if (isReference()) case
-                        throw new AssertionError("This shouldn't happen");
-                    case Type.INT:
-                    case Type.SHORT:
-                    case Type.BYTE:
-                    case Type.BOOLEAN:
-                    case Type.CHAR:
-                        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "popInt", "()I", false);
-                        break;
-                    case Type.LONG:
-                        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "popLong", "()J", false);
-                        break;
-                    case Type.DOUBLE:
-                        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "popDouble", "()D", false);
-                        break;
-                    case Type.FLOAT:
-                        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "popFloat", "()F", false);
-                        break;
-                    default:
-                        throw new AssertionError("This shouldn't happen");
-                }
+                restoreValue(local.getType());
             }
         }
     }
 
     private void restoreInstance(Type callingMethodType) {
-        Frame frame = currentFrame();
+        Frame<?> frame = currentFrame();
         //
         final Type[] argumentTypes = callingMethodType.getArgumentTypes();
         int nArgs = argumentTypes.length;
         //
         BasicValue value = (BasicValue) frame.getStack(frame.getStackSize() - 1 - nArgs);
         if (!value.isReference()) throw new AssertionError("This shouldn't happen");
+        if (isNullValue(value)) throw new AssertionError("This shouldn't happen");
 
-        final String typeDescriptor = value.getType().getDescriptor();
-        if ("Lnull;".equals(typeDescriptor))
-            throw new AssertionError("This shouldn't happen");
-        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "popRef", "()Ljava/lang/Object;", false);
-        mv.visitTypeInsn(Opcodes.CHECKCAST, typeDescriptor);
+        restoreValue(value.getType());
     }
 
     private void saveStackBottom(Type callingMethodReturnType) {
-        Frame frame = nextFrame();
+        Frame<?> frame = nextFrame();
         // Кроме возвращаемого значения вызванного метода - ведь он вернул нам null или 0 в случае
-        // после осуществления прерывания
-        boolean skipFirstStackItem = (callingMethodReturnType.getSort() != Type.VOID);
-        //
-        for (int i = skipFirstStackItem ? 1 : 0; i < frame.getStackSize(); i++) {
+        // после осуществления прерывания. Оно лежит на верхушке стека, просто выкидываем его
+        int stackBottomSize = frame.getStackSize();
+        if (callingMethodReturnType.getSort() != Type.VOID) {
+            mv.visitInsn(callingMethodReturnType.getSize() == 2 ? Opcodes.POP2 : Opcodes.POP);
+            stackBottomSize--;
+        }
+        // Каждый вызов save забирает значение с верхушки стека, поэтому идём сверху вниз
+        for (int i = stackBottomSize - 1; i >= 0; i--) {
             BasicValue local = (BasicValue) frame.getStack(i);
-            if (local == BasicValue.UNINITIALIZED_VALUE) {
-                // do nothing
-            } else if (local == BasicValue.RETURNADDRESS_VALUE) {
-                // do nothing
-            } else if (local.isReference()) {
+            if (isSkippedValue(local)) continue;
+            if (isNullValue(local)) {
                 // Если здесь - null, то можно ничего не сохранять, а при восстановлении симметрично сделать ACONST_NULL
-                final String typeDescriptor = local.getType().getDescriptor();
-                if (!"Lnull;".equals(typeDescriptor))
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushRef", "(Ljava/lang/Object;)V", false);
+                mv.visitInsn(Opcodes.POP);
             } else {
-                final int sort = local.getType().getSort();
-                switch (sort) {
-                    case Type.VOID:
-                    case Type.OBJECT:
-                    case Type.ARRAY:
-                        // Should be already processed in if (isReference()) case
-                        throw new AssertionError("This shouldn't happen");
-                    case Type.INT:
-                    case Type.SHORT:
-                    case Type.BYTE:
-                    case Type.BOOLEAN:
-                    case Type.CHAR:
-                        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushInt", "(I)V", false);
-                        break;
-                    case Type.LONG:
-                        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushLong", "(J)V", false);
-                        break;
-                    case Type.DOUBLE:
-                        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushDouble", "(D)V", false);
-                        break;
-                    case Type.FLOAT:
-                        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushFloat", "(F)V", false);
-                        break;
-                    default:
-                        throw new AssertionError("This shouldn't happen");
-                }
+                loadCoroUnderTop(local.getType());
+                invokeSave(local.getType());
             }
         }
     }
 
     private void saveLocals() {
-        Frame frame = nextFrame();
-        for (int i = 0; i <frame.getLocals(); i++) {
+        Frame<?> frame = nextFrame();
+        for (int i = 0; i < frame.getLocals(); i++) {
+            BasicValue local = (BasicValue) frame.getLocal(i);
+            if (isSkippedValue(local) || !isLiveLocal(i)) continue;
+            loadCoro();
+            mv.visitVarInsn(local.getType().getOpcode(Opcodes.ILOAD), i);
+            invokeSave(local.getType());
+        }
+    }
+
+    /**
+     * Layout of values saved by bulk save helper (see SaveHelperGenerator): helper method and
+     * flags of locals passed to it.
+     */
+    private static class BulkLayout {
+        String helperName;
+        String helperDesc;
+        boolean[] savedLocals;
+    }
+
+    private static char storageKindChar(Type type) {
+        switch (storageKind(type)) {
+            case "Ref":
+                return 'R';
+            case "Int":
+                return 'I';
+            case "Long":
+                return 'J';
+            case "Float":
+                return 'F';
+            case "Double":
+                return 'D';
+            default:
+                throw new AssertionError("This shouldn't happen");
+        }
+    }
+
+    /**
+     * Returns layout for bulk saving of current restore point, or null if values should be saved one by one.
+     * Helper saves the same values as saveStackBottom(), saveLocals(), saveThis() and saveState() do,
+     * and in the same order, so they are restored by restoreLocals() and restoreStackBottom() as usual.
+     */
+    private BulkLayout createBulkLayout(Type callingMethodReturnType) {
+        if (saveHelperGenerator == null || frameClassGenerator != null) return null;
+        final Frame<?> frame = nextFrame();
+        final BulkLayout layout = new BulkLayout();
+
+        // Stack bottom operands are passed to helper as they lie on the stack (from bottom to top)
+        final StringBuilder stackShape = new StringBuilder();
+        final int stackBottomSize = frame.getStackSize() - (callingMethodReturnType.getSort() != Type.VOID ? 1 : 0);
+        for (int i = 0; i < stackBottomSize; i++) {
+            BasicValue value = (BasicValue) frame.getStack(i);
+            // Uninitialized operand can't be passed to helper
+            if (isSkippedValue(value)) return null;
+            stackShape.append(isNullValue(value) ? 'N' : storageKindChar(value.getType()));
+        }
+        final StringBuilder localsShape = new StringBuilder();
+        layout.savedLocals = new boolean[frame.getLocals()];
+        for (int i = 0; i < frame.getLocals(); i++) {
             BasicValue local = (BasicValue) frame.getLocal(i);
-            if (local == BasicValue.UNINITIALIZED_VALUE) {
-                // do nothing
-            } else if (local == BasicValue.RETURNADDRESS_VALUE) {
-                // do nothing
-            } else if (local.isReference()) {
-                mv.visitVarInsn(Opcodes.ALOAD, i);
-                mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushRef", "(Ljava/lang/Object;)V", false);
+            if (isSkippedValue(local) || !isLiveLocal(i)) continue;
+            layout.savedLocals[i] = true;
+            localsShape.append(storageKindChar(local.getType()));
+        }
+        if (!isStatic || analyzeResult.isRootLambda()) localsShape.append('R'); // "this"
+
+        final String shape = SaveHelperGenerator.shape(stackShape.toString(), localsShape.toString());
+        if (!SaveHelperGenerator.isSupported(shape)) return null;
+        layout.helperName = saveHelperGenerator.getHelper(shape);
+        layout.helperDesc = SaveHelperGenerator.helperDescriptor(shape);
+        return layout;
+    }
+
+    /**
+     * Saves stack bottom, locals, "this" and state by one call of bulk helper
+     * (replaces saveStackBottom(), saveLocals(), saveThis() and saveState()).
+     */
+    private void saveBulk(BulkLayout layout, Type callingMethodReturnType) {
+        if (callingMethodReturnType.getSort() != Type.VOID) {
+            mv.visitInsn(callingMethodReturnType.getSize() == 2 ? Opcodes.POP2 : Opcodes.POP);
+        }
+        // Stack bottom operands are already on the stack, push locals and "this" over them
+        final Frame<?> frame = nextFrame();
+        for (int i = 0; i < layout.savedLocals.length; i++) {
+            if (!layout.savedLocals[i]) continue;
+            BasicValue local = (BasicValue) frame.getLocal(i);
+            mv.visitVarInsn(local.getType().getOpcode(Opcodes.ILOAD), i);
+        }
+        if (!isStatic) {
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+        } else if (analyzeResult.isRootLambda()) {
+            // Extra NULL object to keep stack balanced when resuming (see saveThis())
+            mv.visitInsn(Opcodes.ACONST_NULL);
+        }
+        loadCoro();
+        SaveHelperGenerator.pushInt(mv, restorePointsProcessed);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, saveHelperGenerator.getOwnerClassName(),
+                layout.helperName, layout.helperDesc, false);
+    }
+
+    /**
+     * Layout of frame class generated for restore point: names of fields for each local
+     * and stack bottom operand (null if value is not saved).
+     */
+    private static class FrameLayout {
+        String className; // null if there are no values to save
+        String[] localFields;
+        String[] stackFields;
+    }
+
+    private FrameLayout createFrameLayout(Type callingMethodType, boolean callingMethodIsStatic) {
+        final Frame<?> frame = currentFrame();
+        final int skipStackVars = callingMethodType.getArgumentTypes().length + (callingMethodIsStatic ? 0 : 1);
+        final List<FrameClassGenerator.Field> fields = new ArrayList<>();
+
+        final FrameLayout layout = new FrameLayout();
+        layout.localFields = new String[frame.getLocals()];
+        for (int i = 0; i < frame.getLocals(); i++) {
+            BasicValue local = (BasicValue) frame.getLocal(i);
+            if (isSkippedValue(local) || isNullValue(local) || !isLiveLocal(i)) continue;
+            // In continuations mode "this" is kept in Continuation.self (method is resumed on it)
+            if (continuations && isThisLocal(i)) continue;
+            layout.localFields[i] = "l" + i;
+            fields.add(new FrameClassGenerator.Field(layout.localFields[i],
+                    FrameClassGenerator.fieldDescriptor(local.getType())));
+        }
+        layout.stackFields = new String[frame.getStackSize() - skipStackVars];
+        for (int i = 0; i < layout.stackFields.length; i++) {
+            BasicValue value = (BasicValue) frame.getStack(i);
+            if (isSkippedValue(value) || isNullValue(value)) continue;
+            layout.stackFields[i] = "s" + i;
+            fields.add(new FrameClassGenerator.Field(layout.stackFields[i],
+                    FrameClassGenerator.fieldDescriptor(value.getType())));
+        }
+        if (continuations) {
+            // Frame object is needed even if there are no values to save
+            layout.className = frameClassGenerator.generateContinuation(fields,
+                    methodId.methodName, methodId.signature, isStatic);
+        } else if (!fields.isEmpty()) {
+            layout.className = frameClassGenerator.generate(fields);
+        }
+        return layout;
+    }
+
+    private boolean isThisLocal(int local) {
+        return !isStatic && local == 0;
+    }
+
+    private void getFrameField(FrameLayout layout, String field, Type type) {
+        mv.visitFieldInsn(Opcodes.GETFIELD, layout.className, field, FrameClassGenerator.fieldDescriptor(type));
+        if (type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY) {
+            mv.visitTypeInsn(Opcodes.CHECKCAST, type.getInternalName());
+        }
+    }
+
+    private void putFrameField(FrameLayout layout, String field, Type type) {
+        mv.visitFieldInsn(Opcodes.PUTFIELD, layout.className, field, FrameClassGenerator.fieldDescriptor(type));
+    }
+
+    /**
+     * Restores locals and stack bottom from frame object (replaces restoreLocals() and restoreStackBottom()).
+     */
+    private void restoreFrame(FrameLayout layout) {
+        if (layout.className != null) {
+            loadCoro();
+            invokeCoro("popFrame", "()Ljava/lang/Object;");
+            mv.visitTypeInsn(Opcodes.CHECKCAST, layout.className);
+        }
+        restoreFrameLocals(layout);
+        restoreFrameStack(layout);
+    }
+
+    /**
+     * Restores locals from frame object on the top of stack (frame object is kept on the stack).
+     */
+    private void restoreFrameLocals(FrameLayout layout) {
+        final Frame<?> frame = currentFrame();
+        for (int i = 0; i < frame.getLocals(); i++) {
+            BasicValue local = (BasicValue) frame.getLocal(i);
+            if (isSkippedValue(local)) continue;
+            // Resumed method is called on saved "this"
+            if (continuations && isThisLocal(i)) continue;
+            if (layout.localFields[i] == null) {
+                // Null or dead local
+                visitLdcDefaultValueForType(local.getType());
+            } else {
+                mv.visitInsn(Opcodes.DUP);
+                getFrameField(layout, layout.localFields[i], local.getType());
+            }
+            mv.visitVarInsn(local.getType().getOpcode(Opcodes.ISTORE), i);
+        }
+    }
+
+    /**
+     * Restores stack bottom from frame object on the top of stack and removes frame object.
+     */
+    private void restoreFrameStack(FrameLayout layout) {
+        final Frame<?> frame = currentFrame();
+        final boolean hasFrameObject = layout.className != null;
+        for (int i = 0; i < layout.stackFields.length; i++) {
+            BasicValue value = (BasicValue) frame.getStack(i);
+            if (isSkippedValue(value)) continue;
+            if (isNullValue(value)) {
+                mv.visitInsn(Opcodes.ACONST_NULL);
+                if (hasFrameObject) mv.visitInsn(Opcodes.SWAP);
             } else {
-                final int sort = local.getType().getSort();
-                switch (sort) {
-                    case Type.VOID:
-                    case Type.OBJECT:
-                    case Type.ARRAY:
-                        // Should be already processed in if (isReference()) case
-                        throw new AssertionError("This shouldn't happen");
-                    case Type.INT:
-                    case Type.SHORT:
-                    case Type.BYTE:
-                    case Type.BOOLEAN:
-                    case Type.CHAR:
-                        mv.visitVarInsn(Opcodes.ILOAD, i);
-                        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushInt", "(I)V", false);
-                        break;
-                    case Type.LONG:
-                        mv.visitVarInsn(Opcodes.LLOAD, i);
-                        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushLong", "(J)V", false);
-                        break;
-                    case Type.DOUBLE:
-                        mv.visitVarInsn(Opcodes.DLOAD, i);
-                        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushDouble", "(D)V", false);
-                        break;
-                    case Type.FLOAT:
-                        mv.visitVarInsn(Opcodes.FLOAD, i);
-                        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushFloat", "(F)V", false);
-                        break;
-                    default:
-                        throw new AssertionError("This shouldn't happen");
+                mv.visitInsn(Opcodes.DUP);
+                getFrameField(layout, layout.stackFields[i], value.getType());
+                // Move restored value under the frame object
+                if (value.getSize() == 2) {
+                    mv.visitInsn(Opcodes.DUP2_X1);
+                    mv.visitInsn(Opcodes.POP2);
+                } else {
+                    mv.visitInsn(Opcodes.SWAP);
                 }
             }
         }
+        if (hasFrameObject) mv.visitInsn(Opcodes.POP);
+    }
+
+    /**
+     * Saves stack bottom and locals into new frame object (replaces saveStackBottom() and saveLocals()).
+     */
+    private void saveFrame(FrameLayout layout, Type callingMethodReturnType) {
+        if (callingMethodReturnType.getSort() != Type.VOID) {
+            mv.visitInsn(callingMethodReturnType.getSize() == 2 ? Opcodes.POP2 : Opcodes.POP);
+        }
+        // Nothing to save, and values left on the stack will be discarded by return
+        if (layout.className == null) return;
+
+        newFrameObject(layout);
+        loadCoroUnderTop(Type.getType(Object.class));
+        invokeCoro("pushFrame", "(Ljava/lang/Object;)V");
+    }
+
+    /**
+     * Saves stack bottom and locals into new frame object, which is left on the top of stack
+     * (call result should be already removed).
+     */
+    private void newFrameObject(FrameLayout layout) {
+        final Frame<?> frame = currentFrame();
+        mv.visitTypeInsn(Opcodes.NEW, layout.className);
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, layout.className, "<init>", "()V", false);
+        // Frame object is on the top of stack, stack bottom values are under it
+        for (int i = layout.stackFields.length - 1; i >= 0; i--) {
+            BasicValue value = (BasicValue) frame.getStack(i);
+            if (layout.stackFields[i] == null) {
+                mv.visitInsn(Opcodes.SWAP);
+                mv.visitInsn(Opcodes.POP);
+            } else if (value.getSize() == 2) {
+                mv.visitInsn(Opcodes.DUP_X2);
+                mv.visitInsn(Opcodes.DUP_X2);
+                mv.visitInsn(Opcodes.POP);
+                putFrameField(layout, layout.stackFields[i], value.getType());
+            } else {
+                mv.visitInsn(Opcodes.DUP_X1);
+                mv.visitInsn(Opcodes.SWAP);
+                putFrameField(layout, layout.stackFields[i], value.getType());
+            }
+        }
+        for (int i = 0; i < layout.localFields.length; i++) {
+            if (layout.localFields[i] == null) continue;
+            BasicValue local = (BasicValue) frame.getLocal(i);
+            mv.visitInsn(Opcodes.DUP);
+            mv.visitVarInsn(local.getType().getOpcode(Opcodes.ILOAD), i);
+            putFrameField(layout, layout.localFields[i], local.getType());
+        }
+    }
+
+    /**
+     * Saves stack bottom and locals into new frame object with state and "this", and pushes it
+     * by Coro.pushContinuation() (replaces saveFrame(), saveThis() and saveState() in continuations mode).
+     */
+    private void saveContinuation(FrameLayout layout, Type callingMethodReturnType, boolean unpatchable) {
+        if (callingMethodReturnType.getSort() != Type.VOID) {
+            mv.visitInsn(callingMethodReturnType.getSize() == 2 ? Opcodes.POP2 : Opcodes.POP);
+        }
+        newFrameObject(layout);
+        mv.visitInsn(Opcodes.DUP);
+        SaveHelperGenerator.pushInt(mv, restorePointsProcessed);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, "org/jcoro/Continuation", "state", "I");
+        if (!isStatic) {
+            mv.visitInsn(Opcodes.DUP);
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            mv.visitFieldInsn(Opcodes.PUTFIELD, "org/jcoro/Continuation", "self", "Ljava/lang/Object;");
+        } else if (analyzeResult.isRootLambda()) {
+            // Marks frame of root method, which is checked when coro is resumed (see saveThis())
+            mv.visitInsn(Opcodes.DUP);
+            mv.visitFieldInsn(Opcodes.GETSTATIC, "org/jcoro/Continuation", "ROOT_LAMBDA", "Ljava/lang/Object;");
+            mv.visitFieldInsn(Opcodes.PUTFIELD, "org/jcoro/Continuation", "self", "Ljava/lang/Object;");
+        }
+        if (unpatchable) {
+            mv.visitInsn(Opcodes.DUP);
+            mv.visitInsn(Opcodes.ICONST_1);
+            mv.visitFieldInsn(Opcodes.PUTFIELD, "org/jcoro/Continuation", "unpatchable", "Z");
+        }
+        loadCoroUnderTop(Type.getType(Object.class));
+        invokeCoro("pushContinuation", "(Lorg/jcoro/Continuation;)V");
     }
 
     private void saveThis() {
         if (!isStatic) {
             assert nextFrame().getLocals() >= 1; // At least one local ("this") should be present
+            loadCoro();
             mv.visitVarInsn(Opcodes.ALOAD, 0);
-            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushRef", "(Ljava/lang/Object;)V", false);
+            invokeCoro("saveRef", "(Ljava/lang/Object;)V");
         } else if (analyzeResult.isRootLambda()) {
             // Put extra NULL object to keep stack balanced when resuming
+            loadCoro();
             mv.visitInsn(Opcodes.ACONST_NULL);
-            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushRef", "(Ljava/lang/Object;)V", false);
+            invokeCoro("saveRef", "(Ljava/lang/Object;)V");
         }
     }
 
+    /**
+     * Saves number of restore point, through which the method is being unwinded.
+     */
+    private void saveState() {
+        loadCoro();
+        mv.visitLdcInsn(restorePointsProcessed);
+        invokeCoro("saveState", "(I)V");
+    }
+
+    /**
+     * Generates `if (coro == null || !coro.isYieldingNow()) goto noSaveContextLabel`.
+     */
+    private void visitNotYieldingJump(Label noSaveContextLabel) {
+        loadCoro();
+        mv.visitJumpInsn(Opcodes.IFNULL, noSaveContextLabel);
+        loadCoro();
+        invokeCoro("isYieldingNow", "()Z");
+        mv.visitJumpInsn(Opcodes.IFEQ, noSaveContextLabel);
+    }
+
+    /**
+     * Generates `if (parked == null) goto notParkedLabel; coro.pushContinuation(parked);`. Method, which is parked
+     * in recalled call, hasn't run since its frame has been saved, so the same frame is pushed again instead
+     * of saving new one (only frames of methods, which have actually run, are saved again).
+     */
+    private void pushParkedContinuation(Label notParkedLabel) {
+        mv.visitVarInsn(Opcodes.ALOAD, parkedLocal);
+        mv.visitJumpInsn(Opcodes.IFNULL, notParkedLabel);
+        loadCoro();
+        mv.visitVarInsn(Opcodes.ALOAD, parkedLocal);
+        invokeCoro("pushContinuation", "(Lorg/jcoro/Continuation;)V");
+    }
+
+    /**
+     * Generates `parked = null` after the call is completed (normally or by exception).
+     */
+    private void unpark() {
+        mv.visitInsn(Opcodes.ACONST_NULL);
+        mv.visitVarInsn(Opcodes.ASTORE, parkedLocal);
+        // Original frame following the call can't be skipped anymore
+        noInsnsSinceLastFrame = false;
+    }
+
     private void returnDefault() {
         visitLdcDefaultValueForType(returnType); // Push default value for return type
         //
@@ -593,15 +1084,29 @@ public class MethodAdapter extends MethodVisitor {
         visitCurrentFrameWithoutStack();
         tryCatchSplitInfo_1.label_1 = restoreLabels[restorePointsProcessed];
 
+        // Результат вызова в хвостовой позиции сразу возвращается: локальные переменные и дно стека
+        // не сохраняются и не восстанавливаются (дно стека пустое, см. MethodAnalyzer)
+        final boolean tail = analyzeResult.isTailRestorePointCall(insnIndex);
+        final FrameLayout frameLayout = frameClassGenerator != null && !tail
+                ? createFrameLayout(Type.getType(desc), opcode == Opcodes.INVOKESTATIC)
+                : null;
+        final BulkLayout bulkLayout = !tail ? createBulkLayout(Type.getReturnType(desc)) : null;
+
         // Restore execution context
         {
             boolean callingMethodIsStatic = (opcode == Opcodes.INVOKESTATIC);
             final Type callingMethodType = Type.getType(desc);
 
-            restoreLocals();
+            if (tail) {
+                // Locals are TOP in frame of the call, "this" is kept in its local
+            } else if (frameLayout != null) {
+                restoreFrame(frameLayout);
+            } else {
+                restoreLocals();
 
-            // Восстанавливаем дно стека (стек операндов, за исключением аргументов подготавливаемого вызова)
-            restoreStackBottom(callingMethodType, callingMethodIsStatic);
+                // Восстанавливаем дно стека (стек операндов, за исключением аргументов подготавливаемого вызова)
+                restoreStackBottom(callingMethodType, callingMethodIsStatic);
+            }
 
             // Восстанавливаем instance для вызова, если метод - экземплярный
             if (!callingMethodIsStatic) restoreInstance(callingMethodType);
@@ -615,7 +1120,11 @@ public class MethodAdapter extends MethodVisitor {
 
         // Сюда приходим сразу, если нет необходимости восстанавливать стек
         mv.visitLabel(noActiveCoroLabel);
-        putFrame(currentFrame());
+        if (tail) {
+            putTailFrame(currentFrame());
+        } else {
+            putFrame(currentFrame());
+        }
 
         // Original call
         super.visitMethodInsn(opcode, owner, name, desc, itf);
@@ -624,32 +1133,175 @@ public class MethodAdapter extends MethodVisitor {
         mv.visitLabel(afterCallLabel);
         tryCatchSplitInfo_2.label_1 = afterCallLabel;
 
-        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "isYielding", "()Z", false);
         Label noSaveContextLabel = new Label();
         tryCatchSplitInfo_2.label_2 = noSaveContextLabel;
-        mv.visitJumpInsn(Opcodes.IFEQ, noSaveContextLabel);
+        visitNotYieldingJump(noSaveContextLabel);
 
         // Save execution context
         {
-            // Save stack first
-            saveStackBottom(Type.getReturnType(desc));
+            if (bulkLayout != null) {
+                // Save stack, locals, "this" and state by one helper call
+                saveBulk(bulkLayout, Type.getReturnType(desc));
+            } else {
+                if (tail) {
+                    // Nothing to save except "this" and state, returned value is not needed
+                    final Type callingMethodReturnType = Type.getReturnType(desc);
+                    if (callingMethodReturnType.getSort() != Type.VOID) {
+                        mv.visitInsn(callingMethodReturnType.getSize() == 2 ? Opcodes.POP2 : Opcodes.POP);
+                    }
+                } else if (frameLayout != null) {
+                    // Save stack and locals as single frame object
+                    saveFrame(frameLayout, Type.getReturnType(desc));
+                } else {
+                    // Save stack first
+                    saveStackBottom(Type.getReturnType(desc));
 
-            // Second save locals
-            saveLocals();
+                    // Second save locals
+                    saveLocals();
+                }
 
-            // Finally, save "this" if method is instance method
-            saveThis();
+                // Finally, save "this" if method is instance method
+                saveThis();
 
-            // Save the state
-            mv.visitLdcInsn(restorePointsProcessed);
-            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushState", "(I)V", false);
+                // Save the state
+                saveState();
+            }
 
             // And return 0 or null
             returnDefault();
         }
 
+        mv.visitLabel(noSaveContextLabel);
+        if (tail) {
+            putTailFrame(nextFrame());
+        } else {
+            putFrame(nextFrame());
+        }
+
+        tryCatchExcludeBlocks.add(tryCatchSplitInfo_1);
+        tryCatchExcludeBlocks.add(tryCatchSplitInfo_2);
+        restorePointsProcessed++;
+    }
+
+    /**
+     * Restore point call in continuations mode. When method is resumed by its frame, locals and stack bottom
+     * are restored, and result of callee (which has been continued already) is pushed instead of calling it.
+     * Exception thrown by callee is rethrown at the place of the call (so it is caught by try-catch blocks
+     * of the call). If callee should be called again (see Coro.isRecallingCall()), it's called as in
+     * classic mode, but on "this" saved in its frame.
+     */
+    private void visitMethodInsnContinuation(int opcode, String owner, String name, String desc, boolean itf) {
+        // Блок восстановления контекста исключается из try-catch блоков до инструкции athrow,
+        // которая перебрасывает исключение вызванного метода (она должна быть внутри них)
+        TryCatchExcludeBlock tryCatchSplitInfo_1 = new TryCatchExcludeBlock();
+        TryCatchExcludeBlock tryCatchSplitInfo_2 = new TryCatchExcludeBlock();
+
+        final boolean callingMethodIsStatic = (opcode == Opcodes.INVOKESTATIC);
+        final Type callingMethodType = Type.getType(desc);
+
+        Label noActiveCoroLabel = new Label();
+        mv.visitJumpInsn(Opcodes.GOTO, noActiveCoroLabel);
+
+        // label_i:
+        mv.visitLabel(restoreLabels[restorePointsProcessed]);
+        visitCurrentFrameWithContinuation();
+        tryCatchSplitInfo_1.label_1 = restoreLabels[restorePointsProcessed];
+
+        final FrameLayout frameLayout = createFrameLayout(callingMethodType, callingMethodIsStatic);
+        final Label noSaveContextLabel = new Label();
+        final Label recallLabel = new Label();
+        final Label throwLabel = new Label();
+
+        // Restore execution context
+        {
+            mv.visitTypeInsn(Opcodes.CHECKCAST, frameLayout.className);
+            restoreFrameLocals(frameLayout);
+
+            // if (coro.takeResumeException() != null) goto throwLabel
+            loadCoro();
+            invokeCoro("takeResumeException", "()Ljava/lang/Throwable;");
+            mv.visitInsn(Opcodes.DUP);
+            mv.visitJumpInsn(Opcodes.IFNONNULL, throwLabel);
+            mv.visitInsn(Opcodes.POP);
+
+            loadCoro();
+            invokeCoro("isRecallingCall", "()Z");
+            mv.visitJumpInsn(Opcodes.IFNE, recallLabel);
+
+            // Continue after the call with result of callee
+            restoreFrameStack(frameLayout);
+            loadCoro();
+            invokeCoro("takeResumeResult", "()Ljava/lang/Object;");
+            FrameClassGenerator.unbox(mv, callingMethodType.getReturnType());
+            mv.visitJumpInsn(Opcodes.GOTO, noSaveContextLabel);
+
+            // Call callee again (with default args, it restores itself); method is parked in the call
+            mv.visitLabel(recallLabel);
+            putLocalsFrame(currentFrame(), frameLayout.className);
+            mv.visitInsn(Opcodes.DUP);
+            mv.visitVarInsn(Opcodes.ASTORE, parkedLocal);
+            restoreFrameStack(frameLayout);
+            if (!callingMethodIsStatic) {
+                final Frame<?> frame = currentFrame();
+                final BasicValue instance = (BasicValue) frame.getStack(
+                        frame.getStackSize() - 1 - callingMethodType.getArgumentTypes().length);
+                loadCoro();
+                invokeCoro("recallInstance", "()Ljava/lang/Object;");
+                mv.visitTypeInsn(Opcodes.CHECKCAST, instance.getType().getInternalName());
+            }
+            for (Type argumentType : callingMethodType.getArgumentTypes()) {
+                visitLdcDefaultValueForType(argumentType);
+            }
+            mv.visitJumpInsn(Opcodes.GOTO, noActiveCoroLabel);
+        }
+
+        // throw exception of callee
+        mv.visitLabel(throwLabel);
+        putLocalsFrame(currentFrame(), frameLayout.className, "java/lang/Throwable");
+        tryCatchSplitInfo_1.label_2 = throwLabel;
+        mv.visitInsn(Opcodes.ATHROW);
+
+        // Сюда приходим сразу, если нет необходимости восстанавливать стек
+        mv.visitLabel(noActiveCoroLabel);
+        putFrame(currentFrame());
+
+        Label beforeCallLabel = new Label();
+        mv.visitLabel(beforeCallLabel);
+
+        // Original call
+        super.visitMethodInsn(opcode, owner, name, desc, itf);
+
+        Label afterCallLabel = new Label();
+        mv.visitLabel(afterCallLabel);
+        tryCatchSplitInfo_2.label_1 = afterCallLabel;
+        tryCatchSplitInfo_2.label_2 = noSaveContextLabel;
+        visitNotYieldingJump(noSaveContextLabel);
+
+        // Frame of parked method is pushed again, otherwise execution context is saved; return 0 or null
+        Label notParkedLabel = new Label();
+        pushParkedContinuation(notParkedLabel);
+        returnDefault();
+        mv.visitLabel(notParkedLabel);
+        putFrame(nextFrame());
+        saveContinuation(frameLayout, callingMethodType.getReturnType(), false);
+        returnDefault();
+
+        if (!tryCatchBlocks.isEmpty()) {
+            // Method can catch exception of callee and continue, so it isn't parked after that
+            Label exceptionLabel = new Label();
+            mv.visitLabel(exceptionLabel);
+            putLocalsFrame(currentFrame(), "java/lang/Throwable");
+            unpark();
+            Label rethrowLabel = new Label();
+            mv.visitLabel(rethrowLabel);
+            mv.visitInsn(Opcodes.ATHROW);
+            tryCatchSplitInfo_2.label_2 = rethrowLabel;
+            mv.visitTryCatchBlock(beforeCallLabel, afterCallLabel, exceptionLabel, "java/lang/Throwable");
+        }
+
         mv.visitLabel(noSaveContextLabel);
         putFrame(nextFrame());
+        unpark();
 
         tryCatchExcludeBlocks.add(tryCatchSplitInfo_1);
         tryCatchExcludeBlocks.add(tryCatchSplitInfo_2);
@@ -662,34 +1314,7 @@ public class MethodAdapter extends MethodVisitor {
     private void restoreArgs(Type callingMethodType) {
         final Type[] argumentTypes = callingMethodType.getArgumentTypes();
         for (Type argumentType : argumentTypes) {
-            final int sort = argumentType.getSort();
-            switch (sort) {
-                case Type.VOID:
-                case Type.OBJECT:
-                case Type.ARRAY:
-                    final String typeDescriptor = argumentType.getDescriptor();
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "popRef", "()Ljava/lang/Object;", false);
-                    mv.visitTypeInsn(Opcodes.CHECKCAST, typeDescriptor);
-                    break;
-                case Type.INT:
-                case Type.SHORT:
-                case Type.BYTE:
-                case Type.BOOLEAN:
-                case Type.CHAR:
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "popInt", "()I", false);
-                    break;
-                case Type.LONG:
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "popLong", "()J", false);
-                    break;
-                case Type.DOUBLE:
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "popDouble", "()D", false);
-                    break;
-                case Type.FLOAT:
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "popFloat", "()F", false);
-                    break;
-                default:
-                    throw new AssertionError("This shouldn't happen");
-            }
+            restoreValue(argumentType);
         }
     }
 
@@ -697,14 +1322,14 @@ public class MethodAdapter extends MethodVisitor {
      * Each argument for calling method should be copied into temporary unpatchable storage.
      * Unpatchable storage is represented by 5 stacks: refs, ints, longs, floats and doubles.
      * After copying we should restore original args set in the frame stack (to call the method).
-     * To do this, we can use peekSomethingFromUnpatchable(int offset) method, and we need to know,
+     * To do this, we can use peekUnpatchableSomething(int offset) method, and we need to know,
      * where concrete argument is placed inside one of unpatchable stack. This function returns
      * array of offsets that can be used to retrieve args back.
      *
      * offsets[0] corresponds to first argument
      * last offsets item corresponds to instance of object to call (if method is not static)
      *
-     * For example to retrieve the first arg, call peekRefFromUnpatchable(offsets[0]).
+     * For example to retrieve the first arg, call peekUnpatchableRef(offsets[0]).
      */
     private int[] calculateUnpatchableOffsets(Type[] argumentTypes, boolean callingMethodIsStatic) {
         int[] offsets = new int[argumentTypes.length + (callingMethodIsStatic ? 0 : 1)];
@@ -717,28 +1342,20 @@ public class MethodAdapter extends MethodVisitor {
         int _doublesStackDepth = stackDepth.doublesStackDepth;
 
         for (int i = argumentTypes.length - 1; i >= 0; i--) {
-            Type argumentType = argumentTypes[i];
-            final int sort = argumentType.getSort();
-            switch (sort) {
-                case Type.VOID:
-                case Type.OBJECT:
-                case Type.ARRAY:
+            switch (storageKind(argumentTypes[i])) {
+                case "Ref":
                     offsets[i] = --_refsStackDepth;
                     break;
-                case Type.INT:
-                case Type.SHORT:
-                case Type.BYTE:
-                case Type.BOOLEAN:
-                case Type.CHAR:
+                case "Int":
                     offsets[i] = --_intsStackDepth;
                     break;
-                case Type.LONG:
+                case "Long":
                     offsets[i] = --_longsStackDepth;
                     break;
-                case Type.FLOAT:
+                case "Float":
                     offsets[i] = --_floatsStackDepth;
                     break;
-                case Type.DOUBLE:
+                case "Double":
                     offsets[i] = --_doublesStackDepth;
                     break;
                 default:
@@ -748,53 +1365,33 @@ public class MethodAdapter extends MethodVisitor {
         return offsets;
     }
 
+    /**
+     * Generates coro.peekUnpatchableXxx(offset) call.
+     */
+    private void peekUnpatchable(Type type, int offset) {
+        final String kind = storageKind(type);
+        loadCoro();
+        mv.visitLdcInsn(offset);
+        invokeCoro("peekUnpatchable" + kind, "(I)" + storageDescriptor(kind));
+    }
+
     /**
      * Saves the args in Coro's main storage, by copying them from unpatchable storage.
      */
     private void saveArgs(Type[] argumentTypes, int[] offsets, boolean callingMethodIsStatic) {
         // Перекладываем аргументы из unpatchable storage в обычный storage
-        for (int i = 0; i < argumentTypes.length; i++) {
+        // При восстановлении аргументы извлекаются начиная с первого, поэтому сохраняем с последнего
+        for (int i = argumentTypes.length - 1; i >= 0; i--) {
             Type argumentType = argumentTypes[i];
-            final int sort = argumentType.getSort();
-            //
-            mv.visitLdcInsn(offsets[i]);
-            //
-            switch (sort) {
-                case Type.VOID:
-                case Type.OBJECT:
-                case Type.ARRAY:
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "peekRefFromUnpatchable", "(I)Ljava/lang/Object;", false);
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushRef", "(Ljava/lang/Object;)V", false);
-                    break;
-                case Type.INT:
-                case Type.SHORT:
-                case Type.BYTE:
-                case Type.BOOLEAN:
-                case Type.CHAR:
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "peekIntFromUnpatchable", "(I)I", false);
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushInt", "(I)V", false);
-                    break;
-                case Type.LONG:
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "peekLongFromUnpatchable", "(I)J", false);
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushLong", "(J)V", false);
-                    break;
-                case Type.FLOAT:
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "peekFloatFromUnpatchable", "(I)F", false);
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushFloat", "(F)V", false);
-                    break;
-                case Type.DOUBLE:
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "peekDoubleFromUnpatchable", "(I)D", false);
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushDouble", "(D)V", false);
-                    break;
-                default:
-                    throw new AssertionError("This shouldn't happen");
-            }
+            loadCoro();
+            peekUnpatchable(argumentType, offsets[i]);
+            invokeSave(argumentType);
         }
 
         if (!callingMethodIsStatic) {
-            mv.visitLdcInsn(0);
-            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "peekRefFromUnpatchable", "(I)Ljava/lang/Object;", false);
-            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushRef", "(Ljava/lang/Object;)V", false);
+            loadCoro();
+            peekUnpatchable(Type.getType(Object.class), 0);
+            invokeCoro("saveRef", "(Ljava/lang/Object;)V");
         }
     }
 
@@ -810,27 +1407,20 @@ public class MethodAdapter extends MethodVisitor {
         StackDepthInfo info = new StackDepthInfo();
 
         for (Type argumentType : argumentTypes) {
-            final int sort = argumentType.getSort();
-            switch (sort) {
-                case Type.VOID:
-                case Type.OBJECT:
-                case Type.ARRAY:
+            switch (storageKind(argumentType)) {
+                case "Ref":
                     info.refsStackDepth++;
                     break;
-                case Type.INT:
-                case Type.SHORT:
-                case Type.BYTE:
-                case Type.BOOLEAN:
-                case Type.CHAR:
+                case "Int":
                     info.intsStackDepth++;
                     break;
-                case Type.LONG:
+                case "Long":
                     info.longsStackDepth++;
                     break;
-                case Type.FLOAT:
+                case "Float":
                     info.floatsStackDepth++;
                     break;
-                case Type.DOUBLE:
+                case "Double":
                     info.doublesStackDepth++;
                     break;
                 default:
@@ -850,12 +1440,13 @@ public class MethodAdapter extends MethodVisitor {
     private void cleanUnpatchablesFrame(Type[] argumentTypes, boolean callingMethodIsStatic) {
         StackDepthInfo stackDepth = calculateStackDepth(argumentTypes, callingMethodIsStatic);
 
+        loadCoro();
         mv.visitLdcInsn(stackDepth.refsStackDepth);
         mv.visitLdcInsn(stackDepth.intsStackDepth);
         mv.visitLdcInsn(stackDepth.longsStackDepth);
         mv.visitLdcInsn(stackDepth.floatsStackDepth);
         mv.visitLdcInsn(stackDepth.doublesStackDepth);
-        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "cleanupUnpatchableFrame", "(IIIII)V", false);
+        invokeCoro("dropUnpatchableFrame", "(IIIII)V");
     }
 
     private void saveArgsInTempStorage(Type[] argumentTypes, boolean callingMethodIsStatic,
@@ -863,74 +1454,25 @@ public class MethodAdapter extends MethodVisitor {
         // Save args and instance to temporary storage
         for (int i = argumentTypes.length - 1; i >= 0; i--) {
             Type argumentType = argumentTypes[i];
-            final int sort = argumentType.getSort();
-            switch (sort) {
-                case Type.VOID:
-                case Type.OBJECT:
-                case Type.ARRAY:
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushRefToUnpatchable", "(Ljava/lang/Object;)V", false);
-                    break;
-                case Type.INT:
-                case Type.SHORT:
-                case Type.BYTE:
-                case Type.BOOLEAN:
-                case Type.CHAR:
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushIntToUnpatchable", "(I)V", false);
-                    break;
-                case Type.LONG:
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushLongToUnpatchable", "(J)V", false);
-                    break;
-                case Type.FLOAT:
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushFloatToUnpatchable", "(F)V", false);
-                    break;
-                case Type.DOUBLE:
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushDoubleToUnpatchable", "(D)V", false);
-                    break;
-                default:
-                    throw new AssertionError("This shouldn't happen");
-            }
+            final String kind = storageKind(argumentType);
+            loadCoroUnderTop(argumentType);
+            invokeCoro("saveUnpatchable" + kind, "(" + storageDescriptor(kind) + ")V");
         }
         if (!callingMethodIsStatic) {
-            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushRefToUnpatchable", "(Ljava/lang/Object;)V", false);
+            loadCoroUnderTop(Type.getType(Object.class));
+            invokeCoro("saveUnpatchableRef", "(Ljava/lang/Object;)V");
         }
 
         // Copy instance and args back to the frame stack
         if (!callingMethodIsStatic) {
-            mv.visitLdcInsn(0);
-            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "peekRefFromUnpatchable", "(I)Ljava/lang/Object;", false);
+            peekUnpatchable(Type.getType(Object.class), 0);
             mv.visitTypeInsn(Opcodes.CHECKCAST, owner);
         }
         for (int i = 0; i < argumentTypes.length; i++) {
             Type argumentType = argumentTypes[i];
-            final int sort = argumentType.getSort();
-            //
-            mv.visitLdcInsn(offsets[i]);
-            //
-            switch (sort) {
-                case Type.VOID:
-                case Type.OBJECT:
-                case Type.ARRAY:
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "peekRefFromUnpatchable", "(I)Ljava/lang/Object;", false);
-                    mv.visitTypeInsn(Opcodes.CHECKCAST, argumentType.getDescriptor());
-                    break;
-                case Type.INT:
-                case Type.SHORT:
-                case Type.BYTE:
-                case Type.BOOLEAN:
-                case Type.CHAR:
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "peekIntFromUnpatchable", "(I)I", false);
-                    break;
-                case Type.LONG:
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "peekLongFromUnpatchable", "(I)J", false);
-                    break;
-                case Type.FLOAT:
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "peekFloatFromUnpatchable", "(I)F", false);
-                    break;
-                case Type.DOUBLE:
-                    mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "peekDoubleFromUnpatchable", "(I)D", false);
-                    break;
-                default:
-                    throw new AssertionError("This shouldn't happen");
+            peekUnpatchable(argumentType, offsets[i]);
+            if (argumentType.getSort() == Type.OBJECT || argumentType.getSort() == Type.ARRAY) {
+                mv.visitTypeInsn(Opcodes.CHECKCAST, argumentType.getInternalName());
             }
         }
     }
@@ -946,17 +1488,38 @@ public class MethodAdapter extends MethodVisitor {
 
         excludeBlock.label_1 = restoreLabels[restorePointsProcessed];
 
-        visitCurrentFrameWithoutStack();
+        if (continuations) {
+            visitCurrentFrameWithContinuation();
+        } else {
+            visitCurrentFrameWithoutStack();
+        }
+
+        final FrameLayout frameLayout = frameClassGenerator != null
+                ? createFrameLayout(Type.getType(desc), opcode == Opcodes.INVOKESTATIC)
+                : null;
+        final BulkLayout bulkLayout = createBulkLayout(Type.getReturnType(desc));
 
         // Restore execution context
         {
             boolean callingMethodIsStatic = (opcode == Opcodes.INVOKESTATIC);
             final Type callingMethodType = Type.getType(desc);
 
-            restoreLocals();
+            if (continuations) {
+                // Frame object is on the stack; unpatchable method is always called again, and method
+                // is parked in the call
+                mv.visitTypeInsn(Opcodes.CHECKCAST, frameLayout.className);
+                mv.visitInsn(Opcodes.DUP);
+                mv.visitVarInsn(Opcodes.ASTORE, parkedLocal);
+                restoreFrameLocals(frameLayout);
+                restoreFrameStack(frameLayout);
+            } else if (frameLayout != null) {
+                restoreFrame(frameLayout);
+            } else {
+                restoreLocals();
 
-            // Восстанавливаем дно стека
-            restoreStackBottom(callingMethodType, callingMethodIsStatic);
+                // Восстанавливаем дно стека
+                restoreStackBottom(callingMethodType, callingMethodIsStatic);
+            }
 
             // Восстанавливаем instance для вызова, если метод - экземплярный
             if (!callingMethodIsStatic) restoreInstance(callingMethodType);
@@ -965,8 +1528,12 @@ public class MethodAdapter extends MethodVisitor {
             restoreArgs(callingMethodType);
 
             // Устанавливаем флаг того, что мы вызываем unpatchable метод
-            mv.visitLdcInsn(1);
-            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "setUnpatchableCall", "(Z)V", false);
+            // (в режиме continuations методы не сохраняют "this" в стеке, флаг не нужен)
+            if (!continuations) {
+                loadCoro();
+                mv.visitLdcInsn(1);
+                invokeCoro("setUnpatchableCallFlag", "(Z)V");
+            }
         }
 
         // Сюда приходим сразу, если нет необходимости восстанавливать стек
@@ -992,30 +1559,52 @@ public class MethodAdapter extends MethodVisitor {
         Label afterCallLabel = new Label();
         mv.visitLabel(afterCallLabel);
 
-        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "isYielding", "()Z", false);
         Label noSaveContextLabel = new Label();
-        mv.visitJumpInsn(Opcodes.IFEQ, noSaveContextLabel);
+        visitNotYieldingJump(noSaveContextLabel);
 
         // Save execution context
-        {
+        if (continuations) {
+            // Frame is pushed before args: the first pushed frame drops "this" saved by yield().
+            // Frame of parked method is pushed again, but args are saved anyway (they are restored each time)
+            Label notParkedLabel = new Label();
+            pushParkedContinuation(notParkedLabel);
+            saveArgs(argumentTypes, offsets, callingMethodIsStatic);
+            cleanUnpatchablesFrame(argumentTypes, callingMethodIsStatic);
+            returnDefault();
+            mv.visitLabel(notParkedLabel);
+            putFrame(nextFrame());
+            saveContinuation(frameLayout, Type.getReturnType(desc), true);
+            saveArgs(argumentTypes, offsets, callingMethodIsStatic);
+            cleanUnpatchablesFrame(argumentTypes, callingMethodIsStatic);
+            returnDefault();
+        } else {
             // Save args of calling unpatchable method
             saveArgs(argumentTypes, offsets, callingMethodIsStatic);
 
             // Clean the used space in unpatchables storage
             cleanUnpatchablesFrame(argumentTypes, callingMethodIsStatic);
 
-            // Save stack
-            saveStackBottom(Type.getReturnType(desc));
+            if (bulkLayout != null) {
+                // Save stack, locals, "this" and state by one helper call
+                saveBulk(bulkLayout, Type.getReturnType(desc));
+            } else {
+                if (frameLayout != null) {
+                    // Save stack and locals as single frame object
+                    saveFrame(frameLayout, Type.getReturnType(desc));
+                } else {
+                    // Save stack
+                    saveStackBottom(Type.getReturnType(desc));
 
-            // Save locals
-            saveLocals();
+                    // Save locals
+                    saveLocals();
+                }
 
-            // Save "this" if method is instance method
-            saveThis();
+                // Save "this" if method is instance method
+                saveThis();
 
-            // Save the state
-            mv.visitLdcInsn(restorePointsProcessed);
-            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "pushState", "(I)V", false);
+                // Save the state
+                saveState();
+            }
 
             // And return 0 or null
             returnDefault();
@@ -1024,15 +1613,17 @@ public class MethodAdapter extends MethodVisitor {
         putFrame(nextFrame());
 
         cleanUnpatchablesFrame(argumentTypes, callingMethodIsStatic);
+        if (continuations) unpark();
 
         Label noExceptionLabel = new Label();
         mv.visitJumpInsn(Opcodes.GOTO, noExceptionLabel);
 
         Label exceptionLabel = new Label();
         mv.visitLabel(exceptionLabel);
-        putFrame(nextFrame(), "Ljava/lang/Throwable;");
+        putFrame(nextFrame(), "java/lang/Throwable");
 
         cleanUnpatchablesFrame(argumentTypes, callingMethodIsStatic);
+        if (continuations) unpark();
 
         Label endNoExceptionsBlockLabel = new Label();
         mv.visitLabel(endNoExceptionsBlockLabel);
@@ -1044,7 +1635,7 @@ public class MethodAdapter extends MethodVisitor {
         excludeBlock.label_2 = endNoExceptionsBlockLabel;
 
         // All exceptions from original call are rethrowed after cleaning unpatchables frame
-        mv.visitTryCatchBlock(beforeCallLabel, afterCallLabel, exceptionLabel, "Ljava/lang/Throwable;");
+        mv.visitTryCatchBlock(beforeCallLabel, afterCallLabel, exceptionLabel, "java/lang/Throwable");
 
         restorePointsProcessed++;
     }
@@ -1061,9 +1652,14 @@ public class MethodAdapter extends MethodVisitor {
             return;
         }
 
+        // Tail restore point calls save only "this" and state
+        if (continuations || !analyzeResult.isTailRestorePointCall(insnIndex))
+            countSavedValues(Type.getReturnType(desc));
         if (analyzeResult.getUnpatchableRestorePoints() != null &&
                 analyzeResult.getUnpatchableRestorePoints().contains(callingMethodId)) {
             visitMethodInsnUnpatchable(opcode, owner, name, desc, itf);
+        } else if (continuations) {
+            visitMethodInsnContinuation(opcode, owner, name, desc, itf);
         } else {
             visitMethodInsnPatchable(opcode, owner, name, desc, itf);
         }
@@ -1073,7 +1669,8 @@ public class MethodAdapter extends MethodVisitor {
 
     @Override
     public void visitMaxs(int maxStack, int maxLocals) {
-        super.visitMaxs(maxStack, maxLocals);
+        // Synthetic locals are placed after all original locals
+        super.visitMaxs(maxStack, Math.max(maxLocals, (continuations ? parkedLocal : coroLocal) + 1));
     }
 
     @Override
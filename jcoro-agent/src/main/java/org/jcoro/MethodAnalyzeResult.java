@@ -3,29 +3,51 @@ package org.jcoro;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.analysis.Frame;
 
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Set;
 
 /**
+ * Результат анализа метода. Хранит состояния фрейма не для всех инструкций, а только для тех,
+ * которые нужны при инструментировании (вход в метод, вызовы точек восстановления и следующие за ними
+ * инструкции, существующие фреймы), - полные массивы фреймов больших методов занимают много памяти,
+ * а результаты анализа всех методов класса живут до окончания его инструментирования.
+ *
  * @author elwood
  */
 public class MethodAnalyzeResult {
     private final int restorePointCallsCount;
     private final Set<MethodId> restorePoints; // Can be null, if no restore points were found
     private final Set<MethodId> unpatchableRestorePoints; // Can be null, if no unpatchable restore points were found
-    private final Frame[] frames;
+    private final int[] frameIndexes; // Sorted indexes of instructions, for which frames are kept
+    private final Frame<?>[] frames; // Parallel to frameIndexes
+    private final BitSet[] liveLocals; // Parallel to frameIndexes, kept only for restore point calls
+    private final BitSet tailRestorePointCallIndexes;
     private final AbstractInsnNode[] insns;
     private final boolean rootLambda;
 
     public MethodAnalyzeResult(int restorePointCallsCount,
                                Set<MethodId> restorePoints,
                                Set<MethodId> unpatchableRestorePoints,
-                               Frame[] frames,
+                               Frame<?>[] frames,
+                               BitSet[] liveLocals,
+                               BitSet usedFrames,
+                               BitSet restorePointCallIndexes,
+                               BitSet tailRestorePointCallIndexes,
                                AbstractInsnNode[] insns,
                                boolean rootLambda) {
         this.restorePointCallsCount = restorePointCallsCount;
         this.restorePoints = restorePoints;
         this.unpatchableRestorePoints = unpatchableRestorePoints;
-        this.frames = frames;
+        // Копируем только используемые фреймы, полные массивы после этого не нужны
+        this.frameIndexes = usedFrames.stream().toArray();
+        this.frames = new Frame<?>[frameIndexes.length];
+        this.liveLocals = new BitSet[frameIndexes.length];
+        for (int i = 0; i < frameIndexes.length; i++) {
+            this.frames[i] = frames[frameIndexes[i]];
+            if (restorePointCallIndexes.get(frameIndexes[i])) this.liveLocals[i] = liveLocals[frameIndexes[i]];
+        }
+        this.tailRestorePointCallIndexes = tailRestorePointCallIndexes;
         this.insns = insns;
         this.rootLambda = rootLambda;
     }
@@ -55,16 +77,39 @@ public class MethodAnalyzeResult {
     }
 
     /**
-     * Массив состояний фрейма. Размер массива равен количеству инструкций в теле метода.
-     * Таким образом, для каждой инструкции есть состояние фрейма.
+     * Состояние фрейма перед инструкцией с указанным индексом. Доступно только для входа в метод,
+     * вызовов точек восстановления и следующих за ними инструкций, а также для инструкций FRAME.
      */
-    public Frame[] getFrames() {
-        return frames;
+    public Frame<?> getFrame(int insnIndex) {
+        return frames[keptIndex(insnIndex)];
     }
 
     /**
-     * Массив инструкций. Размер массива равен размеру массива frames.
-     * (Параллельные массивы).
+     * Множество живых локальных переменных перед вызовом точки восстановления с указанным индексом.
+     * Переменная живая, если её значение может быть прочитано после этой инструкции.
+     */
+    public BitSet getLiveLocals(int insnIndex) {
+        final BitSet result = liveLocals[keptIndex(insnIndex)];
+        if (result == null) throw new IllegalStateException("Live locals are not kept for instruction " + insnIndex);
+        return result;
+    }
+
+    /**
+     * True, если вызов точки восстановления с указанным индексом находится в хвостовой позиции
+     * (его результат сразу возвращается из метода, см. MethodAnalyzer).
+     */
+    public boolean isTailRestorePointCall(int insnIndex) {
+        return tailRestorePointCallIndexes.get(insnIndex);
+    }
+
+    private int keptIndex(int insnIndex) {
+        final int index = Arrays.binarySearch(frameIndexes, insnIndex);
+        if (index < 0) throw new IllegalStateException("Frame is not kept for instruction " + insnIndex);
+        return index;
+    }
+
+    /**
+     * Массив инструкций метода (индексы инструкций соответствуют индексам в getFrame()).
      */
     public AbstractInsnNode[] getInsns() {
         return insns;
@@ -4,7 +4,10 @@ import org.objectweb.asm.*;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.AnnotationNode;
 import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodInsnNode;
 import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
 import org.objectweb.asm.tree.analysis.*;
 import org.objectweb.asm.tree.analysis.Frame;
 
@@ -17,16 +20,19 @@ import static java.util.stream.Collectors.toList;
  * Получает для переданного метода количество точек восстановления и два параллельных массива:
  * массив состояний фрейма и массив инструкций (каждой инструкции соответствует состояние фрейма).
  *
+ * Метод анализируется по уже прочитанному дереву (MethodNode), поэтому класс не нужно разбирать
+ * ещё раз для каждого прохода.
+ *
  * Собранные данные записываются в мапы только в случае, если метод помечен аннотацией @Async.
  *
  * @author elwood
  */
-public class MethodAnalyzer extends MethodVisitor {
+public class MethodAnalyzer {
     private final MethodNode mn;
     private final String owner;
     private final MethodId methodId;
 
-    private final ClassLoader classLoader;
+    private final ClassHierarchy classHierarchy;
 
     private List<Await> declaredRestorePoints;
     private boolean rootLambda;
@@ -38,18 +44,15 @@ public class MethodAnalyzer extends MethodVisitor {
     private Set<MethodId> restorePoints; // Set of found restore points
     private Set<MethodId> unpatchableRestorePoints; // Set of restore points marked with unpatchable=true flag
 
-    public MethodAnalyzer(int api, int access, String owner, String name, String desc, String signature,
-                          String[] exceptions,
+    public MethodAnalyzer(String owner, MethodNode mn,
                           Map<MethodId, MethodAnalyzeResult> resultMap,
-                          ClassLoader classLoader,
+                          ClassHierarchy classHierarchy,
                           AsyncLambdaInfo asyncLambdaInfo) { // This parameter is passed when method is lambda
-        super(api, new MethodNode(Opcodes.ASM5, access, name, desc, signature, exceptions));
-        //
-        this.mn = (MethodNode) super.mv;
+        this.mn = mn;
         this.owner = owner;
-        this.classLoader = classLoader;
+        this.classHierarchy = classHierarchy;
         //
-        this.methodId = new MethodId(owner, name, desc);
+        this.methodId = new MethodId(owner, mn.name, mn.desc);
         // output
         this.resultMap = resultMap;
 
@@ -61,30 +64,17 @@ public class MethodAnalyzer extends MethodVisitor {
             // (INonRootCoroRunnable extends ICoroRunnable) and use it instead of ICoroRunnable.
             this.rootLambda = asyncLambdaInfo.getDesc().endsWith(")Lorg/jcoro/ICoroRunnable;");
         }
-    }
-
-    @Override
-    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
-        if ("Lorg/jcoro/Async;".equals(desc)) {
-            return new AnnotationNode(Opcodes.ASM5, desc) {
-                @Override
-                public void visitEnd() {
-                    assert "value".equals(this.values.get(0));
-                    List<AnnotationNode> restorePoints = (List<AnnotationNode>) this.values.get(1);
+        if (mn.visibleAnnotations != null) {
+            for (AnnotationNode annotation : mn.visibleAnnotations) {
+                if ("Lorg/jcoro/Async;".equals(annotation.desc)) {
+                    assert "value".equals(annotation.values.get(0));
+                    List<AnnotationNode> restorePoints = (List<AnnotationNode>) annotation.values.get(1);
                     declaredRestorePoints = Helpers.parseAwaitAnnotations(restorePoints);
-                    super.visitEnd();
                 }
-            };
-        } else {
-            return super.visitAnnotation(desc, visible);
+            }
         }
     }
 
-    @Override
-    public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String desc, boolean visible) {
-        return super.visitTypeAnnotation(typeRef, typePath, desc, visible);
-    }
-
     private Optional<Await> findInRestorePoints(MethodId callingMethodId) {
         if (declaredRestorePoints == null) return Optional.empty();
 
@@ -98,89 +88,102 @@ public class MethodAnalyzer extends MethodVisitor {
         }).findFirst();
     }
 
-    @Override
-    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
-        MethodId callingMethodId = new MethodId(owner, name, desc);
-        final Optional<Await> restorePointOptional = findInRestorePoints(callingMethodId);
-        if (restorePointOptional.isPresent()) {
-            if (null == restorePoints) restorePoints = new HashSet<>();
-            restorePoints.add(callingMethodId);
-            //
-            if (!restorePointOptional.get().patchable()) {
-                if (null == unpatchableRestorePoints) unpatchableRestorePoints = new HashSet<>();
-                unpatchableRestorePoints.add(callingMethodId);
+    // Indexes of restore point calls
+    private final BitSet restorePointCallIndexes = new BitSet();
+
+    private void findRestorePointCalls(AbstractInsnNode[] insns) {
+        for (int i = 0; i < insns.length; i++) {
+            if (insns[i].getType() != AbstractInsnNode.METHOD_INSN) continue;
+            final MethodInsnNode methodInsn = (MethodInsnNode) insns[i];
+            MethodId callingMethodId = new MethodId(methodInsn.owner, methodInsn.name, methodInsn.desc);
+            final Optional<Await> restorePointOptional = findInRestorePoints(callingMethodId);
+            if (restorePointOptional.isPresent()) {
+                if (null == restorePoints) restorePoints = new HashSet<>();
+                restorePoints.add(callingMethodId);
+                //
+                if (!restorePointOptional.get().patchable()) {
+                    if (null == unpatchableRestorePoints) unpatchableRestorePoints = new HashSet<>();
+                    unpatchableRestorePoints.add(callingMethodId);
+                }
+                //
+                restorePointCalls++;
+                restorePointCallIndexes.set(i);
             }
-            //
-            restorePointCalls++;
         }
-        //
-        super.visitMethodInsn(opcode, owner, name, desc, itf);
     }
 
-    private static class LocalVarInfo {
-        String name;
-        String desc;
-        String signature;
-        Label start;
-        Label end;
-        int index;
-
-        public LocalVarInfo(String name, String desc, String signature, Label start, Label end, int index) {
-            this.name = name;
-            this.desc = desc;
-            this.signature = signature;
-            this.start = start;
-            this.end = end;
-            this.index = index;
+    /**
+     * Находит вызовы точек восстановления в хвостовой позиции: результат вызова сразу возвращается из метода.
+     * После такого вызова локальные переменные и дно стека не нужны, поэтому при прерывании достаточно
+     * сохранить состояние (и "this"), а при восстановлении - восстановить только instance для вызова.
+     *
+     * Условия: вызов patchable, под аргументами вызова на стеке ничего нет, вызов не внутри try-catch блока
+     * (обработчику могут быть нужны локальные переменные), и метод не перезаписывает "this" - при восстановлении
+     * он берётся из нулевой локальной переменной, а не из сохранённого значения.
+     */
+    private BitSet findTailRestorePointCalls(AbstractInsnNode[] insns, Frame<?>[] frames) {
+        final BitSet result = new BitSet();
+        if ((mn.access & Opcodes.ACC_STATIC) == 0) {
+            for (AbstractInsnNode insn : insns) {
+                if (insn.getOpcode() == Opcodes.ASTORE && ((VarInsnNode) insn).var == 0) return result;
+            }
+        }
+        for (int i = restorePointCallIndexes.nextSetBit(0); i >= 0; i = restorePointCallIndexes.nextSetBit(i + 1)) {
+            final MethodInsnNode call = (MethodInsnNode) insns[i];
+            if (unpatchableRestorePoints != null
+                    && unpatchableRestorePoints.contains(new MethodId(call.owner, call.name, call.desc))) continue;
+            final int callStackSize = Type.getArgumentTypes(call.desc).length
+                    + (call.getOpcode() == Opcodes.INVOKESTATIC ? 0 : 1);
+            if (frames[i] == null || frames[i].getStackSize() != callStackSize) continue;
+            if (isInTryCatchBlock(i)) continue;
+            // Метки, номера строк и фреймы между вызовом и return не имеют значения
+            int next = i + 1;
+            while (next < insns.length && insns[next].getOpcode() < 0) next++;
+            // Для void-метода getOpcode(IRETURN) возвращает RETURN
+            if (next < insns.length
+                    && insns[next].getOpcode() == Type.getReturnType(call.desc).getOpcode(Opcodes.IRETURN)) {
+                result.set(i);
+            }
         }
+        return result;
     }
 
-    private List<LocalVarInfo> localVars = new ArrayList<>();
-
-    @Override
-    public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index) {
-        localVars.add(new LocalVarInfo(name, desc, signature, start, end, index));
-        super.visitLocalVariable(name, desc, signature, start, end, index);
+    private boolean isInTryCatchBlock(int insnIndex) {
+        for (TryCatchBlockNode tryCatchBlock : mn.tryCatchBlocks) {
+            if (mn.instructions.indexOf(tryCatchBlock.start) <= insnIndex
+                    && insnIndex < mn.instructions.indexOf(tryCatchBlock.end)) return true;
+        }
+        return false;
     }
 
-    @Override
-    public void visitEnd() {
+    public void analyze() {
         // Нужно ли записывать собранные данные в выходные мапы
         // Если на методе нет аннотации @Async - то не пишем
         // В противном случае пишем, даже если точек восстановления не найдено
-        if (declaredRestorePoints == null) {
-            super.visitEnd();
-            return;
-        }
+        if (declaredRestorePoints == null) return;
 
-        Analyzer analyzer = new Analyzer(new SimpleVerifier() {
-            @Override
-            protected Class getClass(Type t) {
-                try {
-                    return super.getClass(t);
-                } catch (RuntimeException e) {
-                    try {
-                        // Используем класслоадер, который умеет загружать исходный класс из массива байт
-                        // Это нужно для работы верификатора
-                        return classLoader.loadClass(t.getInternalName().replaceAll("/", "."));
-                    } catch (ClassNotFoundException e1) {
-                        throw new RuntimeException(e1);
-                    }
-                }
-            }
-        });
         AbstractInsnNode[] insns = mn.instructions.toArray();
-        Frame[] frames;
+        findRestorePointCalls(insns);
+
+        // Верификатор не загружает классы, а читает иерархию из class-файлов: агент не может загружать
+        // классы во время инструментирования (загруженные так классы не будут инструментированы)
+        LivenessAnalyzer analyzer = new LivenessAnalyzer(new HierarchyVerifier(classHierarchy));
+        Frame<BasicValue>[] frames;
+        BitSet[] liveLocals;
         try {
             frames = analyzer.analyze(owner, mn);
 
+            // Живые локальные переменные перед каждой инструкцией - чтобы не сохранять переменные,
+            // которые после вызова точки восстановления уже не используются
+            liveLocals = analyzer.computeLiveLocals(insns);
+
             // Корректируем инфу о типах значений локальных переменных с учётом таблиц переменных,
             // которые записываются в class-файл. Без этого ASM иногда не может определить настоящий тип
             // переменной (после инструкции aconst_null, например) и выдаёт в этом месте "Lnull;".
             // Нас это не устраивает, мы не можем обрабатывать переменных, типа которых мы не знаем.
-            localVars.forEach(localVarInfo -> {
-                LabelNode startLabel = (LabelNode) localVarInfo.start.info; // inclusive
-                LabelNode endLabel = (LabelNode) localVarInfo.end.info; // exclusive
+            if (mn.localVariables != null) mn.localVariables.forEach(localVarInfo -> {
+                LabelNode startLabel = localVarInfo.start; // inclusive
+                LabelNode endLabel = localVarInfo.end; // exclusive
                 boolean meetStart = false;
                 boolean meetEnd = false;
                 for (int i = 0; i < insns.length; i++) {
@@ -203,7 +206,7 @@ public class MethodAnalyzer extends MethodVisitor {
             // Теперь окончательно проверяем, что фреймов с переменными типа "Lnull;" нигде не осталось
             // В стеке, к сожалению, "Lnull;" возможны (после инструкций типа ACONST_NULL)
             for (int i = 0; i < frames.length; i++) {
-                final Frame frame = frames[i];
+                final Frame<?> frame = frames[i];
                 if (frame != null) { // frame может быть null в конце методов, если крайние инструкции - что-то вроде labels
                     for (int j = 0; j < frame.getLocals(); j++) {
                         final BasicValue value = (BasicValue) frame.getLocal(j);
@@ -215,11 +218,22 @@ public class MethodAnalyzer extends MethodVisitor {
         } catch (AnalyzerException e) {
             throw new RuntimeException("Cannot analyze method", e);
         }
+
+        // Инструментирование использует фреймы только на входе в метод, у вызовов точек восстановления
+        // и после них, а также в местах существующих фреймов. Остальные фреймы не сохраняем
+        final BitSet usedFrames = new BitSet(insns.length);
+        usedFrames.set(0);
+        for (int i = restorePointCallIndexes.nextSetBit(0); i >= 0; i = restorePointCallIndexes.nextSetBit(i + 1)) {
+            usedFrames.set(i);
+            usedFrames.set(i + 1);
+        }
+        for (int i = 0; i < insns.length; i++) {
+            if (insns[i].getType() == AbstractInsnNode.FRAME) usedFrames.set(i);
+        }
         //
-        resultMap.put(methodId, new MethodAnalyzeResult(
-                restorePointCalls, restorePoints, unpatchableRestorePoints, frames, insns, rootLambda)
+        resultMap.put(methodId, new MethodAnalyzeResult(restorePointCalls, restorePoints, unpatchableRestorePoints,
+                frames, liveLocals, usedFrames, restorePointCallIndexes, findTailRestorePointCalls(insns, frames),
+                insns, rootLambda)
         );
-        //
-        super.visitEnd();
     }
 }
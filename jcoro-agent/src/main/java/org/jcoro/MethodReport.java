@@ -0,0 +1,142 @@
+package org.jcoro;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Report about instrumented method: count of restore points, count of values saved by all restore points
+ * (by storage kind), size of bytecode before and after instrumenting.
+ *
+ * Instrumented methods can grow over limits of HotSpot JIT: methods larger than HugeMethodLimit
+ * (8000 bytes) are never compiled (unless -XX:-DontCompileHugeMethods), and methods larger than
+ * FreqInlineSize (325 bytes) are not inlined even if hot. Such methods are flagged in report.
+ *
+ * Report is written as text file, one line per method, columns are separated by tab
+ * (first line is header with names of columns).
+ *
+ * @author elwood
+ */
+public class MethodReport {
+    public static final String HUGE_METHOD = "HUGE_METHOD";
+    public static final String NOT_INLINEABLE = "NOT_INLINEABLE";
+
+    // Default limits of HotSpot: HugeMethodLimit and FreqInlineSize
+    public static final int DEFAULT_HUGE_METHOD_LIMIT = 8000;
+    public static final int DEFAULT_INLINE_LIMIT = 325;
+
+    private static final String HEADER = "class\tmethod\tdesc\trestorePoints\tsavedRefs\tsavedInts\tsavedLongs"
+            + "\tsavedFloats\tsavedDoubles\toriginalSize\tinstrumentedSize\tflags";
+
+    public final String className;
+    public final String methodName;
+    public final String desc;
+    public final int restorePoints;
+    public final int[] savedValues; // Refs, ints, longs, floats, doubles
+    public final int originalSize;
+    public final int instrumentedSize;
+
+    public MethodReport(String className, String methodName, String desc, int restorePoints,
+                        int[] savedValues, int originalSize, int instrumentedSize) {
+        this.className = className;
+        this.methodName = methodName;
+        this.desc = desc;
+        this.restorePoints = restorePoints;
+        this.savedValues = savedValues;
+        this.originalSize = originalSize;
+        this.instrumentedSize = instrumentedSize;
+    }
+
+    public boolean isHuge(int hugeMethodLimit) {
+        return instrumentedSize > hugeMethodLimit;
+    }
+
+    public List<String> getFlags(int hugeMethodLimit, int inlineLimit) {
+        final List<String> flags = new ArrayList<>();
+        if (isHuge(hugeMethodLimit)) flags.add(HUGE_METHOD);
+        if (instrumentedSize > inlineLimit) flags.add(NOT_INLINEABLE);
+        return flags;
+    }
+
+    @Override
+    public String toString() {
+        return className + "." + methodName + desc;
+    }
+
+    /**
+     * Returns reports sorted by class, method name and descriptor.
+     */
+    public static List<MethodReport> sorted(Collection<MethodReport> reports) {
+        final List<MethodReport> sorted = new ArrayList<>(reports);
+        sorted.sort(Comparator.comparing((MethodReport report) -> report.className)
+                .thenComparing(report -> report.methodName)
+                .thenComparing(report -> report.desc));
+        return sorted;
+    }
+
+    /**
+     * Writes reports sorted by class and method (so report doesn't depend on order of processing).
+     */
+    public static void write(File file, Collection<MethodReport> reports, int hugeMethodLimit, int inlineLimit) {
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (MethodReport report : sorted(reports)) {
+                writer.write(report.className + "\t" + report.methodName + "\t" + report.desc
+                        + "\t" + report.restorePoints);
+                for (int savedValue : report.savedValues) {
+                    writer.write("\t" + savedValue);
+                }
+                writer.write("\t" + report.originalSize + "\t" + report.instrumentedSize
+                        + "\t" + String.join(",", report.getFlags(hugeMethodLimit, inlineLimit)));
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write report: " + file.getPath(), e);
+        }
+    }
+
+    /**
+     * Returns sizes of bytecode of all methods of class: name + desc -> length of code (in bytes).
+     * ASM doesn't provide sizes of methods, so they are read from Code attributes directly.
+     */
+    public static Map<String, Integer> codeSizes(ClassReader reader) {
+        final Map<String, Integer> sizes = new HashMap<>();
+        final char[] buf = new char[reader.getMaxStringLength()];
+        int u = reader.header + 6; // access_flags, this_class, super_class
+        u += 2 + 2 * reader.readUnsignedShort(u); // interfaces
+        int fieldsCount = reader.readUnsignedShort(u);
+        u += 2;
+        for (int i = 0; i < fieldsCount; i++) {
+            int attributesCount = reader.readUnsignedShort(u + 6);
+            u += 8;
+            for (int j = 0; j < attributesCount; j++) {
+                u += 6 + reader.readInt(u + 2);
+            }
+        }
+        int methodsCount = reader.readUnsignedShort(u);
+        u += 2;
+        for (int i = 0; i < methodsCount; i++) {
+            final String name = reader.readUTF8(u + 2, buf);
+            final String desc = reader.readUTF8(u + 4, buf);
+            int attributesCount = reader.readUnsignedShort(u + 6);
+            u += 8;
+            for (int j = 0; j < attributesCount; j++) {
+                // Code attribute: name, length, max_stack, max_locals, code_length, code...
+                if ("Code".equals(reader.readUTF8(u, buf))) sizes.put(name + desc, reader.readInt(u + 10));
+                u += 6 + reader.readInt(u + 2);
+            }
+        }
+        return sizes;
+    }
+}
@@ -0,0 +1,455 @@
+package org.jcoro;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Splits method, which is too large after instrumenting, by moving straight-line regions of its code
+ * (between restore points) into private static synthetic helper methods. Helpers don't contain restore
+ * points, so they are not instrumented, and instrumented method becomes smaller: both its own code and
+ * the code restoring locals, which are used only inside of moved regions.
+ *
+ * Region is a sequence of instructions without branches, jump targets, returns, restore point calls,
+ * monitors and boundaries of try-catch blocks; operand stack is empty at its start and end.
+ * Locals, which are read by region before writing, are passed to helper as arguments; local written
+ * by region and read after it is returned by helper (regions with several such locals are not moved).
+ * If region is inside of try block, locals written by region should not be read by exception handler
+ * (exception thrown by helper leaves them unchanged).
+ *
+ * If method has no such regions (code between restore points is already moved), but it's still too large
+ * because of code saving and restoring state at its restore points, region containing half of its restore
+ * points is moved into async helper: helper gets @Async annotation of the method, and its call becomes
+ * restore point of the method (@Await is added to the method). Both method and helper are instrumented,
+ * each of them has about half of restore points, and they can be split again.
+ *
+ * Split method is analyzed and instrumented again, so frames and liveness of locals are recomputed.
+ *
+ * @author elwood
+ */
+public class MethodSplitter {
+    // Shorter regions are not moved - call of helper would take almost the same space
+    private static final int MIN_REGION_INSNS = 16;
+
+    // Longer regions are not moved, so helper is not larger than the limit itself (about 4 bytes per insn)
+    private static final int MAX_REGION_INSNS = 1500;
+
+    // Max size of helper arguments (in slots)
+    private static final int MAX_ARGS_SIZE = 255;
+
+    private final ClassNode classNode;
+    private final ClassHierarchy classHierarchy;
+    private int helpersCount = 0;
+
+    public MethodSplitter(ClassNode classNode, ClassHierarchy classHierarchy) {
+        this.classNode = classNode;
+        this.classHierarchy = classHierarchy;
+    }
+
+    private static final String ASYNC_DESC = "Lorg/jcoro/Async;";
+    private static final String AWAIT_DESC = "Lorg/jcoro/Await;";
+
+    private static class Region {
+        int start; // Index of first instruction
+        int restorePointCalls; // Count of restore point calls moved into (async) helper
+        int end; // Index of instruction after region
+        List<Integer> inputs; // Locals passed to helper
+        BitSet written; // Locals written by region
+        int output = -1; // Local returned by helper
+    }
+
+    /**
+     * Moves regions of method into helpers (or region with restore points into async helper, if there are
+     * no other regions). Returns false if method has no regions to move.
+     */
+    public boolean split(MethodNode mn, Set<MethodId> restorePoints) {
+        if (mn.name.startsWith("<") || (classNode.access & Opcodes.ACC_INTERFACE) != 0) return false;
+
+        final LivenessAnalyzer analyzer = new LivenessAnalyzer(new HierarchyVerifier(classHierarchy));
+        final AbstractInsnNode[] insns = mn.instructions.toArray();
+        final Frame<BasicValue>[] frames;
+        final BitSet[] liveLocals;
+        try {
+            frames = analyzer.analyze(classNode.name, mn);
+            liveLocals = analyzer.computeLiveLocals(insns);
+        } catch (AnalyzerException e) {
+            throw new RuntimeException("Cannot analyze method " + mn.name + mn.desc, e);
+        }
+
+        final Set<LabelNode> referencedLabels = findReferencedLabels(mn);
+        final List<Region> regions = new ArrayList<>();
+        int i = 0;
+        while (i < insns.length) {
+            final Region region = findRegion(mn, insns, frames, liveLocals, referencedLabels, restorePoints, i, 0);
+            if (region != null) {
+                regions.add(region);
+                i = region.end;
+            } else {
+                i++;
+            }
+        }
+        if (regions.isEmpty()) {
+            final Region region = findAsyncRegion(mn, insns, frames, liveLocals, referencedLabels, restorePoints);
+            if (region == null) return false;
+            regions.add(region);
+        }
+
+        // Indexes of labels are taken before instructions are moved
+        final List<LocalVariableNode> movedLocalVariables = findMovedLocalVariables(mn, regions);
+        for (Region region : regions) {
+            moveRegion(mn, insns, frames, region);
+        }
+        mn.localVariables.removeAll(movedLocalVariables);
+        return true;
+    }
+
+    /**
+     * Labels, which can't be moved into helper or separated from neighbour instructions:
+     * targets of jumps and switches, bounds and handlers of try-catch blocks.
+     */
+    private static Set<LabelNode> findReferencedLabels(MethodNode mn) {
+        final Set<LabelNode> labels = new HashSet<>();
+        for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn instanceof JumpInsnNode) {
+                labels.add(((JumpInsnNode) insn).label);
+            } else if (insn instanceof TableSwitchInsnNode) {
+                labels.add(((TableSwitchInsnNode) insn).dflt);
+                labels.addAll(((TableSwitchInsnNode) insn).labels);
+            } else if (insn instanceof LookupSwitchInsnNode) {
+                labels.add(((LookupSwitchInsnNode) insn).dflt);
+                labels.addAll(((LookupSwitchInsnNode) insn).labels);
+            }
+        }
+        for (TryCatchBlockNode tryCatchBlock : mn.tryCatchBlocks) {
+            labels.add(tryCatchBlock.start);
+            labels.add(tryCatchBlock.end);
+            labels.add(tryCatchBlock.handler);
+        }
+        return labels;
+    }
+
+    /**
+     * Finds region for async helper: the first region containing half of restore point calls of method
+     * (at least two of them, otherwise helper wouldn't be smaller than method). Returns null if method
+     * is not annotated by @Async (async lambda) or has no such region.
+     */
+    private Region findAsyncRegion(MethodNode mn, AbstractInsnNode[] insns, Frame<BasicValue>[] frames,
+                                   BitSet[] liveLocals, Set<LabelNode> referencedLabels,
+                                   Set<MethodId> restorePoints) {
+        if (findAsyncAnnotation(mn) == null) return null;
+        int restorePointCalls = 0;
+        for (AbstractInsnNode insn : insns) {
+            if (isRestorePointCall(insn, restorePoints)) restorePointCalls++;
+        }
+        final int maxRestorePointCalls = (restorePointCalls + 1) / 2;
+        if (maxRestorePointCalls < 2) return null;
+        for (int i = 0; i < insns.length; i++) {
+            final Region region = findRegion(mn, insns, frames, liveLocals, referencedLabels, restorePoints, i,
+                    maxRestorePointCalls);
+            if (region != null && region.restorePointCalls >= 2) return region;
+        }
+        return null;
+    }
+
+    private static AnnotationNode findAsyncAnnotation(MethodNode mn) {
+        if (mn.visibleAnnotations == null) return null;
+        for (AnnotationNode annotation : mn.visibleAnnotations) {
+            if (ASYNC_DESC.equals(annotation.desc)) return annotation;
+        }
+        return null;
+    }
+
+    private static boolean isRestorePointCall(AbstractInsnNode insn, Set<MethodId> restorePoints) {
+        if (restorePoints == null || insn.getType() != AbstractInsnNode.METHOD_INSN) return false;
+        final MethodInsnNode methodInsn = (MethodInsnNode) insn;
+        return restorePoints.contains(new MethodId(methodInsn.owner, methodInsn.name, methodInsn.desc));
+    }
+
+    /**
+     * Finds the longest region starting at specified instruction, which contains not more than
+     * maxRestorePointCalls restore point calls, or returns null.
+     */
+    private Region findRegion(MethodNode mn, AbstractInsnNode[] insns, Frame<BasicValue>[] frames,
+                              BitSet[] liveLocals, Set<LabelNode> referencedLabels, Set<MethodId> restorePoints,
+                              int start, int maxRestorePointCalls) {
+        if (insns[start].getOpcode() < 0 || frames[start] == null || frames[start].getStackSize() != 0) return null;
+
+        // Locals read by handlers of try-catch blocks, which cover the region
+        final BitSet handlersLiveLocals = new BitSet();
+        final int startIndex = start;
+        for (TryCatchBlockNode tryCatchBlock : mn.tryCatchBlocks) {
+            if (mn.instructions.indexOf(tryCatchBlock.start) <= startIndex
+                    && startIndex < mn.instructions.indexOf(tryCatchBlock.end)) {
+                handlersLiveLocals.or(liveLocals[mn.instructions.indexOf(tryCatchBlock.handler)]);
+            }
+        }
+
+        final List<Integer> inputs = new ArrayList<>();
+        int inputsSize = 0;
+        final BitSet read = new BitSet(); // Locals read before writing
+        final BitSet written = new BitSet();
+        Region best = null;
+        int realInsns = 0;
+        int restorePointCalls = 0;
+        for (int j = start; j < insns.length; j++) {
+            // Region can end before instruction j
+            if (realInsns >= MIN_REGION_INSNS && frames[j] != null && frames[j].getStackSize() == 0) {
+                final BitSet outputs = (BitSet) written.clone();
+                outputs.and(liveLocals[j]);
+                if (outputs.cardinality() <= 1 && (outputs.isEmpty()
+                        || isPassable(frames[j].getLocal(outputs.nextSetBit(0))))) {
+                    best = new Region();
+                    best.start = start;
+                    best.end = j;
+                    best.inputs = new ArrayList<>(inputs);
+                    best.written = (BitSet) written.clone();
+                    best.output = outputs.nextSetBit(0);
+                    best.restorePointCalls = restorePointCalls;
+                }
+            }
+
+            final AbstractInsnNode insn = insns[j];
+            if (!isMovable(insn, referencedLabels) || realInsns == MAX_REGION_INSNS) break;
+            if (isRestorePointCall(insn, restorePoints)) {
+                if (restorePointCalls == maxRestorePointCalls) break;
+                restorePointCalls++;
+            }
+            if (insn.getOpcode() >= 0) realInsns++;
+
+            int local = -1;
+            boolean isRead = false;
+            boolean isWrite = false;
+            if (insn instanceof VarInsnNode) {
+                local = ((VarInsnNode) insn).var;
+                isWrite = insn.getOpcode() >= Opcodes.ISTORE && insn.getOpcode() <= Opcodes.ASTORE;
+                isRead = !isWrite;
+            } else if (insn instanceof IincInsnNode) {
+                local = ((IincInsnNode) insn).var;
+                isRead = true;
+                isWrite = true;
+            }
+            if (isRead && !written.get(local) && !read.get(local)) {
+                final BasicValue value = frames[start].getLocal(local);
+                if (!isPassable(value) || inputsSize + value.getSize() > MAX_ARGS_SIZE) break;
+                read.set(local);
+                inputs.add(local);
+                inputsSize += value.getSize();
+            }
+            if (isWrite) {
+                // Handler would see old value of the local if helper throws exception
+                if (handlersLiveLocals.get(local)) break;
+                written.set(local);
+            }
+        }
+        return best;
+    }
+
+    private static boolean isMovable(AbstractInsnNode insn, Set<LabelNode> referencedLabels) {
+        // Type annotations (of async lambdas, for example) should stay on their instructions
+        if (insn.visibleTypeAnnotations != null || insn.invisibleTypeAnnotations != null) return false;
+        switch (insn.getType()) {
+            case AbstractInsnNode.LABEL:
+                return !referencedLabels.contains(insn);
+            case AbstractInsnNode.LINE:
+                return true;
+            case AbstractInsnNode.FRAME:
+            case AbstractInsnNode.JUMP_INSN:
+            case AbstractInsnNode.TABLESWITCH_INSN:
+            case AbstractInsnNode.LOOKUPSWITCH_INSN:
+            case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+                return false;
+            case AbstractInsnNode.METHOD_INSN: {
+                final MethodInsnNode methodInsn = (MethodInsnNode) insn;
+                // Super calls and calls of private methods need "this" of the caller
+                return methodInsn.getOpcode() != Opcodes.INVOKESPECIAL || methodInsn.name.equals("<init>");
+            }
+            case AbstractInsnNode.VAR_INSN:
+                return insn.getOpcode() != Opcodes.RET;
+            default:
+                break;
+        }
+        switch (insn.getOpcode()) {
+            case Opcodes.IRETURN:
+            case Opcodes.LRETURN:
+            case Opcodes.FRETURN:
+            case Opcodes.DRETURN:
+            case Opcodes.ARETURN:
+            case Opcodes.RETURN:
+            case Opcodes.ATHROW:
+            case Opcodes.MONITORENTER:
+            case Opcodes.MONITOREXIT:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Returns true if value of local can be passed to helper or returned from it (type of value is known).
+     */
+    private static boolean isPassable(BasicValue value) {
+        return value != null && value.getType() != null && value != BasicValue.RETURNADDRESS_VALUE
+                && !"Lnull;".equals(value.getType().getDescriptor());
+    }
+
+    private void moveRegion(MethodNode mn, AbstractInsnNode[] insns, Frame<BasicValue>[] frames, Region region) {
+        final Frame<BasicValue> startFrame = frames[region.start];
+        final int[] helperLocals = new int[mn.maxLocals];
+        for (int i = 0; i < helperLocals.length; i++) helperLocals[i] = -1;
+
+        // Arguments of helper
+        final StringBuilder desc = new StringBuilder("(");
+        int helperMaxLocals = 0;
+        for (int local : region.inputs) {
+            final BasicValue value = startFrame.getLocal(local);
+            desc.append(value.getType().getDescriptor());
+            helperLocals[local] = helperMaxLocals;
+            helperMaxLocals += value.getSize();
+        }
+        final Type outputType = region.output >= 0 ? frames[region.end].getLocal(region.output).getType() : null;
+        desc.append(")").append(outputType != null ? outputType.getDescriptor() : "V");
+
+        final String helperName = mn.name + "$$split" + helpersCount++;
+        final MethodNode helper = new MethodNode(Opcodes.ASM5,
+                Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+                helperName, desc.toString(), null, null);
+
+        // Real instructions are moved into helper, labels are left in method (they can be used by local
+        // variables table); line numbers are copied into helper
+        final InsnList helperInsns = helper.instructions;
+        for (int i = region.start; i < region.end; i++) {
+            final AbstractInsnNode insn = insns[i];
+            if (insn instanceof LineNumberNode) {
+                final LabelNode label = new LabelNode();
+                helperInsns.add(label);
+                helperInsns.add(new LineNumberNode(((LineNumberNode) insn).line, label));
+                mn.instructions.remove(insn);
+                continue;
+            }
+            if (insn.getOpcode() < 0) continue;
+            mn.instructions.remove(insn);
+            if (insn instanceof VarInsnNode) {
+                final VarInsnNode varInsn = (VarInsnNode) insn;
+                varInsn.var = helperLocal(helperLocals, varInsn.var, helperMaxLocals);
+                helperMaxLocals = Math.max(helperMaxLocals, varInsn.var + localSize(insn.getOpcode()));
+            } else if (insn instanceof IincInsnNode) {
+                final IincInsnNode iincInsn = (IincInsnNode) insn;
+                iincInsn.var = helperLocal(helperLocals, iincInsn.var, helperMaxLocals);
+                helperMaxLocals = Math.max(helperMaxLocals, iincInsn.var + 1);
+            }
+            helperInsns.add(insn);
+        }
+        if (outputType != null) {
+            helperInsns.add(new VarInsnNode(outputType.getOpcode(Opcodes.ILOAD), helperLocals[region.output]));
+            helperInsns.add(new InsnNode(outputType.getOpcode(Opcodes.IRETURN)));
+        } else {
+            helperInsns.add(new InsnNode(Opcodes.RETURN));
+        }
+        helper.maxLocals = helperMaxLocals;
+        helper.maxStack = Math.max(mn.maxStack, 2);
+        classNode.methods.add(helper);
+
+        // Async helper has the same restore points as method, and its call is restore point of method
+        if (region.restorePointCalls > 0) {
+            final AnnotationNode async = findAsyncAnnotation(mn);
+            @SuppressWarnings("unchecked")
+            final List<AnnotationNode> awaits = (List<AnnotationNode>) async.values.get(1);
+            final AnnotationNode helperAsync = new AnnotationNode(ASYNC_DESC);
+            helperAsync.values = new ArrayList<>(Arrays.asList("value", new ArrayList<>(awaits)));
+            helper.visibleAnnotations = new ArrayList<>();
+            helper.visibleAnnotations.add(helperAsync);
+
+            final AnnotationNode helperAwait = new AnnotationNode(AWAIT_DESC);
+            helperAwait.values = new ArrayList<>(Arrays.asList("value", helperName, "desc", desc.toString()));
+            awaits.add(helperAwait);
+        }
+
+        // Call of helper is placed where region was
+        final InsnList call = new InsnList();
+        int argsSize = 0;
+        for (int local : region.inputs) {
+            final BasicValue value = startFrame.getLocal(local);
+            call.add(new VarInsnNode(value.getType().getOpcode(Opcodes.ILOAD), local));
+            argsSize += value.getSize();
+        }
+        call.add(new MethodInsnNode(Opcodes.INVOKESTATIC, classNode.name, helperName, desc.toString(), false));
+        if (outputType != null) call.add(new VarInsnNode(outputType.getOpcode(Opcodes.ISTORE), region.output));
+        mn.instructions.insertBefore(firstRemaining(insns, region), call);
+        mn.maxStack = Math.max(mn.maxStack, Math.max(argsSize, outputType != null ? outputType.getSize() : 0));
+    }
+
+    /**
+     * Returns node, before which call of helper is inserted (first label left from region, or the node after it).
+     */
+    private static AbstractInsnNode firstRemaining(AbstractInsnNode[] insns, Region region) {
+        for (int i = region.start; i < region.end; i++) {
+            if (insns[i] instanceof LabelNode) return insns[i];
+        }
+        return insns[region.end];
+    }
+
+    private static int helperLocal(int[] helperLocals, int local, int nextLocal) {
+        if (helperLocals[local] < 0) helperLocals[local] = nextLocal;
+        return helperLocals[local];
+    }
+
+    private static int localSize(int opcode) {
+        switch (opcode) {
+            case Opcodes.LLOAD:
+            case Opcodes.DLOAD:
+            case Opcodes.LSTORE:
+            case Opcodes.DSTORE:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Returns entries of local variables table for locals, which are not written by method anymore
+     * (written inside of moved region and not returned from helper), if their scope intersects the region.
+     * They should be removed, otherwise MethodAnalyzer would take types of these locals from the table,
+     * though method doesn't have values in them.
+     */
+    private static List<LocalVariableNode> findMovedLocalVariables(MethodNode mn, List<Region> regions) {
+        final List<LocalVariableNode> result = new ArrayList<>();
+        if (mn.localVariables == null) return result;
+        for (LocalVariableNode localVariable : mn.localVariables) {
+            final int start = mn.instructions.indexOf(localVariable.start);
+            final int end = mn.instructions.indexOf(localVariable.end);
+            for (Region region : regions) {
+                if (region.written.get(localVariable.index) && localVariable.index != region.output
+                        && start < region.end && end > region.start) {
+                    result.add(localVariable);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+}
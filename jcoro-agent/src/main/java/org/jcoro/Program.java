@@ -1,37 +1,158 @@
 package org.jcoro;
 
 import org.objectweb.asm.*;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
 
 /**
  * @author elwood
  */
 public class Program {
-    private static URLClassLoader classLoader;
 
     private static String sourceDirPath;
     private static String destDirPath;
+    private static boolean incremental;
+
+    // Options of report about instrumented methods (see MethodReport)
+    private static String reportPath;
+    private static int hugeMethodLimit = MethodReport.DEFAULT_HUGE_METHOD_LIMIT;
+    private static int inlineLimit = MethodReport.DEFAULT_INLINE_LIMIT;
+    private static boolean failOnHugeMethods;
+    private static boolean splitHugeMethods;
+
+    private static final String USAGE = "Usage: program --source <src> --dest <dst> [--frame-classes] [--continuations]"
+            + " [--incremental] [report options]\n"
+            + "       program --source-jar <src.jar> --dest-jar <dst.jar> [--frame-classes] [--continuations]"
+            + " [report options]\n"
+            + "Report options: [--report <file>] [--huge-method-limit <bytes>] [--inline-limit <bytes>]"
+            + " [--fail-on-huge-methods] [--split-huge-methods]";
 
     /**
      * Должно быть 4 аргумента:
      * --source src --dest dst
+     * и опционально --frame-classes (сохранять фреймы методов в сгенерированные классы)
+     * или --continuations (фреймы - наследники Continuation, при возобновлении продолжается самый
+     * глубокий фрейм, а внешние методы не вызываются заново, пока он не завершится)
+     * и --incremental (инструментировать только изменившиеся классы, см. InstrumentationManifest;
+     * манифест хранится рядом с dst, в файле dst.jcoro-manifest)
+     *
+     * Вместо директорий можно указать jar-файлы: --source-jar src.jar --dest-jar dst.jar
+     * (записи jar-а обрабатываются потоково, без распаковки на диск)
+     *
+     * Отчёт по инструментированным методам (см. MethodReport): --report file - записать отчёт в файл,
+     * --huge-method-limit и --inline-limit - пороги размера байткода, после которых HotSpot не компилирует
+     * (8000 байт) и не инлайнит (325 байт) метод, --fail-on-huge-methods - завершиться с ошибкой,
+     * если после инструментирования есть методы больше huge-method-limit.
+     * --split-huge-methods - выносить участки кода таких методов между точками восстановления
+     * в синтетические методы-помощники (см. MethodSplitter), чтобы метод стал меньше huge-method-limit.
+     *
+     * Классы инструментируются параллельно в общем fork/join пуле; количество потоков можно ограничить
+     * свойством java.util.concurrent.ForkJoinPool.common.parallelism
      */
     public static void main(String[] args) {
         System.out.println("Instrumenting program started");
 
-        if (args.length != 4 || !args[0].equals("--source") || !args[2].equals("--dest")) {
-            System.out.println("Usage: program --source <src> --dest <dst>");
+        final boolean jarMode = args.length >= 4 && args[0].equals("--source-jar") && args[2].equals("--dest-jar");
+        if (args.length < 4 || !(jarMode || (args[0].equals("--source") && args[2].equals("--dest")))) {
+            System.out.println(USAGE);
+            return;
+        }
+        boolean frameClasses = false;
+        boolean continuations = false;
+        for (int i = 4; i < args.length; i++) {
+            switch (args[i]) {
+                case "--frame-classes":
+                    frameClasses = true;
+                    break;
+                case "--continuations":
+                    continuations = true;
+                    break;
+                case "--incremental":
+                    incremental = true;
+                    break;
+                case "--report":
+                    if (++i == args.length) {
+                        System.out.println(USAGE);
+                        return;
+                    }
+                    reportPath = args[i];
+                    break;
+                case "--huge-method-limit":
+                case "--inline-limit":
+                    if (i + 1 == args.length || !args[i + 1].matches("\\d+")) {
+                        System.out.println(USAGE);
+                        return;
+                    }
+                    if (args[i].equals("--huge-method-limit")) {
+                        hugeMethodLimit = Integer.parseInt(args[++i]);
+                    } else {
+                        inlineLimit = Integer.parseInt(args[++i]);
+                    }
+                    break;
+                case "--fail-on-huge-methods":
+                    failOnHugeMethods = true;
+                    break;
+                case "--split-huge-methods":
+                    splitHugeMethods = true;
+                    break;
+                default:
+                    System.out.println(USAGE);
+                    return;
+            }
+        }
+        if (jarMode && incremental) {
+            System.out.println("Incremental mode is not supported for jars");
+            return;
+        }
+
+        if (jarMode) {
+            final File sourceJar = new File(args[1]);
+            if (!sourceJar.isFile()) {
+                System.out.println("Source jar not found");
+                System.exit(-1);
+            }
+            new Program(frameClasses, continuations, splitHugeMethods ? hugeMethodLimit : 0)
+                    .instrumentJar(sourceJar, new File(args[3]));
             return;
         }
 
@@ -39,7 +160,68 @@ public class Program {
         destDirPath = args[3];
 
         prepareEnv();
-        new Program().instrumentClasses();
+        new Program(frameClasses, continuations, splitHugeMethods ? hugeMethodLimit : 0).instrumentClasses();
+    }
+
+    // If true, locals and stack operands of each restore point are saved into instance of generated frame class
+    private final boolean frameClasses;
+
+    // If true, frame classes extend Continuation, and suspended methods are resumed by their frames
+    // starting from the innermost one (implies frameClasses)
+    private final boolean continuations;
+
+    // If positive, methods which are larger after instrumenting are split (see MethodSplitter)
+    private final int splitMethodsLimit;
+
+    // Max count of passes splitting methods of class (each pass halves restore points of split methods)
+    private static final int MAX_SPLIT_PASSES = 8;
+
+    // Used to read classes, which are not in source directory (jar), while resolving types of instrumented code.
+    // Kept here because index doesn't keep class loader reachable
+    private ClassLoader classLoader;
+
+    // Hierarchy of classes, shared by all instrumented classes
+    private ClassHierarchyIndex hierarchyIndex;
+
+    // Reports about methods instrumented by this run
+    private final Queue<MethodReport> methodReports = new ConcurrentLinkedQueue<>();
+
+    public Program() {
+        this(false);
+    }
+
+    public Program(boolean frameClasses) {
+        this(frameClasses, 0);
+    }
+
+    public Program(boolean frameClasses, int splitMethodsLimit) {
+        this(frameClasses, false, splitMethodsLimit);
+    }
+
+    public Program(boolean frameClasses, boolean continuations, int splitMethodsLimit) {
+        this.frameClasses = frameClasses || continuations;
+        this.continuations = continuations;
+        this.splitMethodsLimit = splitMethodsLimit;
+    }
+
+    /**
+     * Creates program which resolves types using specified index
+     * (index of defining class loader of instrumented classes, if used by agent).
+     */
+    public Program(ClassHierarchyIndex hierarchyIndex, boolean frameClasses) {
+        this(hierarchyIndex, frameClasses, 0);
+    }
+
+    public Program(ClassHierarchyIndex hierarchyIndex, boolean frameClasses, int splitMethodsLimit) {
+        this(hierarchyIndex, frameClasses, false, splitMethodsLimit);
+    }
+
+    public Program(ClassHierarchyIndex hierarchyIndex, boolean frameClasses, boolean continuations,
+                   int splitMethodsLimit) {
+        this.hierarchyIndex = hierarchyIndex;
+        this.frameClasses = frameClasses || continuations;
+        this.continuations = continuations;
+        this.splitMethodsLimit = splitMethodsLimit;
     }
 
     /**
@@ -65,6 +247,7 @@ public class Program {
         File sourceDir = new File(sourceDirPath);
         List<File> allClassFiles = new ArrayList<>();
         collectClassFilesRecursively(allClassFiles, sourceDir);
+        allClassFiles.sort(Comparator.comparing(File::getPath));
 
         // Initialize classloader
         try {
@@ -76,97 +259,514 @@ public class Program {
             throw new RuntimeException(e);
         }
 
-        for (File classFile : allClassFiles) {
-            final byte[] bytes;
-            try {
-                bytes = Files.readAllBytes(classFile.toPath());
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        final long start = System.currentTimeMillis();
+        hierarchyIndex = new ClassHierarchyIndex(classLoader);
+        hierarchyIndex.addDirectory(sourceDir);
+        final File manifestFile = new File(destDirPath + ".jcoro-manifest");
+        // Result of instrumenting depends on options and on instrumenting code itself
+        final String options = "frameClasses=" + frameClasses + " continuations=" + continuations
+                + " splitMethodsLimit=" + splitMethodsLimit
+                + " agent=" + getAgentHash();
+        final InstrumentationManifest previous = incremental
+                ? InstrumentationManifest.read(manifestFile, options)
+                : null;
+        final InstrumentationManifest manifest = new InstrumentationManifest(options);
+
+        // Hashes of all source classes (class name -> hash), computed only in incremental mode
+        final Map<String, String> hashes = previous != null
+                ? allClassFiles.parallelStream().collect(toMap(this::getClassName, file -> hash(readFile(file))))
+                : Collections.emptyMap();
+        final Set<String> changedClasses = new HashSet<>();
+        if (previous != null) {
+            for (Map.Entry<String, String> hash : hashes.entrySet()) {
+                final InstrumentationManifest.Entry entry = previous.get(hash.getKey());
+                if (entry == null || !entry.hash.equals(hash.getValue())) changedClasses.add(hash.getKey());
             }
-            final TransformResult transformResult = transform(bytes);
+            // Removed classes: their instrumented versions (and generated classes) should be removed too
+            for (InstrumentationManifest.Entry entry : previous.getEntries()) {
+                if (hashes.containsKey(entry.className)) continue;
+                changedClasses.add(entry.className);
+                deleteClass(entry.className);
+                entry.generatedClasses.forEach(this::deleteClass);
+            }
+        }
 
-            final String[] parts = transformResult.getClassName().split("/");
-            final String onlyName = parts[parts.length - 1];
+        // Classes are instrumented independently of each other, so they are processed in parallel
+        // (in common fork/join pool). Each class is written to its own file, so result doesn't depend
+        // on the order of processing; errors are reported in the order of files
+        final List<File> classFilesToInstrument = allClassFiles.stream()
+                .filter(file -> previous == null || !isUpToDate(previous, getClassName(file), hashes, changedClasses))
+                .collect(toList());
+        final List<RuntimeException> errors = classFilesToInstrument.parallelStream()
+                .map(file -> instrumentClassFile(file, previous, manifest))
+                .filter(Objects::nonNull)
+                .collect(toList());
+        if (!errors.isEmpty()) {
+            errors.forEach(Throwable::printStackTrace);
+            manifestFile.delete(); // Next incremental run will instrument all classes
+            System.exit(-1);
+        }
+        if (!checkMethodReports()) {
+            manifestFile.delete(); // Huge methods of up to date classes should be reported by next run too
+            System.exit(-1);
+        }
+        if (incremental) {
+            for (File classFile : allClassFiles) {
+                final String className = getClassName(classFile);
+                // Up to date classes keep their entries
+                if (manifest.get(className) == null && previous != null) manifest.put(previous.get(className));
+            }
+            manifest.write(manifestFile);
+        }
+        System.out.println(String.format("Instrumented %d class files (%d up to date) in %d ms",
+                classFilesToInstrument.size(), allClassFiles.size() - classFilesToInstrument.size(),
+                System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Entry of source jar, which is being transformed (or copied, if it isn't class).
+     */
+    private static class JarEntryTask {
+        final ZipEntry entry;
+        final byte[] bytes;
+        final CompletableFuture<TransformResult> transformResult; // null if entry is copied as is
+
+        JarEntryTask(ZipEntry entry, byte[] bytes, CompletableFuture<TransformResult> transformResult) {
+            this.entry = entry;
+            this.bytes = bytes;
+            this.transformResult = transformResult;
+        }
+    }
+
+    /**
+     * Instruments classes of jar, writing result to another jar. Entries are read one by one, classes are
+     * transformed in parallel (in common fork/join pool), and entries are written in the order of source jar
+     * (so result doesn't depend on order of processing). Not more than few entries per thread are kept in memory.
+     * Non-class entries are copied as is; generated classes are written after their owner class. Module
+     * descriptors, versioned classes of multi-release jar and classes of versions newer than Java 8 (not supported
+     * by ASM) are copied as is too.
+     */
+    private void instrumentJar(File sourceJar, File destJar) {
+        try {
+            classLoader = new URLClassLoader(
+                    new URL[]{sourceJar.toURI().toURL()},
+                    Thread.currentThread().getContextClassLoader()
+            );
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        }
 
-            // Create all directories for package
-            File dir = new File(destDirPath);
-            for (int i = 0; i < parts.length - 1; i++) {
-                String subdirName = parts[i];
-                File subdir = new File(dir, subdirName);
-                if (!subdir.exists()) {
-                    if (!subdir.mkdir()) throw new RuntimeException("Cannot create directory: " + subdir.getPath());
+        final long start = System.currentTimeMillis();
+        hierarchyIndex = new ClassHierarchyIndex(classLoader);
+        hierarchyIndex.addJar(sourceJar);
+        final int maxPendingEntries = 4 * ForkJoinPool.getCommonPoolParallelism();
+        final Deque<JarEntryTask> pendingEntries = new ArrayDeque<>();
+        final List<RuntimeException> errors = new ArrayList<>();
+        int classesCount = 0;
+        try (ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(sourceJar)));
+             ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(destJar)))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                final byte[] bytes = readEntry(in);
+                CompletableFuture<TransformResult> transformResult = null;
+                if (ClassHierarchyIndex.isClassEntry(entry)) {
+                    if (ClassHierarchyIndex.isSupportedVersion(bytes)) {
+                        transformResult = CompletableFuture.supplyAsync(() -> transform(bytes));
+                        classesCount++;
+                    } else {
+                        System.out.println(String.format("Warning: %s is not instrumented (class version "
+                                + "is not supported), it is copied as is", entry.getName()));
+                    }
+                }
+                pendingEntries.add(new JarEntryTask(entry, bytes, transformResult));
+                while (pendingEntries.size() > maxPendingEntries) {
+                    writeJarEntry(out, pendingEntries.poll(), errors);
                 }
-                dir = subdir;
             }
+            while (!pendingEntries.isEmpty()) {
+                writeJarEntry(out, pendingEntries.poll(), errors);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot instrument jar " + sourceJar.getPath(), e);
+        }
+        if (!errors.isEmpty()) {
+            errors.forEach(Throwable::printStackTrace);
+            destJar.delete();
+            System.exit(-1);
+        }
+        if (!checkMethodReports()) {
+            destJar.delete();
+            System.exit(-1);
+        }
+        System.out.println(String.format("Instrumented %d classes of %s in %d ms",
+                classesCount, sourceJar.getName(), System.currentTimeMillis() - start));
+    }
+
+    private void writeJarEntry(ZipOutputStream out, JarEntryTask task,
+                               List<RuntimeException> errors) throws IOException {
+        if (task.transformResult == null) {
+            putJarEntry(out, task.entry, task.entry.getName(), task.bytes);
+            return;
+        }
+        final TransformResult transformResult;
+        try {
+            transformResult = task.transformResult.join();
+        } catch (CompletionException e) {
+            errors.add(e.getCause() instanceof RuntimeException
+                    ? (RuntimeException) e.getCause()
+                    : new RuntimeException(e.getCause()));
+            return;
+        }
+        methodReports.addAll(transformResult.getMethodReports());
+        putJarEntry(out, task.entry, task.entry.getName(), transformResult.getData());
+        for (Map.Entry<String, byte[]> generatedClass : transformResult.getGeneratedClasses().entrySet()) {
+            putJarEntry(out, task.entry, generatedClass.getKey() + ".class", generatedClass.getValue());
+        }
+    }
+
+    /**
+     * Writes entry keeping time, comment and compression method of source entry.
+     */
+    private static void putJarEntry(ZipOutputStream out, ZipEntry sourceEntry, String name,
+                                    byte[] data) throws IOException {
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setTime(sourceEntry.getTime());
+        entry.setComment(sourceEntry.getComment());
+        if (sourceEntry.getMethod() == ZipEntry.STORED) {
+            // Stored entries should have size and crc before data is written
+            final CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+    }
+
+    private static byte[] readEntry(InputStream in) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
 
-            // Create class file
-            File transformedClassFile = new File(dir, onlyName + ".class");
-            if (transformedClassFile.exists()) {
-                if (!transformedClassFile.delete()) throw new RuntimeException("Cannot delete file: " + transformedClassFile.getPath());
+    /**
+     * Returns true if class and classes it depends on have not been changed since previous run
+     * (and result of previous run exists).
+     */
+    private boolean isUpToDate(InstrumentationManifest previous, String className,
+                               Map<String, String> hashes, Set<String> changedClasses) {
+        final InstrumentationManifest.Entry entry = previous.get(className);
+        if (entry == null || changedClasses.contains(className)) return false;
+        for (String dependency : entry.dependencies) {
+            if (changedClasses.contains(dependency)) return false;
+        }
+        return new File(destDirPath, className + ".class").exists();
+    }
+
+    /**
+     * Reads, transforms and writes single class file. Returns exception if class can't be instrumented.
+     * If manifest is passed (incremental mode), puts entry for the class into it.
+     */
+    private RuntimeException instrumentClassFile(File classFile, InstrumentationManifest previous,
+                                                 InstrumentationManifest manifest) {
+        try {
+            final byte[] bytes = readFile(classFile);
+            final TransformResult transformResult = transform(bytes);
+            final String className = transformResult.getClassName();
+            methodReports.addAll(transformResult.getMethodReports());
+
+            if (transformResult.wasModified()) {
+                writeClass(className, transformResult.getData());
+                for (Map.Entry<String, byte[]> generatedClass : transformResult.getGeneratedClasses().entrySet()) {
+                    writeClass(generatedClass.getKey(), generatedClass.getValue());
+                }
+            } else {
+                // Class is not changed, so link (or copy) it instead of writing
+                linkClass(classFile, className);
             }
-            try {
-                if (!transformedClassFile.createNewFile())
-                    throw new RuntimeException("Cannot create new file: " + transformedClassFile.getPath());
-            } catch (IOException e) {
-                throw new RuntimeException("Cannot create new file: " + transformedClassFile.getPath(), e);
+
+            if (incremental) {
+                // Remove generated classes, which are not generated anymore
+                final InstrumentationManifest.Entry previousEntry = previous != null ? previous.get(className) : null;
+                if (previousEntry != null) {
+                    for (String generatedClass : previousEntry.generatedClasses) {
+                        if (!transformResult.getGeneratedClasses().containsKey(generatedClass))
+                            deleteClass(generatedClass);
+                    }
+                }
+                // Only classes from source dir are tracked, other classes are not expected to change
+                final List<String> dependencies = transformResult.getDependencies().stream()
+                        .filter(dependency -> new File(sourceDirPath, dependency + ".class").exists())
+                        .collect(toList());
+                manifest.put(new InstrumentationManifest.Entry(className, hash(bytes), transformResult.wasModified(),
+                        new ArrayList<>(new TreeSet<>(transformResult.getGeneratedClasses().keySet())),
+                        dependencies));
             }
+            return null;
+        } catch (RuntimeException e) {
+            return e;
+        }
+    }
 
+    /**
+     * Writes report about instrumented methods (if requested) and warns about methods, which have grown
+     * over HugeMethodLimit of JIT. Returns false if program should fail because of such methods.
+     */
+    private boolean checkMethodReports() {
+        if (reportPath != null) MethodReport.write(new File(reportPath), methodReports, hugeMethodLimit, inlineLimit);
+        final List<MethodReport> hugeMethods = MethodReport.sorted(methodReports).stream()
+                .filter(report -> report.isHuge(hugeMethodLimit))
+                .collect(toList());
+        for (MethodReport report : hugeMethods) {
+            System.out.println(String.format("%s: %s is %d bytes after instrumenting (%d before), "
+                            + "it is over huge method limit (%d bytes) and won't be compiled by JIT",
+                    failOnHugeMethods ? "Error" : "Warning", report, report.instrumentedSize,
+                    report.originalSize, hugeMethodLimit));
+        }
+        return hugeMethods.isEmpty() || !failOnHugeMethods;
+    }
+
+    /**
+     * Returns hash of instrumenting code (jar or directory with agent classes).
+     */
+    private static String getAgentHash() {
+        final File location;
+        try {
+            location = new File(Program.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (Exception e) {
+            throw new RuntimeException("Cannot find location of agent classes", e);
+        }
+        if (location.isFile()) return hash(readFile(location));
+        final List<File> agentClassFiles = new ArrayList<>();
+        collectClassFilesRecursively(agentClassFiles, location);
+        agentClassFiles.sort(Comparator.comparing(File::getPath));
+        final StringBuilder hashes = new StringBuilder();
+        for (File agentClassFile : agentClassFiles) {
+            hashes.append(hash(readFile(agentClassFile)));
+        }
+        return hash(hashes.toString().getBytes());
+    }
+
+    private String getClassName(File classFile) {
+        final String path = new File(sourceDirPath).toPath().relativize(classFile.toPath()).toString();
+        return path.substring(0, path.length() - ".class".length()).replace(File.separatorChar, '/');
+    }
+
+    private static byte[] readFile(File file) {
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read file: " + file.getPath(), e);
+        }
+    }
+
+    private static String hash(byte[] bytes) {
+        return InstrumentationManifest.hash(bytes);
+    }
+
+    private File prepareDestFile(String className) {
+        final File destFile = new File(destDirPath, className + ".class");
+        try {
+            // Package directories can be created concurrently by other threads, createDirectories() allows it
+            Files.createDirectories(destFile.getParentFile().toPath());
+            // File can be hard link to source class file (see linkClass()), so it shouldn't be overwritten
+            Files.deleteIfExists(destFile.toPath());
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot prepare file: " + destFile.getPath(), e);
+        }
+        return destFile;
+    }
+
+    private void writeClass(String className, byte[] data) {
+        final File transformedClassFile = prepareDestFile(className);
+        try {
+            Files.write(transformedClassFile.toPath(), data);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write to file: " + transformedClassFile.getPath(), e);
+        }
+    }
+
+    /**
+     * Creates hard link to source class file in dest dir (or copies it, if link can't be created).
+     */
+    private void linkClass(File classFile, String className) {
+        if (isSameFile(classFile, new File(destDirPath, className + ".class"))) {
+            // Instrumenting in place (source dir is dest dir), class file is already where it should be
+            return;
+        }
+        final File destFile = prepareDestFile(className);
+        try {
+            Files.createLink(destFile.toPath(), classFile.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
             try {
-                Files.write(transformedClassFile.toPath(), transformResult.getData(), StandardOpenOption.WRITE);
-            } catch (IOException e) {
-                throw new RuntimeException("Cannot write to file: " + transformedClassFile.getPath(), e);
+                Files.copy(classFile.toPath(), destFile.toPath());
+            } catch (IOException e1) {
+                throw new RuntimeException("Cannot copy file: " + classFile.getPath(), e1);
             }
         }
+    }
 
+    private static boolean isSameFile(File file, File other) {
+        if (!other.exists()) return false;
+        try {
+            return Files.isSameFile(file.toPath(), other.toPath());
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot compare files: " + file.getPath() + ", " + other.getPath(), e);
+        }
     }
 
-    private String className;
-    private boolean wasModified; // Были ли на самом деле изменения в классе
+    private void deleteClass(String className) {
+        try {
+            Files.deleteIfExists(new File(destDirPath, className + ".class").toPath());
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot delete class: " + className, e);
+        }
+    }
 
+    /**
+     * Instruments class. Doesn't change state of program, so can be called concurrently.
+     *
+     * Класс читается в дерево (ClassNode) один раз: поиск лямбд и анализ методов работают по дереву.
+     * При записи результата ClassWriter создаётся на основе исходного ClassReader, поэтому пул констант
+     * и неизменённые методы копируются как есть, без разбора их кода; изменённые методы генерируются
+     * из уже прочитанных MethodNode.
+     *
+     * Если включено разбиение методов (splitMethodsLimit), методы, которые после инструментирования больше
+     * лимита, разбиваются (см. MethodSplitter), и класс записывается заново из изменённого дерева. Методы,
+     * которые не удалось сделать меньше лимита, остаются в отчёте (TransformResult.getMethodReports()).
+     */
     public TransformResult transform(byte[] bytes) {
-        className = null;
-        wasModified = false;
+        return transform(new ClassReader(bytes));
+    }
+
+    /**
+     * Instruments class, which has been read already (see transform(byte[])).
+     */
+    TransformResult transform(ClassReader reader) {
+        final byte[] bytes = reader.b;
+        // Класс, не ссылающийся на @Async, инструментировать не нужно - не строим для него дерево
+        if (!refersToAsync(reader)) return new TransformResult(false, reader.getClassName(), bytes);
+
+        final ClassNode classNode = new ClassNode(Opcodes.ASM5);
+        reader.accept(classNode, 0);
+        final String className = classNode.name;
+        final boolean isInterface = (classNode.access & Opcodes.ACC_INTERFACE) != 0;
 
         // В первую очередь пройдёмся по всем методам и поищем лямбды, помеченные @Async-аннотациями
         // Их нужно найти в первую очередь, чтобы потом использовать выпарсенные type-аннотации так, как будто
         // бы они были навешаны прямо на метод
         Map<MethodId, AsyncLambdaInfo> asyncLambdas = new HashMap<>();
-        ClassReader lambdasSearchReader = new ClassReader(bytes);
-        lambdasSearchReader.accept(new LambdasSearchVisitor(asyncLambdas), 0);
+        LambdasSearchVisitor lambdasSearchVisitor = new LambdasSearchVisitor(asyncLambdas);
+        for (MethodNode methodNode : classNode.methods) {
+            if (hasInvokeDynamic(methodNode)) methodNode.accept(lambdasSearchVisitor);
+        }
 
-        Map<MethodId, MethodAnalyzeResult> analyzeResults = new HashMap<>();
+        ClassHierarchy classHierarchy = new ClassHierarchy(hierarchyIndex);
+        // Класс ещё не загружен (или загружается прямо сейчас), поэтому регистрируем его в иерархии явно
+        classHierarchy.put(className, new ClassHierarchy.ClassInfo(classNode.superName, isInterface));
+
+        Map<MethodId, MethodAnalyzeResult> analyzeResults = analyzeMethods(classNode, asyncLambdas, classHierarchy);
+
+        // Класс изменяется, только если в нём есть методы с точками восстановления.
+        // Если таких нет, можно не делать второй проход
+        final boolean wasModified = analyzeResults.values().stream()
+                .anyMatch(analyzeResult -> analyzeResult.getRestorePointCallsCount() > 0);
+        if (!wasModified) return new TransformResult(false, className, bytes);
+
+        TransformResult result = instrument(reader, reader, classNode, analyzeResults, classHierarchy);
+
+        // Слишком большие после инструментирования методы разбиваются, и класс инструментируется заново
+        // (уже из дерева: код разбитых методов изменился). Разбитый метод (и async-помощник) может всё ещё
+        // быть больше лимита, тогда он разбивается снова, пока это возможно
+        if (splitMethodsLimit > 0) {
+            MethodSplitter splitter = null;
+            for (int pass = 0; pass < MAX_SPLIT_PASSES && result.hasHugeMethods(splitMethodsLimit); pass++) {
+                if (splitter == null) splitter = new MethodSplitter(classNode, classHierarchy);
+                if (!splitHugeMethods(splitter, classNode, result, analyzeResults)) break;
+                analyzeResults = analyzeMethods(classNode, asyncLambdas, classHierarchy);
+                result = instrument(reader, null, classNode, analyzeResults, classHierarchy);
+            }
+        }
+        return result;
+    }
 
+    /**
+     * Splits methods, which are larger than splitMethodsLimit after instrumenting. Returns false if none of them
+     * can be split.
+     */
+    private boolean splitHugeMethods(MethodSplitter splitter, ClassNode classNode, TransformResult result,
+                                     Map<MethodId, MethodAnalyzeResult> analyzeResults) {
+        final Map<String, MethodNode> methodNodes = new HashMap<>();
+        for (MethodNode methodNode : classNode.methods) {
+            methodNodes.put(methodNode.name + methodNode.desc, methodNode);
+        }
+        boolean wasSplit = false;
+        for (MethodReport report : result.getMethodReports()) {
+            if (!report.isHuge(splitMethodsLimit)) continue;
+            final MethodId methodId = new MethodId(classNode.name, report.methodName, report.desc);
+            try {
+                wasSplit |= splitter.split(methodNodes.get(report.methodName + report.desc),
+                        analyzeResults.get(methodId).getRestorePoints());
+            } catch (RuntimeException e) {
+                throw new RuntimeException("Cannot split method " + report, e);
+            }
+        }
+        return wasSplit;
+    }
+
+    /**
+     * Analyzes methods of class, returns results for methods, which should be instrumented.
+     */
+    private static Map<MethodId, MethodAnalyzeResult> analyzeMethods(ClassNode classNode,
+                                                                    Map<MethodId, AsyncLambdaInfo> asyncLambdas,
+                                                                    ClassHierarchy classHierarchy) {
+        final String className = classNode.name;
+        final Map<MethodId, MethodAnalyzeResult> analyzeResults = new HashMap<>();
         // Сначала посчитаем для каждого метода кол-во точек восстановления внутри него
         // Это необходимо для генерации кода switch в начале метода
-        ClassReader countingReader = new ClassReader(bytes);
-        countingReader.accept(new ClassVisitor(Opcodes.ASM5) {
-            @Override
-            public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
-                // Сохраняем имя класса в field, а также определяем, реализует ли этот класс ICoroRunnable
-                className = name;
-                super.visit(version, access, name, signature, superName, interfaces);
+        for (MethodNode methodNode : classNode.methods) {
+            final MethodId methodId = new MethodId(className, methodNode.name, methodNode.desc);
+            try {
+                new MethodAnalyzer(className, methodNode, analyzeResults, classHierarchy,
+                        asyncLambdas.get(methodId)).analyze();
+            } catch (RuntimeException e) {
+                throw new RuntimeException("Cannot instrument class " + className, e);
             }
+        }
+        return analyzeResults;
+    }
 
-            @Override
-            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
-                return new MethodAnalyzer(Opcodes.ASM5, access, className, name, desc,
-                        signature, exceptions, analyzeResults, classLoader,
-                        asyncLambdas.get(new MethodId(className, name, desc)));
-            }
-        }, 0);
+    /**
+     * Writes instrumented class. If copyFrom is passed, class is written on the base of this reader
+     * (constant pool and not instrumented methods are copied as is), otherwise it's written from the tree.
+     * Sizes of original methods are always taken from source reader.
+     */
+    private TransformResult instrument(ClassReader source, ClassReader copyFrom, ClassNode classNode,
+                                       Map<MethodId, MethodAnalyzeResult> analyzeResults,
+                                       ClassHierarchy classHierarchy) {
+        final String className = classNode.name;
+        final boolean isInterface = (classNode.access & Opcodes.ACC_INTERFACE) != 0;
+        final Map<MethodId, MethodNode> methodNodes = new HashMap<>();
+        for (MethodNode methodNode : classNode.methods) {
+            methodNodes.put(new MethodId(className, methodNode.name, methodNode.desc), methodNode);
+        }
 
-        ClassReader reader = new ClassReader(bytes);
-        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS /*| ClassWriter.COMPUTE_FRAMES*/) {
-            @Override
-            protected String getCommonSuperClass(String type1, String type2) {
-                try {
-                    return super.getCommonSuperClass(type1, type2);
-                } catch (RuntimeException e) {
-                    // todo : убедиться в том, что всегда возвращать Object здесь - безопасно
-                    return "java/lang/Object";
-                }
-            }
-        };
+        ClassWriter writer = copyFrom != null
+                ? new HierarchyClassWriter(copyFrom, classHierarchy)
+                : new HierarchyClassWriter(classHierarchy);
+        final FrameClassGenerator frameClassGenerator = frameClasses
+                ? new FrameClassGenerator(className, continuations, isInterface) : null;
+        // Frames are saved by bulk helpers (static methods, which can't be added to interfaces before Java 9)
+        final SaveHelperGenerator saveHelperGenerator = !frameClasses && !isInterface
+                ? new SaveHelperGenerator(className) : null;
+        final Map<MethodId, MethodAdapter> methodAdapters = new LinkedHashMap<>();
         ClassVisitor adapter = new ClassVisitor(Opcodes.ASM5, writer) {
             @Override
             public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
@@ -183,27 +783,101 @@ public class Program {
                 if (analyzeResult.getRestorePointCallsCount() == 0)
                     return super.visitMethod(access, name, desc, signature, exceptions);
 
-                wasModified = true;
-
-                return new MethodAdapter(Opcodes.ASM5, super.visitMethod(access, name, desc, signature, exceptions),
-                        analyzeResult,
+                // Метод генерируется из прочитанного дерева, а reader (или дерево) пропускает его
+                // (visitMethod возвращает null)
+                final MethodAdapter methodAdapter = new MethodAdapter(Opcodes.ASM5,
+                        super.visitMethod(access, name, desc, signature, exceptions),
+                        analyzeResult, methodId,
                         (access & Opcodes.ACC_STATIC) == Opcodes.ACC_STATIC,
-                        Type.getType(desc).getReturnType());
+                        Type.getType(desc).getReturnType(),
+                        frameClassGenerator, saveHelperGenerator);
+                methodAdapters.put(methodId, methodAdapter);
+                methodNodes.get(methodId).accept(methodAdapter);
+                return null;
+            }
+
+            @Override
+            public void visitEnd() {
+                if (saveHelperGenerator != null) saveHelperGenerator.generate(cv);
+                if (frameClassGenerator != null) frameClassGenerator.generateResumeBridges(cv);
+                super.visitEnd();
             }
         };
         try {
-            reader.accept(adapter, 0);
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(-1);
+            if (copyFrom != null) {
+                copyFrom.accept(adapter, 0);
+            } else {
+                classNode.accept(adapter);
+            }
+        } catch (RuntimeException e) {
+            throw new RuntimeException("Cannot instrument class " + className, e);
+        }
+
+        byte[] transformed = writer.toByteArray();
+
+        final Map<String, Integer> originalSizes = MethodReport.codeSizes(source);
+        final Map<String, Integer> instrumentedSizes = MethodReport.codeSizes(new ClassReader(transformed));
+        final List<MethodReport> methodReports = new ArrayList<>();
+        for (Map.Entry<MethodId, MethodAdapter> entry : methodAdapters.entrySet()) {
+            final MethodId methodId = entry.getKey();
+            final String nameAndDesc = methodId.methodName + methodId.signature;
+            methodReports.add(new MethodReport(className, methodId.methodName, methodId.signature,
+                    analyzeResults.get(methodId).getRestorePointCallsCount(), entry.getValue().getSavedValues(),
+                    originalSizes.getOrDefault(nameAndDesc, 0), instrumentedSizes.get(nameAndDesc)));
+        }
+
+        return new TransformResult(true, className, transformed,
+                frameClassGenerator != null ? frameClassGenerator.getGeneratedClasses() : Collections.emptyMap(),
+                classHierarchy.getReadClasses(), methodReports);
+    }
+
+    private static class HierarchyClassWriter extends ClassWriter {
+        private final ClassHierarchy classHierarchy;
+
+        HierarchyClassWriter(ClassHierarchy classHierarchy) {
+            super(ClassWriter.COMPUTE_MAXS /*| ClassWriter.COMPUTE_FRAMES*/);
+            this.classHierarchy = classHierarchy;
         }
 
-        if (wasModified) {
-            byte[] transformed = writer.toByteArray();
-            return new TransformResult(true, className, transformed);
-        } else {
-            return new TransformResult(false, className, bytes);
+        HierarchyClassWriter(ClassReader classReader, ClassHierarchy classHierarchy) {
+            super(classReader, ClassWriter.COMPUTE_MAXS /*| ClassWriter.COMPUTE_FRAMES*/);
+            this.classHierarchy = classHierarchy;
+        }
+
+        @Override
+        protected String getCommonSuperClass(String type1, String type2) {
+            // Не загружаем классы (как делает реализация по умолчанию), а берём иерархию из индекса
+            return classHierarchy.getCommonSuperClass(type1, type2);
+        }
+    }
+
+    private static final byte[] ASYNC_DESC = "Lorg/jcoro/Async;".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Returns true if constant pool of class contains descriptor of @Async annotation
+     * (both method annotations and type annotations of lambdas refer to it).
+     */
+    static boolean refersToAsync(ClassReader reader) {
+        final byte[] b = reader.b;
+        outer:
+        for (int i = 1; i < reader.getItemCount(); i++) {
+            // Offset of item follows its tag; second index of long and double items has zero offset
+            final int offset = reader.getItem(i);
+            if (offset == 0 || b[offset - 1] != 1 /* CONSTANT_Utf8 */) continue;
+            if (reader.readUnsignedShort(offset) != ASYNC_DESC.length) continue;
+            for (int j = 0; j < ASYNC_DESC.length; j++) {
+                if (b[offset + 2 + j] != ASYNC_DESC[j]) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean hasInvokeDynamic(MethodNode methodNode) {
+        for (AbstractInsnNode insn = methodNode.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            if (insn.getOpcode() == Opcodes.INVOKEDYNAMIC) return true;
         }
+        return false;
     }
 
     private static void collectClassFilesRecursively(List<File> allClassFiles,
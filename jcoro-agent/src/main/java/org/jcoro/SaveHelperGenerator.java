@@ -0,0 +1,282 @@
+package org.jcoro;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Generates static helper methods, which save the whole frame of suspended method by few calls
+ * (instead of one Coro.saveXxx() call per value). One helper is generated for each frame shape used
+ * in the class, and the same helper is shared between all restore points with this shape.
+ *
+ * Shape is a string of kinds of saved values: 'R' (reference), 'I' (int, short, byte, char, boolean),
+ * 'J' (long), 'F' (float), 'D' (double), and 'N' - null operand, which is passed to helper, but not saved.
+ * Shape consists of two parts separated by ':' - stack bottom operands (from bottom to top) and locals
+ * (including "this"). Helper takes values in the shape order, then coro and number of restore point (state):
+ * `private static synthetic void $$saveFrameN(v0, v1, ..., Coro coro, int state)`.
+ *
+ * Values of each kind are written into space reserved by one Coro.reserveXxx() call in the order,
+ * in which separate saveXxx() calls would push them: stack operands from top to bottom, then locals.
+ * So instrumented method restores them by restoreXxx() calls as usual. Kind with single value
+ * is saved by usual saveXxx() call.
+ *
+ * @author elwood
+ */
+public class SaveHelperGenerator {
+    // Kinds of saved values (each kind has its own storage in coro)
+    private static final String KINDS = "RIJFD";
+
+    // Max size of helper arguments (in slots) - JVM allows 255 slots for method arguments
+    private static final int MAX_ARGS_SIZE = 255;
+
+    private final String ownerClassName;
+    private final Map<String, String> helpers = new LinkedHashMap<>(); // shape -> helper name
+
+    public SaveHelperGenerator(String ownerClassName) {
+        this.ownerClassName = ownerClassName;
+    }
+
+    public String getOwnerClassName() {
+        return ownerClassName;
+    }
+
+    public static String shape(String stackShape, String localsShape) {
+        return stackShape + ":" + localsShape;
+    }
+
+    /**
+     * Returns true if helper for this shape can be generated (arguments fit into limit).
+     */
+    public static boolean isSupported(String shape) {
+        int argsSize = 2; // coro and state
+        for (int i = 0; i < shape.length(); i++) {
+            final char kind = shape.charAt(i);
+            if (kind == ':') continue;
+            argsSize += (kind == 'J' || kind == 'D') ? 2 : 1;
+        }
+        return argsSize <= MAX_ARGS_SIZE;
+    }
+
+    /**
+     * Returns name of helper for specified shape (helper is generated when class is finished).
+     */
+    public String getHelper(String shape) {
+        return helpers.computeIfAbsent(shape, s -> "$$saveFrame" + helpers.size());
+    }
+
+    public static String helperDescriptor(String shape) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < shape.length(); i++) {
+            if (shape.charAt(i) == ':') continue;
+            sb.append(kindDescriptor(shape.charAt(i)));
+        }
+        return sb.append("Lorg/jcoro/Coro;I)V").toString();
+    }
+
+    private static String kindDescriptor(char kind) {
+        switch (kind) {
+            case 'R':
+            case 'N':
+                return "Ljava/lang/Object;";
+            case 'I':
+                return "I";
+            case 'J':
+                return "J";
+            case 'F':
+                return "F";
+            case 'D':
+                return "D";
+            default:
+                throw new AssertionError("This shouldn't happen");
+        }
+    }
+
+    private static String kindName(char kind) {
+        switch (kind) {
+            case 'R':
+                return "Refs";
+            case 'I':
+                return "Ints";
+            case 'J':
+                return "Longs";
+            case 'F':
+                return "Floats";
+            case 'D':
+                return "Doubles";
+            default:
+                throw new AssertionError("This shouldn't happen");
+        }
+    }
+
+    private static String saveMethodSuffix(char kind) {
+        switch (kind) {
+            case 'R':
+                return "Ref";
+            case 'I':
+                return "Int";
+            case 'J':
+                return "Long";
+            case 'F':
+                return "Float";
+            case 'D':
+                return "Double";
+            default:
+                throw new AssertionError("This shouldn't happen");
+        }
+    }
+
+    private static String reserveMethod(char kind) {
+        return "reserve" + kindName(kind);
+    }
+
+    private static String arrayGetter(char kind) {
+        return "get" + kindName(kind) + "Array";
+    }
+
+    private static String arrayDescriptor(char kind) {
+        return "[" + kindDescriptor(kind);
+    }
+
+    private static int loadOpcode(char kind) {
+        switch (kind) {
+            case 'R':
+            case 'N':
+                return Opcodes.ALOAD;
+            case 'I':
+                return Opcodes.ILOAD;
+            case 'J':
+                return Opcodes.LLOAD;
+            case 'F':
+                return Opcodes.FLOAD;
+            case 'D':
+                return Opcodes.DLOAD;
+            default:
+                throw new AssertionError("This shouldn't happen");
+        }
+    }
+
+    private static int arrayStoreOpcode(char kind) {
+        switch (kind) {
+            case 'R':
+                return Opcodes.AASTORE;
+            case 'I':
+                return Opcodes.IASTORE;
+            case 'J':
+                return Opcodes.LASTORE;
+            case 'F':
+                return Opcodes.FASTORE;
+            case 'D':
+                return Opcodes.DASTORE;
+            default:
+                throw new AssertionError("This shouldn't happen");
+        }
+    }
+
+    /**
+     * Generates ICONST/BIPUSH/SIPUSH/LDC for int constant.
+     */
+    public static void pushInt(MethodVisitor mv, int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(Opcodes.ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+    /**
+     * Adds all requested helpers to the class.
+     */
+    public void generate(ClassVisitor cv) {
+        for (Map.Entry<String, String> helper : helpers.entrySet()) {
+            final String shape = helper.getKey();
+            MethodVisitor mv = cv.visitMethod(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+                    helper.getValue(), helperDescriptor(shape), null, null);
+            mv.visitCode();
+            generateBody(mv, shape);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+    }
+
+    private static void generateBody(MethodVisitor mv, String shape) {
+        final int separator = shape.indexOf(':');
+        final String kinds = shape.substring(0, separator) + shape.substring(separator + 1);
+        // Locals of helper: arguments (values, coro, state), then array and base index
+        final int[] argLocals = new int[kinds.length()];
+        int local = 0;
+        for (int i = 0; i < kinds.length(); i++) {
+            argLocals[i] = local;
+            final char kind = kinds.charAt(i);
+            local += (kind == 'J' || kind == 'D') ? 2 : 1;
+        }
+        final int coroLocal = local;
+        final int stateLocal = local + 1;
+        final int arrayLocal = local + 2;
+        final int baseLocal = local + 3;
+
+        // Order of writing: stack operands from top to bottom, then locals
+        final int[] order = new int[kinds.length()];
+        for (int i = 0; i < separator; i++) order[i] = separator - 1 - i;
+        for (int i = separator; i < kinds.length(); i++) order[i] = i;
+
+        for (int k = 0; k < KINDS.length(); k++) {
+            final char kind = KINDS.charAt(k);
+            final int count = count(kinds, kind);
+            if (count == 0) continue;
+            if (count == 1) {
+                // Single value is saved by usual call, reserving would take two calls
+                mv.visitVarInsn(Opcodes.ALOAD, coroLocal);
+                mv.visitVarInsn(loadOpcode(kind), argLocals[kinds.indexOf(kind)]);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "org/jcoro/Coro", "save" + saveMethodSuffix(kind),
+                        "(" + kindDescriptor(kind) + ")V", false);
+                continue;
+            }
+
+            // base = coro.reserveXxx(count); array = coro.getXxxArray();
+            mv.visitVarInsn(Opcodes.ALOAD, coroLocal);
+            pushInt(mv, count);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "org/jcoro/Coro", reserveMethod(kind), "(I)I", false);
+            mv.visitVarInsn(Opcodes.ISTORE, baseLocal);
+            mv.visitVarInsn(Opcodes.ALOAD, coroLocal);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "org/jcoro/Coro", arrayGetter(kind),
+                    "()" + arrayDescriptor(kind), false);
+            mv.visitVarInsn(Opcodes.ASTORE, arrayLocal);
+
+            // array[base + index] = value
+            int index = 0;
+            for (int i : order) {
+                if (kinds.charAt(i) != kind) continue;
+                mv.visitVarInsn(Opcodes.ALOAD, arrayLocal);
+                mv.visitVarInsn(Opcodes.ILOAD, baseLocal);
+                if (index != 0) {
+                    pushInt(mv, index);
+                    mv.visitInsn(Opcodes.IADD);
+                }
+                mv.visitVarInsn(loadOpcode(kind), argLocals[i]);
+                mv.visitInsn(arrayStoreOpcode(kind));
+                index++;
+            }
+        }
+
+        // coro.saveState(state)
+        mv.visitVarInsn(Opcodes.ALOAD, coroLocal);
+        mv.visitVarInsn(Opcodes.ILOAD, stateLocal);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "org/jcoro/Coro", "saveState", "(I)V", false);
+        mv.visitInsn(Opcodes.RETURN);
+    }
+
+    private static int count(String shape, char kind) {
+        int count = 0;
+        for (int i = 0; i < shape.length(); i++) {
+            if (shape.charAt(i) == kind) count++;
+        }
+        return count;
+    }
+}
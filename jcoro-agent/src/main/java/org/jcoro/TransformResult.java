@@ -1,5 +1,10 @@
 package org.jcoro;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * @author elwood
  */
@@ -7,11 +12,33 @@ public class TransformResult {
     private final boolean wasModified;
     private final String className;
     private final byte[] data;
+    private final Map<String, byte[]> generatedClasses;
+    private final Set<String> dependencies;
+    private final List<MethodReport> methodReports;
 
     public TransformResult(boolean wasModified, String className, byte[] data) {
+        this(wasModified, className, data, Collections.emptyMap(), Collections.emptySet());
+    }
+
+    public TransformResult(boolean wasModified, String className, byte[] data,
+                           Map<String, byte[]> generatedClasses) {
+        this(wasModified, className, data, generatedClasses, Collections.emptySet());
+    }
+
+    public TransformResult(boolean wasModified, String className, byte[] data,
+                           Map<String, byte[]> generatedClasses, Set<String> dependencies) {
+        this(wasModified, className, data, generatedClasses, dependencies, Collections.emptyList());
+    }
+
+    public TransformResult(boolean wasModified, String className, byte[] data,
+                           Map<String, byte[]> generatedClasses, Set<String> dependencies,
+                           List<MethodReport> methodReports) {
         this.wasModified = wasModified;
         this.className = className;
         this.data = data;
+        this.generatedClasses = generatedClasses;
+        this.dependencies = dependencies;
+        this.methodReports = methodReports;
     }
 
     public byte[] getData() {
@@ -22,6 +49,35 @@ public class TransformResult {
         return className;
     }
 
+    /**
+     * Classes generated while instrumenting (frame classes): internal name -> bytecode.
+     */
+    public Map<String, byte[]> getGeneratedClasses() {
+        return generatedClasses;
+    }
+
+    /**
+     * Names of other classes, hierarchy of which was used when instrumenting the class
+     * (result of instrumenting can change if they are changed).
+     */
+    public Set<String> getDependencies() {
+        return dependencies;
+    }
+
+    /**
+     * Reports about instrumented methods of the class.
+     */
+    public List<MethodReport> getMethodReports() {
+        return methodReports;
+    }
+
+    /**
+     * Returns true if some of instrumented methods are larger than limit (in bytes).
+     */
+    public boolean hasHugeMethods(int limit) {
+        return methodReports.stream().anyMatch(report -> report.isHuge(limit));
+    }
+
     public boolean wasModified() {
         return wasModified;
     }
@@ -0,0 +1,30 @@
+package org.jcoro;
+
+import java.util.Arrays;
+
+/**
+ * Stack of coros running in the thread (coro can start another coro inside, so there may be more
+ * than one active coro). Accessed only from the owning thread, so it is not synchronized.
+ *
+ * @author elwood
+ */
+final class ActiveCoroStack {
+    private Coro[] coros = new Coro[4];
+    private int size;
+
+    void push(Coro coro) {
+        if (size == coros.length) coros = Arrays.copyOf(coros, size << 1);
+        coros[size++] = coro;
+    }
+
+    void pop() {
+        coros[--size] = null;
+    }
+
+    /**
+     * Returns top coro or null if stack is empty.
+     */
+    Coro peek() {
+        return size == 0 ? null : coros[size - 1];
+    }
+}
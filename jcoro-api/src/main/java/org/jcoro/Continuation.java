@@ -0,0 +1,33 @@
+package org.jcoro;
+
+/**
+ * Saved frame of method instrumented in continuations mode. Frame classes generated for restore points
+ * extend this class: besides saved locals and stack operands, frame knows the restore point, at which
+ * method has been suspended, and can continue the method from this point.
+ *
+ * When coro is resumed, frames are continued starting from the innermost one: when method returns,
+ * its result is passed to the next (outer) frame. So outer methods are not called again while inner
+ * ones are running.
+ *
+ * @author elwood
+ */
+public abstract class Continuation {
+    // Number of restore point, at which method has been suspended
+    public int state;
+
+    // "self" of frames of root lambdas (static methods, which are called by runnable of coro)
+    public static final Object ROOT_LAMBDA = new Object();
+
+    // "this" of suspended method (null if method is static, ROOT_LAMBDA if method is root lambda)
+    public Object self;
+
+    // True if method has been suspended inside call of unpatchable method. Such method can't be continued
+    // after the call, so it calls unpatchable method again (and inner methods are called again too)
+    public boolean unpatchable;
+
+    /**
+     * Calls suspended method, which takes this frame (see Coro.takeContinuation()) and continues from the
+     * restore point. Returns result of the method (boxed if primitive, null if method is void).
+     */
+    public abstract Object resume();
+}
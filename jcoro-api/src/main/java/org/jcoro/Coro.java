@@ -1,19 +1,40 @@
 package org.jcoro;
 
-import java.util.Stack;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * @author elwood
  */
 @SuppressWarnings("unused")
 public class Coro implements AutoCloseable {
-    private static ThreadLocal<Stack<Coro>> activeCoroStack = new ThreadLocal<>();
-
-    private final ICoroRunnable runnable;
-
-    private volatile Object memoryBarrier;
-
-    private Coro(ICoroRunnable runnable) {
+    // Used if coro is running not in CoroThread
+    private static ThreadLocal<ActiveCoroStack> activeCoroStack = new ThreadLocal<>();
+
+    private ICoroRunnable runnable;
+
+    // Coro is not running now: not started yet, suspended after yield or finished
+    private static final int SUSPENDED = 0;
+    // Coro is running (executing user code or restoring its stack)
+    private static final int RUNNING = 1;
+    // yield() has been called, stack is being unwound
+    private static final int UNWINDING = 2;
+    // resume() has been called while coro was RUNNING or UNWINDING, coro will be continued
+    // by the thread which is running it right after unwinding is finished
+    private static final int RESUME_PENDING = 3;
+    // Suspended coro is being deep parked (see DeepParker), resume() waits until it's SUSPENDED again
+    private static final int PARKING = 4;
+
+    private static final AtomicIntegerFieldUpdater<Coro> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Coro.class, "state");
+
+    // Also works as memory barrier: thread which resumes coro (CAS on this field) sees all changes
+    // made by the thread which has suspended it
+    private volatile int state = SUSPENDED;
+
+    Coro(ICoroRunnable runnable) {
         this.runnable = runnable;
     }
 
@@ -27,10 +48,10 @@ public class Coro implements AutoCloseable {
      * need to retrieve current coro;
      */
     public static Coro get() {
-        final Stack<Coro> coroStack = activeCoroStack.get();
-        if (null == coroStack || coroStack.empty())
+        final Coro coro = getSafe();
+        if (null == coro)
             throw new IllegalStateException("No active coro exists");
-        return coroStack.peek();
+        return coro;
     }
 
     /**
@@ -38,8 +59,11 @@ public class Coro implements AutoCloseable {
      * Called from generated code when instrumented method starts.
      */
     public static Coro getSafe() {
-        final Stack<Coro> coroStack = activeCoroStack.get();
-        if (null == coroStack || coroStack.empty())
+        final Thread thread = Thread.currentThread();
+        if (thread instanceof CoroThread)
+            return ((CoroThread) thread).activeCoroStack.peek();
+        final ActiveCoroStack coroStack = activeCoroStack.get();
+        if (null == coroStack)
             return null;
         return coroStack.peek();
     }
@@ -49,16 +73,22 @@ public class Coro implements AutoCloseable {
      * Can be used only if caller is sure about coro exists.
      */
     private static Coro getUnsafe() {
-        return activeCoroStack.get().peek();
+        return getActiveCoroStack().peek();
     }
 
-    private static void pushCoro(Coro coro) {
-        Stack<Coro> coroStack = activeCoroStack.get();
+    /**
+     * Returns stack of active coros of current thread (creates it if need).
+     */
+    private static ActiveCoroStack getActiveCoroStack() {
+        final Thread thread = Thread.currentThread();
+        if (thread instanceof CoroThread)
+            return ((CoroThread) thread).activeCoroStack;
+        ActiveCoroStack coroStack = activeCoroStack.get();
         if (coroStack == null) {
-            coroStack = new Stack<>();
+            coroStack = new ActiveCoroStack();
             activeCoroStack.set(coroStack);
         }
-        coroStack.push(coro);
+        return coroStack;
     }
 
     private boolean isYielding = false;
@@ -67,6 +97,42 @@ public class Coro implements AutoCloseable {
         return new Coro(runnable);
     }
 
+    // Scheduler in which coro was spawned (null if coro is started manually)
+    private CoroScheduler scheduler;
+    private int homeWorker;
+    private Runnable resumeTask;
+
+    /**
+     * Creates coro and starts it in the scheduler. Worker which starts coro becomes its home worker.
+     */
+    public static Coro spawn(CoroScheduler scheduler, ICoroRunnable runnable) {
+        final Coro coro = new Coro(runnable);
+        coro.startIn(scheduler);
+        return coro;
+    }
+
+    void startIn(CoroScheduler scheduler) {
+        this.scheduler = scheduler;
+        this.homeWorker = scheduler.nextHomeWorker();
+        this.resumeTask = this::resume;
+        scheduler.execute(homeWorker, this::start);
+    }
+
+    /**
+     * Resumes coro from completion handler of asynchronous operation. If coro has been spawned
+     * in scheduler with `resumeOnHomeWorker` option, resuming is enqueued to coro's home worker.
+     * Otherwise coro is resumed immediately in the current thread.
+     */
+    public void dispatchResume() {
+        if (scheduler != null && scheduler.isResumeOnHomeWorker()) {
+            // Coro is not suspended yet, it will be continued by the thread which runs it now (see awaitResume())
+            if (markResumePending()) return;
+            scheduler.execute(homeWorker, resumeTask);
+        } else {
+            resume();
+        }
+    }
+
     private Runnable deferFunc;
 
     private boolean suspendedAfterYield = false;
@@ -87,7 +153,23 @@ public class Coro implements AutoCloseable {
             return;
         }
         isYielding = true;
-        get().refsStack.push(this); // Аргументы и this если есть
+        // If resume() has been already called (asynchronous operation was started before yield and
+        // is already completed), state is RESUME_PENDING, and we should leave it as is
+        STATE.compareAndSet(this, RUNNING, UNWINDING);
+        get().valuesStack.pushRef(this); // Аргументы и this если есть
+    }
+
+    /**
+     * Try-then-suspend variant of yield(): suspends coro only if it hasn't been resumed yet. Should be called
+     * after starting of asynchronous operation which resumes coro when completed. If operation has been
+     * completed already (in the current thread or in another one), returns immediately without saving
+     * and restoring the stack.
+     */
+    public void awaitResume() {
+        // When restoring, this call is a restore point and should behave as yield()
+        if (!suspendedAfterYield && STATE.compareAndSet(this, RESUME_PENDING, RUNNING))
+            return;
+        yield();
     }
 
     public void setDeferFunc(Runnable deferFunc) {
@@ -118,36 +200,150 @@ public class Coro implements AutoCloseable {
         resume();
     }
 
+    /**
+     * Default value of trampolineResume flag for new coros. Can be changed using
+     * system property "jcoro.trampolineResume".
+     */
+    private static final boolean TRAMPOLINE_RESUME_DEFAULT =
+            Boolean.parseBoolean(System.getProperty("jcoro.trampolineResume", "false"));
+
+    private boolean trampolineResume = TRAMPOLINE_RESUME_DEFAULT;
+
+    // Thread which is executing resume loop now (null if coro is not running)
+    private Thread resumeLoopThread;
+    // Set if resume() has been called from running resume loop in the same thread
+    private boolean resumePending;
+
+    public boolean isTrampolineResume() {
+        return trampolineResume;
+    }
+
+    /**
+     * If enabled, resume() called in the thread which is already running this coro
+     * (typically, from completion handler of asynchronous operation completed synchronously inside deferFunc)
+     * doesn't resume coro recursively, but only marks it, and coro will be resumed by the outermost
+     * resume() call after deferFunc returns. So, stack doesn't grow even if all operations are completed
+     * synchronously. Note that in this mode the rest of deferFunc (code after the call which has
+     * completed synchronously) is executed before the coro continues.
+     */
+    public void setTrampolineResume(boolean trampolineResume) {
+        this.trampolineResume = trampolineResume;
+    }
+
+    // Pool, to which coro is returned when it's finished (null if coro isn't pooled)
+    private CoroPool pool;
+    // Count of resume() calls being executed now (counted only for pooled coros): coro is returned to pool
+    // by the last of them, so it isn't reused while some thread still runs its resume loop or deferFunc
+    private volatile int activeResumes;
+    private static final AtomicIntegerFieldUpdater<Coro> ACTIVE_RESUMES =
+            AtomicIntegerFieldUpdater.newUpdater(Coro.class, "activeResumes");
+    // Set when coro has returned from run() (or thrown exception from it)
+    private boolean finished;
+
+    void setPool(CoroPool pool) {
+        this.pool = pool;
+    }
+
     public void resume() {
-        // If another thread will call resume() after yielding, it will read from volatile field,
-        // and will see all changes made in memory before writing to field
-        Object notUsed = this.memoryBarrier;
+        final CoroPool pool = this.pool;
+        if (pool == null) {
+            resumeLoop();
+            return;
+        }
+        ACTIVE_RESUMES.incrementAndGet(this);
+        try {
+            resumeLoop();
+        } finally {
+            if (ACTIVE_RESUMES.decrementAndGet(this) == 0 && finished)
+                pool.release(this);
+        }
+    }
 
-        pushCoro(this);
+    private void resumeLoop() {
+        if (!trampolineResume) {
+            resumeOnce();
+            return;
+        }
+        final Thread currentThread = Thread.currentThread();
+        if (resumeLoopThread == currentThread) {
+            // Called recursively (from deferFunc), will be resumed by outer call
+            if (!markResumePending())
+                resumePending = true;
+            return;
+        }
+        resumeLoopThread = currentThread;
         try {
-            // Call coro func
-            if (suspendedAfterYield) {
-                Object rootInstance = popRef();
-                if (rootInstance != runnable
-                        && rootInstance != null) // rootInstance is null when using lambdas (which are static methods actually)
-                    throw new AssertionError("This shouldn't happen");
-            }
-            runnable.run();
+            do {
+                resumePending = false;
+                resumeOnce();
+            } while (resumePending);
         } finally {
-            if (isYielding) {
-                isYielding = false;
-                suspendedAfterYield = true;
+            // Another thread could start its own loop (if resume() has been called concurrently)
+            if (resumeLoopThread == currentThread)
+                resumeLoopThread = null;
+        }
+    }
+
+    /**
+     * If coro is running or unwinding now, marks it as resumed and returns true. Thread which runs coro
+     * will continue it after unwinding (or will not suspend it at all, see awaitResume()).
+     * Returns false if coro is suspended.
+     */
+    private boolean markResumePending() {
+        while (true) {
+            final int current = state;
+            if (current == SUSPENDED) return false;
+            if (current == PARKING) {
+                Thread.yield();
+                continue;
             }
-            activeCoroStack.get().pop();
+            if (current == RESUME_PENDING) throw new IllegalStateException("Coro is already resumed");
+            if (STATE.compareAndSet(this, current, RESUME_PENDING)) return true;
         }
+    }
 
-        // Write to volatile field to set the memory barrier
-        this.memoryBarrier = null;
+    private void resumeOnce() {
+        while (true) {
+            if (STATE.compareAndSet(this, SUSPENDED, RUNNING)) break;
+            // Resumed before it has been suspended (asynchronous operation is completed in another thread
+            // while coro is still unwinding). Thread which runs coro will continue it after unwinding
+            if (markResumePending()) return;
+        }
+        if (parkedHandle != NOT_PARKED) unparkState();
+
+        while (true) {
+            final ActiveCoroStack coroStack = getActiveCoroStack();
+            coroStack.push(this);
+            boolean yielded = false;
+            try {
+                if (continuationsSize != 0) {
+                    // Suspended in continuations mode: frames are continued starting from the innermost one
+                    resumeContinuations();
+                } else {
+                    // Call coro func
+                    if (suspendedAfterYield) {
+                        Object rootInstance = restoreRef();
+                        if (rootInstance != runnable
+                                && rootInstance != null) // rootInstance is null when using lambdas (which are static methods actually)
+                            throw new AssertionError("This shouldn't happen");
+                    }
+                    unwindBase = 0;
+                    runnable.run();
+                    if (isYielding) reverseContinuations(0);
+                }
+            } catch (Throwable e) {
+                finished = true;
+                state = SUSPENDED;
+                throw e;
+            } finally {
+                if (isYielding) {
+                    isYielding = false;
+                    suspendedAfterYield = true;
+                    yielded = true;
+                }
+                coroStack.pop();
+            }
 
-        // Call defer func
-        // Note that there are no guarantees that all changes in memory made by deferFunc will be seen by another
-        // thread after resuming. If you need this, you should care about this explicitly.
-        if (deferFunc != null) {
             // Обнуляем deferFunc перед вызовом, т.к. внутри deferFunc может быть любой код,
             // в том числе и приводящий к рекурсивному вызову resume() - например если
             // запланированная в deferFunc асинхронная операция выполняется мгновенно в вызывающем потоке
@@ -156,68 +352,224 @@ public class Coro implements AutoCloseable {
             // это приведёт к тому, что крайний вызов будет лишним, а resume() выполнится ещё один раз,
             // когда уже не будет сохранённого state, и сопрограмма начнёт выполняться сначала.
             // В общем, произойдёт полное разрушение потока выполнения
-            Runnable deferFuncCopy = deferFunc;
+            final Runnable deferFuncCopy = deferFunc;
             deferFunc = null;
-            deferFuncCopy.run();
+
+            // Time of suspension is needed only for deep parking, it's seen by parker after CAS on state
+            if (yielded && deepParker != null) suspendedAt = System.nanoTime();
+
+            if (!yielded) {
+                // Coro is finished, resume() called while it was running has nothing to continue
+                finished = true;
+                state = SUSPENDED;
+            } else if (!STATE.compareAndSet(this, UNWINDING, SUSPENDED)) {
+                // RESUME_PENDING: coro has been resumed while unwinding, so continue it in the current thread
+                // (deferFunc is called before continuing, coro can't be resumed again until it is suspended)
+                if (deferFuncCopy != null) deferFuncCopy.run();
+                state = RUNNING;
+                continue;
+            }
+
+            // Call defer func
+            // Note that there are no guarantees that all changes in memory made by deferFunc will be seen by another
+            // thread after resuming. If you need this, you should care about this explicitly.
+            if (deferFuncCopy != null) deferFuncCopy.run();
+            return;
+        }
+    }
+
+    // Continuations mode (see Continuation). Frames of suspended methods, the innermost frame is on the top
+    private Continuation[] continuations = new Continuation[16];
+    private int continuationsSize;
+    // Count of frames, suspended inside calls of unpatchable methods
+    private int unpatchableContinuations;
+    // Size of continuations before current run: frames pushed while unwinding are placed after it
+    private int unwindBase;
+    // Frames continuations[nextContinuation..endContinuation) are taken by methods being resumed
+    private int nextContinuation;
+    private int endContinuation;
+    // True if method, which has taken its frame last, should call its callee again (see isRecallingCall())
+    private boolean recallingCall;
+    // Result (or exception) of inner method, passed to the frame being continued
+    private Object resumeResult;
+    private Throwable resumeException;
+
+    /**
+     * Continues suspended frames. If there are no frames suspended inside unpatchable calls, only the innermost
+     * frame is called, and when it returns, its result is passed to the next frame, and so on. Otherwise
+     * frames from the outermost unpatchable one are called again (each one calls its callee), and the innermost
+     * frame continues after yield().
+     */
+    private void resumeContinuations() {
+        // The outermost frame is frame of root method: runnable itself, or root lambda
+        final Object rootInstance = continuations[0].self;
+        if (rootInstance != runnable && rootInstance != Continuation.ROOT_LAMBDA)
+            throw new AssertionError("This shouldn't happen");
+
+        Object result = null;
+        Throwable exception = null;
+        while (continuationsSize != 0) {
+            int start = continuationsSize - 1;
+            if (unpatchableContinuations != 0) {
+                for (int i = 0; i < continuationsSize; i++) {
+                    if (continuations[i].unpatchable) {
+                        start = i;
+                        break;
+                    }
+                }
+            }
+            final Continuation continuation = continuations[start];
+            nextContinuation = start;
+            endContinuation = continuationsSize;
+            continuationsSize = start;
+            unwindBase = start;
+            resumeResult = result;
+            resumeException = exception;
+            try {
+                result = continuation.resume();
+                exception = null;
+            } catch (Throwable e) {
+                // Exception is rethrown by outer frame (at the call of method, which has thrown it)
+                if (isYielding || continuationsSize == 0) throw e;
+                result = null;
+                exception = e;
+            }
+            if (isYielding) {
+                reverseContinuations(start);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Frames are pushed while unwinding starting from the innermost one, so pushed frames are reversed
+     * to place the innermost frame on the top.
+     */
+    private void reverseContinuations(int from) {
+        for (int i = from, j = continuationsSize - 1; i < j; i++, j--) {
+            final Continuation tmp = continuations[i];
+            continuations[i] = continuations[j];
+            continuations[j] = tmp;
+        }
+    }
+
+    /**
+     * Saves frame of method being unwound (in continuations mode). Method, which has been called again
+     * by recalled call and is still inside the call (it hasn't run since), pushes the same frame again.
+     */
+    public void pushContinuation(Continuation continuation) {
+        if (continuationsSize == unwindBase) {
+            // The innermost frame: yield() isn't called again in this mode, so "this" saved by yield() isn't needed
+            valuesStack.popRef();
         }
+        if (continuationsSize == continuations.length)
+            continuations = Arrays.copyOf(continuations, continuationsSize << 1);
+        continuations[continuationsSize++] = continuation;
+        if (continuation.unpatchable) unpatchableContinuations++;
+    }
+
+    /**
+     * Returns frame of method being resumed or null if method is called as usual.
+     * Called from generated code when method instrumented in continuations mode starts.
+     */
+    public Continuation takeContinuation() {
+        if (nextContinuation == endContinuation) return null;
+        final Continuation continuation = continuations[nextContinuation];
+        continuations[nextContinuation++] = null;
+        if (continuation.unpatchable) unpatchableContinuations--;
+        recallingCall = continuation.unpatchable || nextContinuation != endContinuation;
+        // The innermost frame continues after yield()
+        if (!recallingCall) suspendedAfterYield = false;
+        return continuation;
+    }
+
+    /**
+     * Returns true if method, which has taken its frame, should call its callee again instead of continuing
+     * after the call (callee is unpatchable or its frame is taken next).
+     */
+    public boolean isRecallingCall() {
+        return recallingCall;
     }
 
-    private Stack<Integer> statesStack = new Stack<>();
+    /**
+     * Returns "this" of the callee being called again (it's saved in the frame, which is taken next).
+     */
+    public Object recallInstance() {
+        return continuations[nextContinuation].self;
+    }
 
-    private Stack<Object> refsStack = new Stack<>();
-    private Stack<Integer> intsStack = new Stack<>();
-    private Stack<Double> doublesStack = new Stack<>();
-    private Stack<Float> floatsStack = new Stack<>();
-    private Stack<Long> longsStack = new Stack<>();
+    public Object takeResumeResult() {
+        final Object result = resumeResult;
+        resumeResult = null;
+        return result;
+    }
+
+    public Throwable takeResumeException() {
+        final Throwable exception = resumeException;
+        resumeException = null;
+        return exception;
+    }
+
+    /**
+     * Returned by restoreState() if there are no saved states.
+     */
+    public static final int NO_STATE = -1;
+
+    private int[] statesStack = new int[16];
+    private int statesStackSize;
+
+    private final ValuesStack valuesStack = new ValuesStack();
+
+    // Static variants of save/restore methods. They look up current coro on each call,
+    // so generated code uses instance variants (see below) on coro retrieved once at method entry.
 
     public static void pushState(int state) {
-        getUnsafe().statesStack.push(state);
+        getUnsafe().saveState(state);
     }
 
     public static void pushRef(Object ref) {
-        getUnsafe().refsStack.push(ref);
+        getUnsafe().saveRef(ref);
     }
 
     public static void pushInt(int i) {
-        getUnsafe().intsStack.push(i);
+        getUnsafe().saveInt(i);
     }
 
     public static void pushDouble(double d) {
-        getUnsafe().doublesStack.push(d);
+        getUnsafe().saveDouble(d);
     }
 
     public static void pushFloat(float f) {
-        getUnsafe().floatsStack.push(f);
+        getUnsafe().saveFloat(f);
     }
 
     public static void pushLong(long l) {
-        getUnsafe().longsStack.push(l);
+        getUnsafe().saveLong(l);
     }
 
     public static Integer popState() {
-        Stack<Integer> statesStack = getUnsafe().statesStack;
-        if (statesStack.empty()) return null;
-        return statesStack.pop();
+        final int state = getUnsafe().restoreState();
+        return state == NO_STATE ? null : state;
     }
 
     public static Object popRef() {
-        return getUnsafe().refsStack.pop();
+        return getUnsafe().restoreRef();
     }
 
     public static int popInt() {
-        return getUnsafe().intsStack.pop();
+        return getUnsafe().restoreInt();
     }
 
     public static double popDouble() {
-        return getUnsafe().doublesStack.pop();
+        return getUnsafe().restoreDouble();
     }
 
     public static float popFloat() {
-        return getUnsafe().floatsStack.pop();
+        return getUnsafe().restoreFloat();
     }
 
     public static long popLong() {
-        return getUnsafe().longsStack.pop();
+        return getUnsafe().restoreLong();
     }
 
     public static boolean isYielding() {
@@ -225,6 +577,125 @@ public class Coro implements AutoCloseable {
         return coro != null && coro.isYielding;
     }
 
+    // Instance variants of save/restore methods. Called from generated code
+    // (instrumented method stores current coro in synthetic local variable when starts).
+
+    public void saveState(int state) {
+        if (statesStackSize == statesStack.length)
+            statesStack = Arrays.copyOf(statesStack, statesStackSize << 1);
+        statesStack[statesStackSize++] = state;
+    }
+
+    public void saveRef(Object ref) {
+        valuesStack.pushRef(ref);
+    }
+
+    public void saveInt(int i) {
+        valuesStack.pushInt(i);
+    }
+
+    public void saveDouble(double d) {
+        valuesStack.pushDouble(d);
+    }
+
+    public void saveFloat(float f) {
+        valuesStack.pushFloat(f);
+    }
+
+    public void saveLong(long l) {
+        valuesStack.pushLong(l);
+    }
+
+    /**
+     * Returns state of method being restored or NO_STATE if coro is not restoring now.
+     * States are never negative (state is a number of restore point inside the method).
+     */
+    public int restoreState() {
+        if (statesStackSize == 0) return NO_STATE;
+        return statesStack[--statesStackSize];
+    }
+
+    public Object restoreRef() {
+        return valuesStack.popRef();
+    }
+
+    public int restoreInt() {
+        return valuesStack.popInt();
+    }
+
+    public double restoreDouble() {
+        return valuesStack.popDouble();
+    }
+
+    public float restoreFloat() {
+        return valuesStack.popFloat();
+    }
+
+    public long restoreLong() {
+        return valuesStack.popLong();
+    }
+
+    // Bulk variants of save methods. Generated save helper reserves space for all values of the frame
+    // by one call per type, and then writes values into backing array by index (index = returned base + offset),
+    // in the same order as they would be pushed by saveXxx() calls (so they are restored by restoreXxx() as usual).
+    // Backing array should be retrieved after reserve (it can be reallocated).
+
+    public int reserveRefs(int n) {
+        return valuesStack.reserveRefs(n);
+    }
+
+    public int reserveInts(int n) {
+        return valuesStack.reserveInts(n);
+    }
+
+    public int reserveLongs(int n) {
+        return valuesStack.reserveLongs(n);
+    }
+
+    public int reserveFloats(int n) {
+        return valuesStack.reserveFloats(n);
+    }
+
+    public int reserveDoubles(int n) {
+        return valuesStack.reserveDoubles(n);
+    }
+
+    public Object[] getRefsArray() {
+        return valuesStack.refsArray();
+    }
+
+    public int[] getIntsArray() {
+        return valuesStack.intsArray();
+    }
+
+    public long[] getLongsArray() {
+        return valuesStack.longsArray();
+    }
+
+    public float[] getFloatsArray() {
+        return valuesStack.floatsArray();
+    }
+
+    public double[] getDoublesArray() {
+        return valuesStack.doublesArray();
+    }
+
+    /**
+     * Saves frame object (instance of frame class, generated for restore point when instrumenting
+     * with frame classes). Frame object holds all saved locals and stack operands of the method.
+     */
+    public void pushFrame(Object frame) {
+        valuesStack.pushRef(frame);
+    }
+
+    public Object popFrame() {
+        return valuesStack.popRef();
+    }
+
+    public boolean isYieldingNow() {
+        return isYielding;
+    }
+
     // Stuff for support of storing args of methods before calling
     // (if dealing with unpatchable methods)
     // Здесь довольно много не очень хорошо поименованных методов, это следствие того, что
@@ -246,85 +717,84 @@ public class Coro implements AutoCloseable {
         getUnsafe().unpatchableCall = unpatchableCall;
     }
 
-    private static class UnpatchableMethodArgsStore {
-        public Stack<Object> refsStack = new Stack<>();
-        public Stack<Integer> intsStack = new Stack<>();
-        public Stack<Long> longsStack = new Stack<>();
-        public Stack<Float> floatsStack = new Stack<>();
-        public Stack<Double> doublesStack = new Stack<>();
+    public boolean getUnpatchableCallFlag() {
+        return unpatchableCall;
     }
 
-    private UnpatchableMethodArgsStore unpatchableStore;
+    public void setUnpatchableCallFlag(boolean unpatchableCall) {
+        this.unpatchableCall = unpatchableCall;
+    }
 
-    private UnpatchableMethodArgsStore getUnpatchableStore() {
+    /**
+     * Temporary storage for args of unpatchable methods calls.
+     * Allocated lazily, because it is needed only if coro calls unpatchable methods.
+     */
+    private ValuesStack unpatchableStore;
+
+    private ValuesStack getUnpatchableStore() {
         if (null == unpatchableStore)
-            unpatchableStore = new UnpatchableMethodArgsStore();
+            unpatchableStore = new ValuesStack();
         return unpatchableStore;
     }
 
     public static void pushRefToUnpatchable(Object ref) {
-        getUnsafe().getUnpatchableStore().refsStack.push(ref);
+        getUnsafe().saveUnpatchableRef(ref);
     }
 
     public static void pushIntToUnpatchable(int i) {
-        getUnsafe().getUnpatchableStore().intsStack.push(i);
+        getUnsafe().saveUnpatchableInt(i);
     }
 
     public static void pushLongToUnpatchable(long l) {
-        getUnsafe().getUnpatchableStore().longsStack.push(l);
+        getUnsafe().saveUnpatchableLong(l);
     }
 
     public static void pushFloatToUnpatchable(float f) {
-        getUnsafe().getUnpatchableStore().floatsStack.push(f);
+        getUnsafe().saveUnpatchableFloat(f);
     }
 
     public static void pushDoubleToUnpatchable(double d) {
-        getUnsafe().getUnpatchableStore().doublesStack.push(d);
+        getUnsafe().saveUnpatchableDouble(d);
     }
 
     public static Object popRefFromUnpatchable() {
-        return getUnsafe().getUnpatchableStore().refsStack.pop();
+        return getUnsafe().getUnpatchableStore().popRef();
     }
 
     public static int popIntFromUnpatchable() {
-        return getUnsafe().getUnpatchableStore().intsStack.pop();
+        return getUnsafe().getUnpatchableStore().popInt();
     }
 
     public static long popLongFromUnpatchable() {
-        return getUnsafe().getUnpatchableStore().longsStack.pop();
+        return getUnsafe().getUnpatchableStore().popLong();
     }
 
     public static float popFloatFromUnpatchable() {
-        return getUnsafe().getUnpatchableStore().floatsStack.pop();
+        return getUnsafe().getUnpatchableStore().popFloat();
     }
 
     public static double popDoubleFromUnpatchable() {
-        return getUnsafe().getUnpatchableStore().doublesStack.pop();
+        return getUnsafe().getUnpatchableStore().popDouble();
     }
 
     public static Object peekRefFromUnpatchable(int skip) {
-        final Stack<Object> stack = getUnsafe().getUnpatchableStore().refsStack;
-        return stack.get(stack.size() - 1 - skip);
+        return getUnsafe().peekUnpatchableRef(skip);
     }
 
     public static int peekIntFromUnpatchable(int skip) {
-        final Stack<Integer> stack = getUnsafe().getUnpatchableStore().intsStack;
-        return stack.get(stack.size() - 1 - skip);
+        return getUnsafe().peekUnpatchableInt(skip);
     }
 
     public static long peekLongFromUnpatchable(int skip) {
-        final Stack<Long> stack = getUnsafe().getUnpatchableStore().longsStack;
-        return stack.get(stack.size() - 1 - skip);
+        return getUnsafe().peekUnpatchableLong(skip);
     }
 
     public static float peekFloatFromUnpatchable(int skip) {
-        final Stack<Float> stack = getUnsafe().getUnpatchableStore().floatsStack;
-        return stack.get(stack.size() - 1 - skip);
+        return getUnsafe().peekUnpatchableFloat(skip);
     }
 
     public static double peekDoubleFromUnpatchable(int skip) {
-        final Stack<Double> stack = getUnsafe().getUnpatchableStore().doublesStack;
-        return stack.get(stack.size() - 1 - skip);
+        return getUnsafe().peekUnpatchableDouble(skip);
     }
 
     /**
@@ -332,12 +802,179 @@ public class Coro implements AutoCloseable {
      * объектов какого типа было сохранено.
      */
     public static void cleanupUnpatchableFrame(int refs, int ints, int longs, int floats, int doubles) {
-        final UnpatchableMethodArgsStore store = getUnsafe().getUnpatchableStore();
-        for (int i = 0; i < refs; i++) store.refsStack.pop();
-        for (int i = 0; i < ints; i++) store.intsStack.pop();
-        for (int i = 0; i < longs; i++) store.longsStack.pop();
-        for (int i = 0; i < floats; i++) store.floatsStack.pop();
-        for (int i = 0; i < doubles; i++) store.doublesStack.pop();
+        getUnsafe().dropUnpatchableFrame(refs, ints, longs, floats, doubles);
+    }
+
+    public void saveUnpatchableRef(Object ref) {
+        getUnpatchableStore().pushRef(ref);
+    }
+
+    public void saveUnpatchableInt(int i) {
+        getUnpatchableStore().pushInt(i);
+    }
+
+    public void saveUnpatchableLong(long l) {
+        getUnpatchableStore().pushLong(l);
+    }
+
+    public void saveUnpatchableFloat(float f) {
+        getUnpatchableStore().pushFloat(f);
+    }
+
+    public void saveUnpatchableDouble(double d) {
+        getUnpatchableStore().pushDouble(d);
+    }
+
+    public Object peekUnpatchableRef(int skip) {
+        return getUnpatchableStore().peekRef(skip);
+    }
+
+    public int peekUnpatchableInt(int skip) {
+        return getUnpatchableStore().peekInt(skip);
+    }
+
+    public long peekUnpatchableLong(int skip) {
+        return getUnpatchableStore().peekLong(skip);
+    }
+
+    public float peekUnpatchableFloat(int skip) {
+        return getUnpatchableStore().peekFloat(skip);
+    }
+
+    public double peekUnpatchableDouble(int skip) {
+        return getUnpatchableStore().peekDouble(skip);
+    }
+
+    public void dropUnpatchableFrame(int refs, int ints, int longs, int floats, int doubles) {
+        getUnpatchableStore().drop(refs, ints, longs, floats, doubles);
+    }
+
+    /**
+     * Default max capacity of each stack of values, which is retained by reset coro. Can be changed using
+     * system property "jcoro.maxRetainedCapacity".
+     */
+    static final int MAX_RETAINED_CAPACITY_DEFAULT =
+            Integer.getInteger("jcoro.maxRetainedCapacity", 1024);
+
+    /**
+     * Prepares finished (or not started) coro to run another runnable: coro can be reused instead of creating
+     * new one with its stacks. Stacks, which have grown over max retained capacity (see "jcoro.maxRetainedCapacity"),
+     * are allocated again, so one deep coro doesn't keep memory forever. Throws IllegalStateException
+     * if coro is running or suspended.
+     */
+    public void reset(ICoroRunnable runnable) {
+        reset(runnable, MAX_RETAINED_CAPACITY_DEFAULT);
+    }
+
+    void reset(ICoroRunnable runnable, int maxRetainedCapacity) {
+        if (state != SUSPENDED || suspendedAfterYield || isYielding || resumeLoopThread != null)
+            throw new IllegalStateException("Coro is not finished");
+        this.runnable = runnable;
+        finished = false;
+        scheduler = null;
+        homeWorker = 0;
+        resumeTask = null;
+        deferFunc = null;
+        trampolineResume = TRAMPOLINE_RESUME_DEFAULT;
+        resumePending = false;
+        unpatchableCall = false;
+
+        if (statesStack.length > maxRetainedCapacity) statesStack = new int[16];
+        statesStackSize = 0;
+        valuesStack.clear(maxRetainedCapacity);
+        if (unpatchableStore != null) unpatchableStore.clear(maxRetainedCapacity);
+
+        if (continuations.length > maxRetainedCapacity) continuations = new Continuation[16];
+        else Arrays.fill(continuations, 0, continuationsSize, null);
+        continuationsSize = 0;
+        unpatchableContinuations = 0;
+        unwindBase = 0;
+        nextContinuation = 0;
+        endContinuation = 0;
+        recallingCall = false;
+        resumeResult = null;
+        resumeException = null;
+        deepParker = null;
+    }
+
+    // Deep parking (see DeepParker)
+    private volatile DeepParker deepParker;
+    private static final AtomicReferenceFieldUpdater<Coro, DeepParker> DEEP_PARKER =
+            AtomicReferenceFieldUpdater.newUpdater(Coro.class, DeepParker.class, "deepParker");
+    // Time (System.nanoTime()) when coro has been suspended last time (set only if coro is tracked by parker)
+    private long suspendedAt;
+    // Handle of off-heap block with parked state (see ParkingMemory). Written by parker and by thread resuming
+    // coro, and can be read by any thread (isDeepParked())
+    private static final long NOT_PARKED = -1;
+    private volatile long parkedHandle = NOT_PARKED;
+    private static final int[] NO_STATES = new int[0];
+
+    /**
+     * Sets parker, which tracks coro. Returns false if coro is tracked by this parker already. Throws
+     * IllegalStateException if coro is tracked by another parker (its state can be parked in memory of that parker).
+     */
+    boolean setDeepParker(DeepParker parker) {
+        if (DEEP_PARKER.compareAndSet(this, null, parker)) return true;
+        if (deepParker == parker) return false;
+        throw new IllegalStateException("Coro is tracked by another DeepParker");
+    }
+
+    boolean isTrackedBy(DeepParker parker) {
+        return deepParker == parker && !finished;
+    }
+
+    /**
+     * Moves states and primitive values of coro into off-heap memory of its parker, if coro is suspended
+     * at least idleNanos before now. Returns false if coro is not suspended (or it's resumed concurrently),
+     * is suspended later or is parked already.
+     */
+    boolean deepPark(long now, long idleNanos) {
+        if (!STATE.compareAndSet(this, SUSPENDED, PARKING)) return false;
+        try {
+            if (!suspendedAfterYield || parkedHandle != NOT_PARKED || now - suspendedAt < idleNanos) return false;
+            final int size = 4 + statesStackSize * 4 + valuesStack.parkedSize();
+            // Huge states are not parked (parking is intended for a lot of small ones)
+            if (size > ParkingMemory.MAX_BLOCK_SIZE) return false;
+            final ParkingMemory memory = deepParker.memory();
+            final long handle = memory.allocate(size);
+            final ByteBuffer slab = memory.slab(handle);
+            int offset = ParkingMemory.offset(handle);
+            slab.putInt(offset, statesStackSize);
+            offset += 4;
+            for (int i = 0; i < statesStackSize; i++, offset += 4) slab.putInt(offset, statesStack[i]);
+            valuesStack.park(slab, offset);
+            statesStack = NO_STATES;
+            statesStackSize = 0;
+            // Temporary storage of unpatchable calls args is empty while coro is suspended
+            if (unpatchableStore != null && unpatchableStore.isEmpty()) unpatchableStore = null;
+            parkedHandle = handle;
+            return true;
+        } finally {
+            state = SUSPENDED;
+        }
+    }
+
+    /**
+     * Moves parked state back to heap (called when coro is resumed).
+     */
+    private void unparkState() {
+        final ParkingMemory memory = deepParker.memory();
+        final ByteBuffer slab = memory.slab(parkedHandle);
+        int offset = ParkingMemory.offset(parkedHandle);
+        statesStackSize = slab.getInt(offset);
+        offset += 4;
+        statesStack = new int[Math.max(16, statesStackSize)];
+        for (int i = 0; i < statesStackSize; i++, offset += 4) statesStack[i] = slab.getInt(offset);
+        valuesStack.unpark(slab, offset);
+        memory.free(parkedHandle);
+        parkedHandle = NOT_PARKED;
+    }
+
+    /**
+     * Returns true if states of coro are deep parked now.
+     */
+    public boolean isDeepParked() {
+        return parkedHandle != NOT_PARKED;
     }
 
     public void close() throws Exception {
@@ -0,0 +1,83 @@
+package org.jcoro;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of finished coros. Coro created by pool is returned to it automatically when it's finished
+ * (after the last resume() call, which is running it, returns), and is reused by the next created coro
+ * with its stacks, so high connection churn doesn't allocate new coro with its stacks for each connection.
+ * Coro created by pool shouldn't be used after it's finished.
+ *
+ * Pool keeps at most `maxPooled` coros, and stacks of pooled coros are not larger than `maxRetainedCapacity`
+ * (see Coro.reset()). Pool can be used from any thread.
+ *
+ * @author elwood
+ */
+public class CoroPool {
+    private final int maxPooled;
+    private final int maxRetainedCapacity;
+
+    // Last released coro is reused first (its stacks are more likely to be in cache). Pool operations
+    // are short, so deque is guarded by lock (array deque doesn't allocate nodes, unlike concurrent deques)
+    private final ArrayDeque<Coro> pooled = new ArrayDeque<>();
+
+    /**
+     * Creates pool with default max retained capacity (system property "jcoro.maxRetainedCapacity").
+     */
+    public CoroPool(int maxPooled) {
+        this(maxPooled, Coro.MAX_RETAINED_CAPACITY_DEFAULT);
+    }
+
+    public CoroPool(int maxPooled, int maxRetainedCapacity) {
+        if (maxPooled < 0) throw new IllegalArgumentException("maxPooled should not be negative");
+        if (maxRetainedCapacity <= 0) throw new IllegalArgumentException("maxRetainedCapacity should be positive");
+        this.maxPooled = maxPooled;
+        this.maxRetainedCapacity = maxRetainedCapacity;
+    }
+
+    /**
+     * Returns count of finished coros, which are kept in pool now.
+     */
+    public int size() {
+        synchronized (pooled) {
+            return pooled.size();
+        }
+    }
+
+    /**
+     * Pooled variant of Coro.initSuspended().
+     */
+    public Coro initSuspended(ICoroRunnable runnable) {
+        final Coro coro;
+        synchronized (pooled) {
+            coro = pooled.pollFirst();
+        }
+        if (coro == null) {
+            final Coro created = new Coro(runnable);
+            created.setPool(this);
+            return created;
+        }
+        coro.reset(runnable, maxRetainedCapacity);
+        return coro;
+    }
+
+    /**
+     * Pooled variant of Coro.spawn().
+     */
+    public Coro spawn(CoroScheduler scheduler, ICoroRunnable runnable) {
+        final Coro coro = initSuspended(runnable);
+        coro.startIn(scheduler);
+        return coro;
+    }
+
+    /**
+     * Called by finished coro. Coro is reset (so pool doesn't keep its runnable and saved values reachable)
+     * and is dropped if pool is full.
+     */
+    void release(Coro coro) {
+        coro.reset(null, maxRetainedCapacity);
+        synchronized (pooled) {
+            if (pooled.size() < maxPooled) pooled.offerFirst(coro);
+        }
+    }
+}
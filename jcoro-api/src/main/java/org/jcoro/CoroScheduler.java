@@ -0,0 +1,201 @@
+package org.jcoro;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs coros on a fixed set of workers (CoroThreads). Each worker has its own deque of tasks:
+ * worker takes tasks from the head of own deque, and idle worker steals tasks from the head of
+ * other workers deques too, so tasks are run in FIFO order and the oldest ones don't wait behind
+ * newer ones. Coro spawned in scheduler gets a home worker; if `resumeOnHomeWorker`
+ * is enabled, Coro.dispatchResume() (called by completion handlers) enqueues resume to home worker
+ * instead of running it inline in the thread where asynchronous operation has been completed.
+ *
+ * @author elwood
+ */
+public class CoroScheduler implements Executor, AutoCloseable {
+    // Idle worker wakes up periodically to try stealing even if nobody unparks it
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Worker[] workers;
+    private final boolean resumeOnHomeWorker;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+
+    private volatile boolean shutdown;
+
+    public CoroScheduler(int nWorkers) {
+        this(nWorkers, true);
+    }
+
+    public CoroScheduler(int nWorkers, boolean resumeOnHomeWorker) {
+        this(nWorkers, resumeOnHomeWorker, "coro-worker");
+    }
+
+    public CoroScheduler(int nWorkers, boolean resumeOnHomeWorker, String namePrefix) {
+        if (nWorkers <= 0) throw new IllegalArgumentException("nWorkers should be positive");
+        this.resumeOnHomeWorker = resumeOnHomeWorker;
+        this.workers = new Worker[nWorkers];
+        for (int i = 0; i < nWorkers; i++) {
+            workers[i] = new Worker(i, namePrefix + "-" + i);
+        }
+        for (Worker worker : workers) {
+            worker.start();
+        }
+    }
+
+    public int getWorkersCount() {
+        return workers.length;
+    }
+
+    /**
+     * If true, completion handlers should enqueue resuming of coro to its home worker.
+     */
+    public boolean isResumeOnHomeWorker() {
+        return resumeOnHomeWorker;
+    }
+
+    /**
+     * Returns worker for new coro: current worker if called from worker of this scheduler,
+     * next worker in round-robin order otherwise.
+     */
+    int nextHomeWorker() {
+        final int current = currentWorkerIndex();
+        if (current >= 0) return current;
+        return (nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length;
+    }
+
+    private int currentWorkerIndex() {
+        final Thread thread = Thread.currentThread();
+        if (thread instanceof Worker && ((Worker) thread).scheduler() == this)
+            return ((Worker) thread).index;
+        return -1;
+    }
+
+    /**
+     * Enqueues the task to current worker (if called from worker) or to some worker in round-robin order.
+     */
+    @Override
+    public void execute(Runnable task) {
+        execute(nextHomeWorker(), task);
+    }
+
+    /**
+     * Enqueues the task to specified worker. Task can be stolen by another worker if that worker is idle.
+     */
+    void execute(int workerIndex, Runnable task) {
+        if (shutdown) throw new RejectedExecutionException("Scheduler is shut down");
+        final Worker worker = workers[workerIndex];
+        worker.deque.offerLast(task);
+        if (worker.parked) {
+            LockSupport.unpark(worker);
+        } else if (worker != Thread.currentThread() || worker.deque.peekFirst() != task) {
+            // Target worker is busy (or it submits to itself and already has other tasks), let some idle
+            // worker steal the task instead of waiting for its periodic wake up
+            wakeUpIdleWorker();
+        }
+    }
+
+    private void wakeUpIdleWorker() {
+        for (Worker worker : workers) {
+            if (worker.parked) {
+                LockSupport.unpark(worker);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops accepting new tasks. Workers will exit after all enqueued tasks are done.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Worker worker : workers) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return false;
+            TimeUnit.NANOSECONDS.timedJoin(worker, remaining);
+            if (worker.isAlive()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+    }
+
+    private final class Worker extends CoroThread {
+        final int index;
+        final ConcurrentLinkedDeque<Runnable> deque = new ConcurrentLinkedDeque<>();
+        volatile boolean parked;
+
+        Worker(int index, String name) {
+            super(name);
+            this.index = index;
+            setDaemon(true);
+        }
+
+        CoroScheduler scheduler() {
+            return CoroScheduler.this;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task = deque.pollFirst();
+                if (task == null) task = steal();
+                if (task != null) {
+                    runTask(task);
+                    continue;
+                }
+                if (shutdown) return;
+                // Set flag first and check queues after that: a task offered concurrently
+                // will be either found by this check or the submitter will see the flag and unpark us
+                parked = true;
+                if (deque.isEmpty() && !hasWorkToSteal() && !shutdown) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                parked = false;
+            }
+        }
+
+        private void runTask(Runnable task) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                getUncaughtExceptionHandler().uncaughtException(this, e);
+            }
+        }
+
+        private Runnable steal() {
+            final int n = workers.length;
+            if (n == 1) return null;
+            final int start = ThreadLocalRandom.current().nextInt(n);
+            for (int i = 0; i < n; i++) {
+                final Worker victim = workers[(start + i) % n];
+                if (victim == this) continue;
+                final Runnable task = victim.deque.pollFirst();
+                if (task != null) return task;
+            }
+            return null;
+        }
+
+        private boolean hasWorkToSteal() {
+            for (Worker worker : workers) {
+                if (worker != this && !worker.deque.isEmpty()) return true;
+            }
+            return false;
+        }
+    }
+}
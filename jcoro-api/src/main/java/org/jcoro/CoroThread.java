@@ -0,0 +1,32 @@
+package org.jcoro;
+
+/**
+ * Thread which keeps its stack of active coros in a field instead of ThreadLocal. Current coro
+ * lookup (made at the start of each instrumented method) costs just a field read in such threads.
+ * Coros can be resumed in any thread, but it is recommended to run executors and asynchronous
+ * channel groups, which resume coros, in CoroThreads (see CoroThreadFactory).
+ *
+ * @author elwood
+ */
+public class CoroThread extends Thread {
+    final ActiveCoroStack activeCoroStack = new ActiveCoroStack();
+
+    public CoroThread() {
+    }
+
+    public CoroThread(String name) {
+        super(name);
+    }
+
+    public CoroThread(Runnable target) {
+        super(target);
+    }
+
+    public CoroThread(Runnable target, String name) {
+        super(target, name);
+    }
+
+    public CoroThread(ThreadGroup group, Runnable target, String name) {
+        super(group, target, name);
+    }
+}
@@ -0,0 +1,36 @@
+package org.jcoro;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates CoroThreads. Can be passed to executors and to AsynchronousChannelGroup, for example:
+ * AsynchronousChannelGroup.withFixedThreadPool(n, new CoroThreadFactory("io")).
+ *
+ * @author elwood
+ */
+public class CoroThreadFactory implements ThreadFactory {
+    private final String namePrefix;
+    private final boolean daemon;
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    public CoroThreadFactory() {
+        this("coro", false);
+    }
+
+    public CoroThreadFactory(String namePrefix) {
+        this(namePrefix, false);
+    }
+
+    public CoroThreadFactory(String namePrefix, boolean daemon) {
+        this.namePrefix = namePrefix;
+        this.daemon = daemon;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        CoroThread thread = new CoroThread(r, namePrefix + "-thread-" + threadNumber.getAndIncrement());
+        thread.setDaemon(daemon);
+        return thread;
+    }
+}
@@ -0,0 +1,96 @@
+package org.jcoro;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deep parking of idle coros. Coro, which is tracked by parker and has been suspended longer than idle time,
+ * is deep parked by sweep(): its saved primitive values (states and primitive stacks) are moved into off-heap
+ * memory, and its backing arrays are released, so mostly idle coros (e.g. long-poll connections) don't keep
+ * primitive stacks in old generation. Refs (and frame objects in frame classes and continuations modes)
+ * are kept on heap. Values are moved back when coro is resumed.
+ *
+ * sweep() should be called periodically (e.g. by ScheduledExecutorService); coro can't be resumed while
+ * it's being parked, resume() waits for it. Coros are untracked when they are finished (or reset).
+ *
+ * @author elwood
+ */
+public class DeepParker {
+    private final long idleNanos;
+    private final ParkingMemory memory = new ParkingMemory();
+
+    // Coros tracked since previous sweep (guarded by itself)
+    private final List<Coro> added = new ArrayList<>();
+    // Coros checked by sweep (guarded by this). It's a set, because coro can be added again after it's reset
+    // and tracked by this parker once more (e.g. pooled coro), while it's still here since previous sweep
+    private final Set<Coro> tracked = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public DeepParker(long idleTime, TimeUnit unit) {
+        if (idleTime < 0) throw new IllegalArgumentException("idleTime should not be negative");
+        this.idleNanos = unit.toNanos(idleTime);
+    }
+
+    /**
+     * Starts tracking of coro: it will be deep parked by sweep() if it's suspended longer than idle time.
+     * Does nothing if coro is tracked by this parker already. Throws IllegalStateException if coro is tracked
+     * by another parker (coro can be tracked by another parker after it's reset).
+     */
+    public void track(Coro coro) {
+        if (!coro.setDeepParker(this)) return;
+        synchronized (added) {
+            added.add(coro);
+        }
+    }
+
+    /**
+     * Deep parks tracked coros, which have been suspended longer than idle time, and stops tracking
+     * of finished ones. Returns count of parked coros.
+     */
+    public synchronized int sweep() {
+        synchronized (added) {
+            tracked.addAll(added);
+            added.clear();
+        }
+        final long now = System.nanoTime();
+        int parked = 0;
+        for (Iterator<Coro> it = tracked.iterator(); it.hasNext(); ) {
+            final Coro coro = it.next();
+            if (!coro.isTrackedBy(this)) {
+                it.remove();
+                continue;
+            }
+            if (coro.deepPark(now, idleNanos)) parked++;
+        }
+        return parked;
+    }
+
+    /**
+     * Returns count of coros tracked by the last sweep().
+     */
+    public synchronized int getTrackedCount() {
+        return tracked.size();
+    }
+
+    /**
+     * Returns count of off-heap bytes used by states of parked coros.
+     */
+    public long getParkedBytes() {
+        return memory.getUsedBytes();
+    }
+
+    /**
+     * Returns count of off-heap bytes reserved by parker (memory is reused, but it isn't released).
+     */
+    public long getReservedBytes() {
+        return memory.getReservedBytes();
+    }
+
+    ParkingMemory memory() {
+        return memory;
+    }
+}
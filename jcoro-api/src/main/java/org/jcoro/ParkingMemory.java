@@ -0,0 +1,93 @@
+package org.jcoro;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Off-heap memory for states of deep parked coros (see DeepParker). Memory is allocated by slabs of direct
+ * memory, slab is divided into blocks, size of block is power of two (16 bytes .. 64 KB). Freed blocks are kept
+ * in free lists of their sizes and are reused, slabs are never released.
+ *
+ * Block is identified by handle: index of slab (high 32 bits), log2 of block size (bits 24..31) and offset
+ * of block in slab (low 24 bits). So a million of parked coros need neither a million of direct buffers
+ * (each of them is a heap object with cleaner) nor other heap objects.
+ *
+ * @author elwood
+ */
+final class ParkingMemory {
+    static final int MAX_BLOCK_SIZE = 1 << 16;
+
+    private static final int MIN_BLOCK_SHIFT = 4;
+    private static final int MAX_BLOCK_SHIFT = 16;
+    private static final int SLAB_SIZE = 1 << 20;
+
+    private ByteBuffer[] slabs = new ByteBuffer[16];
+    private int slabsCount;
+    // Free space of the last slab starts here
+    private int slabTop = SLAB_SIZE;
+
+    // Handles of freed blocks of each size
+    private final long[][] freeBlocks = new long[MAX_BLOCK_SHIFT + 1][];
+    private final int[] freeCounts = new int[MAX_BLOCK_SHIFT + 1];
+
+    private long usedBytes;
+
+    /**
+     * Allocates block of at least `size` bytes (size should not exceed MAX_BLOCK_SIZE) and returns its handle.
+     */
+    synchronized long allocate(int size) {
+        assert size <= MAX_BLOCK_SIZE;
+        int shift = MIN_BLOCK_SHIFT;
+        while ((1 << shift) < size) shift++;
+        usedBytes += 1 << shift;
+        if (freeCounts[shift] != 0) return freeBlocks[shift][--freeCounts[shift]];
+
+        if (slabTop + (1 << shift) > SLAB_SIZE) {
+            if (slabsCount == slabs.length) slabs = Arrays.copyOf(slabs, slabsCount << 1);
+            slabs[slabsCount++] = ByteBuffer.allocateDirect(SLAB_SIZE).order(ByteOrder.nativeOrder());
+            slabTop = 0;
+        }
+        final long handle = ((long) (slabsCount - 1) << 32) | ((long) shift << 24) | slabTop;
+        slabTop += 1 << shift;
+        return handle;
+    }
+
+    synchronized void free(long handle) {
+        final int shift = (int) (handle >>> 24) & 0xFF;
+        usedBytes -= 1 << shift;
+        long[] blocks = freeBlocks[shift];
+        if (blocks == null) {
+            blocks = freeBlocks[shift] = new long[16];
+        } else if (freeCounts[shift] == blocks.length) {
+            blocks = freeBlocks[shift] = Arrays.copyOf(blocks, blocks.length << 1);
+        }
+        blocks[freeCounts[shift]++] = handle;
+    }
+
+    /**
+     * Returns slab containing the block. Block data should be accessed by absolute get/put methods
+     * starting from offset(handle) (slab is shared by blocks, its position and limit are not used).
+     */
+    synchronized ByteBuffer slab(long handle) {
+        return slabs[(int) (handle >>> 32)];
+    }
+
+    static int offset(long handle) {
+        return (int) handle & 0xFFFFFF;
+    }
+
+    /**
+     * Returns count of bytes in allocated blocks.
+     */
+    synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Returns count of bytes in slabs (allocated blocks, free blocks and free space of the last slab).
+     */
+    synchronized long getReservedBytes() {
+        return (long) slabsCount * SLAB_SIZE;
+    }
+}
@@ -0,0 +1,252 @@
+package org.jcoro;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EmptyStackException;
+
+/**
+ * Unsynchronized storage for values saved by instrumented code. Each type has its own growable
+ * array and top index, so pushing primitives doesn't box them and doesn't take any locks
+ * (unlike java.util.Stack, which is synchronized Vector of objects).
+ *
+ * @author elwood
+ */
+final class ValuesStack {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Object[] refs = new Object[INITIAL_CAPACITY];
+    private int refsSize;
+
+    private int[] ints = new int[INITIAL_CAPACITY];
+    private int intsSize;
+
+    private long[] longs = new long[INITIAL_CAPACITY];
+    private int longsSize;
+
+    private float[] floats = new float[INITIAL_CAPACITY];
+    private int floatsSize;
+
+    private double[] doubles = new double[INITIAL_CAPACITY];
+    private int doublesSize;
+
+    void pushRef(Object ref) {
+        if (refsSize == refs.length) refs = Arrays.copyOf(refs, refsSize << 1);
+        refs[refsSize++] = ref;
+    }
+
+    void pushInt(int i) {
+        if (intsSize == ints.length) ints = Arrays.copyOf(ints, intsSize << 1);
+        ints[intsSize++] = i;
+    }
+
+    void pushLong(long l) {
+        if (longsSize == longs.length) longs = Arrays.copyOf(longs, longsSize << 1);
+        longs[longsSize++] = l;
+    }
+
+    void pushFloat(float f) {
+        if (floatsSize == floats.length) floats = Arrays.copyOf(floats, floatsSize << 1);
+        floats[floatsSize++] = f;
+    }
+
+    void pushDouble(double d) {
+        if (doublesSize == doubles.length) doubles = Arrays.copyOf(doubles, doublesSize << 1);
+        doubles[doublesSize++] = d;
+    }
+
+    Object popRef() {
+        if (refsSize == 0) throw new EmptyStackException();
+        final Object ref = refs[--refsSize];
+        refs[refsSize] = null; // Don't keep popped object reachable
+        return ref;
+    }
+
+    int popInt() {
+        if (intsSize == 0) throw new EmptyStackException();
+        return ints[--intsSize];
+    }
+
+    long popLong() {
+        if (longsSize == 0) throw new EmptyStackException();
+        return longs[--longsSize];
+    }
+
+    float popFloat() {
+        if (floatsSize == 0) throw new EmptyStackException();
+        return floats[--floatsSize];
+    }
+
+    double popDouble() {
+        if (doublesSize == 0) throw new EmptyStackException();
+        return doubles[--doublesSize];
+    }
+
+    // Bulk saving: space for several values is reserved at once, and values are written into
+    // backing array by index. Backing array is valid until next push or reserve.
+
+    int reserveRefs(int n) {
+        final int base = refsSize;
+        if (base + n > refs.length) refs = Arrays.copyOf(refs, Math.max(refs.length << 1, base + n));
+        refsSize = base + n;
+        return base;
+    }
+
+    int reserveInts(int n) {
+        final int base = intsSize;
+        if (base + n > ints.length) ints = Arrays.copyOf(ints, Math.max(ints.length << 1, base + n));
+        intsSize = base + n;
+        return base;
+    }
+
+    int reserveLongs(int n) {
+        final int base = longsSize;
+        if (base + n > longs.length) longs = Arrays.copyOf(longs, Math.max(longs.length << 1, base + n));
+        longsSize = base + n;
+        return base;
+    }
+
+    int reserveFloats(int n) {
+        final int base = floatsSize;
+        if (base + n > floats.length) floats = Arrays.copyOf(floats, Math.max(floats.length << 1, base + n));
+        floatsSize = base + n;
+        return base;
+    }
+
+    int reserveDoubles(int n) {
+        final int base = doublesSize;
+        if (base + n > doubles.length) doubles = Arrays.copyOf(doubles, Math.max(doubles.length << 1, base + n));
+        doublesSize = base + n;
+        return base;
+    }
+
+    Object[] refsArray() {
+        return refs;
+    }
+
+    int[] intsArray() {
+        return ints;
+    }
+
+    long[] longsArray() {
+        return longs;
+    }
+
+    float[] floatsArray() {
+        return floats;
+    }
+
+    double[] doublesArray() {
+        return doubles;
+    }
+
+    /**
+     * Returns item placed `skip` items below the top of stack.
+     */
+    Object peekRef(int skip) {
+        return refs[refsSize - 1 - skip];
+    }
+
+    int peekInt(int skip) {
+        return ints[intsSize - 1 - skip];
+    }
+
+    long peekLong(int skip) {
+        return longs[longsSize - 1 - skip];
+    }
+
+    float peekFloat(int skip) {
+        return floats[floatsSize - 1 - skip];
+    }
+
+    double peekDouble(int skip) {
+        return doubles[doublesSize - 1 - skip];
+    }
+
+    /**
+     * Removes all items. Backing arrays, which are larger than maxCapacity, are allocated again with initial
+     * capacity (items above the top are always null, so only used part of refs is cleared).
+     */
+    void clear(int maxCapacity) {
+        if (refs.length > maxCapacity) refs = new Object[INITIAL_CAPACITY];
+        else Arrays.fill(refs, 0, refsSize, null);
+        refsSize = 0;
+        if (ints.length > maxCapacity) ints = new int[INITIAL_CAPACITY];
+        intsSize = 0;
+        if (longs.length > maxCapacity) longs = new long[INITIAL_CAPACITY];
+        longsSize = 0;
+        if (floats.length > maxCapacity) floats = new float[INITIAL_CAPACITY];
+        floatsSize = 0;
+        if (doubles.length > maxCapacity) doubles = new double[INITIAL_CAPACITY];
+        doublesSize = 0;
+    }
+
+    boolean isEmpty() {
+        return refsSize == 0 && intsSize == 0 && longsSize == 0 && floatsSize == 0 && doublesSize == 0;
+    }
+
+    // Deep parking (see DeepParker): primitive values are moved into off-heap memory, and their backing arrays
+    // are replaced by empty ones until values are moved back. Refs are kept on heap.
+
+    private static final int[] NO_INTS = new int[0];
+    private static final long[] NO_LONGS = new long[0];
+    private static final float[] NO_FLOATS = new float[0];
+    private static final double[] NO_DOUBLES = new double[0];
+
+    /**
+     * Returns count of bytes, which are written by park() (sizes of stacks and primitive values).
+     */
+    int parkedSize() {
+        return 16 + (intsSize + floatsSize) * 4 + (longsSize + doublesSize) * 8;
+    }
+
+    /**
+     * Writes primitive values into memory starting from offset and releases their backing arrays.
+     * Stack can't be used until unpark() is called.
+     */
+    void park(ByteBuffer memory, int offset) {
+        memory.putInt(offset, intsSize);
+        memory.putInt(offset + 4, longsSize);
+        memory.putInt(offset + 8, floatsSize);
+        memory.putInt(offset + 12, doublesSize);
+        offset += 16;
+        for (int i = 0; i < intsSize; i++, offset += 4) memory.putInt(offset, ints[i]);
+        for (int i = 0; i < longsSize; i++, offset += 8) memory.putLong(offset, longs[i]);
+        for (int i = 0; i < floatsSize; i++, offset += 4) memory.putFloat(offset, floats[i]);
+        for (int i = 0; i < doublesSize; i++, offset += 8) memory.putDouble(offset, doubles[i]);
+        ints = NO_INTS;
+        longs = NO_LONGS;
+        floats = NO_FLOATS;
+        doubles = NO_DOUBLES;
+        intsSize = longsSize = floatsSize = doublesSize = 0;
+    }
+
+    /**
+     * Reads primitive values written by park() (arrays are allocated with at least initial capacity).
+     */
+    void unpark(ByteBuffer memory, int offset) {
+        intsSize = memory.getInt(offset);
+        longsSize = memory.getInt(offset + 4);
+        floatsSize = memory.getInt(offset + 8);
+        doublesSize = memory.getInt(offset + 12);
+        offset += 16;
+        ints = new int[Math.max(INITIAL_CAPACITY, intsSize)];
+        longs = new long[Math.max(INITIAL_CAPACITY, longsSize)];
+        floats = new float[Math.max(INITIAL_CAPACITY, floatsSize)];
+        doubles = new double[Math.max(INITIAL_CAPACITY, doublesSize)];
+        for (int i = 0; i < intsSize; i++, offset += 4) ints[i] = memory.getInt(offset);
+        for (int i = 0; i < longsSize; i++, offset += 8) longs[i] = memory.getLong(offset);
+        for (int i = 0; i < floatsSize; i++, offset += 4) floats[i] = memory.getFloat(offset);
+        for (int i = 0; i < doublesSize; i++, offset += 8) doubles[i] = memory.getDouble(offset);
+    }
+
+    /**
+     * Removes specified count of items of each type from the top.
+     */
+    void drop(int refs, int ints, int longs, int floats, int doubles) {
+        for (int i = 0; i < refs; i++) this.refs[--refsSize] = null;
+        intsSize -= ints;
+        longsSize -= longs;
+        floatsSize -= floats;
+        doublesSize -= doubles;
+    }
+}
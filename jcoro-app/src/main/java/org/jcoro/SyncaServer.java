@@ -3,11 +3,10 @@ package org.jcoro;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.charset.Charset;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import static org.jcoro.nio.ServerSocketChannel.accept;
 import static org.jcoro.nio.SocketChannel.read;
@@ -23,29 +22,26 @@ public class SyncaServer {
             @Async({@Await("accept")})
             public void run() {
                 try {
-                    ExecutorService executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+                    final int nThreads = Runtime.getRuntime().availableProcessors();
+                    // Connection coros are resumed on their home workers, not in I/O threads
+                    final CoroScheduler scheduler = new CoroScheduler(nThreads);
+                    // Finished connection coros are reused with their stacks
+                    final CoroPool coroPool = new CoroPool(1024);
 
+                    // Completion handlers resume coros, so I/O threads should be CoroThreads too
+                    final AsynchronousChannelGroup channelGroup = AsynchronousChannelGroup.withFixedThreadPool(
+                            nThreads, new CoroThreadFactory("io"));
                     final AsynchronousServerSocketChannel listener =
-                            AsynchronousServerSocketChannel.open().bind(new InetSocketAddress(8080));
+                            AsynchronousServerSocketChannel.open(channelGroup).bind(new InetSocketAddress(8080));
 
                     while (true) {
                         AsynchronousSocketChannel channel = accept(listener);
-                        executorService.submit(new Runnable() {
+                        coroPool.spawn(scheduler, new ICoroRunnable() {
                             @Override
+                            @Async({@Await("handle")})
                             public void run() {
                                 try {
-                                    Coro handleCoro = Coro.initSuspended(new ICoroRunnable() {
-                                        @Override
-                                        @Async({@Await("handle")})
-                                        public void run() {
-                                            try {
-                                                handle(channel);
-                                            } catch (Throwable e) {
-                                                e.printStackTrace();
-                                            }
-                                        }
-                                    });
-                                    handleCoro.start();
+                                    handle(channel);
                                 } catch (Throwable e) {
                                     e.printStackTrace();
                                 }
@@ -57,6 +53,8 @@ public class SyncaServer {
                 }
             }
         });
+        // Accept can be completed synchronously in the calling thread, don't let stack grow in this case
+        coro.setTrampolineResume(true);
         coro.start();
         System.out.println("After start");
         Thread.sleep(60000);
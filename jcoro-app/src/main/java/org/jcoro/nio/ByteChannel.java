@@ -12,46 +12,50 @@ import java.nio.channels.CompletionHandler;
  * @author elwood
  */
 public class ByteChannel {
-    @Async(@Await("yield"))
+    @Async(@Await("awaitResume"))
     public static Integer read(AsynchronousByteChannel channel, ByteBuffer dst) {
         final Coro coro = Coro.get();
         final Integer[] res = new Integer[1];
         final Throwable[] exc = new Throwable[1];
-        coro.yield(() -> channel.read(dst, null, new CompletionHandler<Integer, Object>() {
+        // Operation is started before suspending. If it is completed immediately, coro is not suspended at all,
+        // and if it is completed before coro is unwound, coro will be continued right after unwinding
+        channel.read(dst, null, new CompletionHandler<Integer, Object>() {
             @Override
             public void completed(Integer result, Object attachment) {
                 res[0] = result;
-                coro.resume();
+                coro.dispatchResume();
             }
 
             @Override
             public void failed(Throwable e, Object attachment) {
                 exc[0] = e;
-                coro.resume();
+                coro.dispatchResume();
             }
-        }));
+        });
+        coro.awaitResume();
         if (exc[0] != null) throw new RuntimeException(exc[0]);
         return res[0];
     }
 
-    @Async(@Await("yield"))
+    @Async(@Await("awaitResume"))
     public static Integer write(AsynchronousByteChannel channel, ByteBuffer src) {
         final Coro coro = Coro.get();
         final Integer[] res = new Integer[1];
         final Throwable[] exc =  new Throwable[1];
-        coro.yield(() -> channel.write(src, null, new CompletionHandler<Integer, Object>() {
+        channel.write(src, null, new CompletionHandler<Integer, Object>() {
             @Override
             public void completed(Integer result, Object attachment) {
                 res[0] = result;
-                coro.resume();
+                coro.dispatchResume();
             }
 
             @Override
             public void failed(Throwable e, Object attachment) {
                 exc[0] = e;
-                coro.resume();
+                coro.dispatchResume();
             }
-        }));
+        });
+        coro.awaitResume();
         if (exc[0] != null) throw new RuntimeException(exc[0]);
         return res[0];
     }
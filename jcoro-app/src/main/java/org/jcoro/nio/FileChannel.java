@@ -13,29 +13,30 @@ import java.nio.channels.FileLock;
  * @author elwood
  */
 public class FileChannel {
-    @Async(@Await("yield"))
+    @Async(@Await("awaitResume"))
     public static FileLock lock(AsynchronousFileChannel channel) {
         final Coro coro = Coro.get();
         final FileLock[] res = new FileLock[1];
         final Throwable[] exc = new Throwable[1];
-        coro.yield(() -> channel.lock(null, new CompletionHandler<FileLock, Object>() {
+        channel.lock(null, new CompletionHandler<FileLock, Object>() {
             @Override
             public void completed(FileLock result, Object attachment) {
                 res[0] = result;
-                coro.resume();
+                coro.dispatchResume();
             }
 
             @Override
             public void failed(Throwable e, Object attachment) {
                 exc[0] = e;
-                coro.resume();
+                coro.dispatchResume();
             }
-        }));
+        });
+        coro.awaitResume();
         if (null != exc[0]) throw new RuntimeException(exc[0]);
         return res[0];
     }
 
-    @Async(@Await("yield"))
+    @Async(@Await("awaitResume"))
     public static FileLock lock(AsynchronousFileChannel channel,
                                 long position,
                                 long size,
@@ -43,67 +44,70 @@ public class FileChannel {
         final Coro coro = Coro.get();
         final FileLock[] res = new FileLock[1];
         final Throwable[] exc = new Throwable[1];
-        coro.yield(() -> channel.lock(position, size, shared, null, new CompletionHandler<FileLock, Object>() {
+        channel.lock(position, size, shared, null, new CompletionHandler<FileLock, Object>() {
             @Override
             public void completed(FileLock result, Object attachment) {
                 res[0] = result;
-                coro.resume();
+                coro.dispatchResume();
             }
 
             @Override
             public void failed(Throwable e, Object attachment) {
                 exc[0] = e;
-                coro.resume();
+                coro.dispatchResume();
             }
-        }));
+        });
+        coro.awaitResume();
         if (null != exc[0]) throw new RuntimeException(exc[0]);
         return res[0];
     }
 
-    @Async(@Await("yield"))
+    @Async(@Await("awaitResume"))
     public static Integer read(AsynchronousFileChannel channel,
                                ByteBuffer dst,
                                long position) {
         final Coro coro = Coro.get();
         final Integer[] res = new Integer[1];
         final Throwable[] exc = new Throwable[1];
-        coro.yield(() -> channel.read(dst, position, null, new CompletionHandler<Integer, Object>() {
+        channel.read(dst, position, null, new CompletionHandler<Integer, Object>() {
             @Override
             public void completed(Integer result, Object attachment) {
                 res[0] = result;
-                coro.resume();
+                coro.dispatchResume();
             }
 
             @Override
             public void failed(Throwable e, Object attachment) {
                 exc[0] = e;
-                coro.resume();
+                coro.dispatchResume();
             }
-        }));
+        });
+        coro.awaitResume();
         if (null != exc[0]) throw new RuntimeException(exc[0]);
         return res[0];
     }
 
-    @Async(@Await("yield"))
+    @Async(@Await("awaitResume"))
     public static Integer write(AsynchronousFileChannel channel,
                                 ByteBuffer src,
                                 long position) {
         final Coro coro = Coro.get();
         final Integer[] res = new Integer[1];
         final Throwable[] exc = new Throwable[1];
-        coro.yield(() -> channel.write(src, position, null, new CompletionHandler<Integer, Object>() {
+        channel.write(src, position, null, new CompletionHandler<Integer, Object>() {
             @Override
             public void completed(Integer result, Object attachment) {
                 res[0] = result;
-                coro.resume();
+                coro.dispatchResume();
             }
 
             @Override
             public void failed(Throwable e, Object attachment) {
                 exc[0] = e;
-                coro.resume();
+                coro.dispatchResume();
             }
-        }));
+        });
+        coro.awaitResume();
         if (null != exc[0]) throw new RuntimeException(exc[0]);
         return res[0];
     }
@@ -12,24 +12,25 @@ import java.nio.channels.CompletionHandler;
  * @author bedefaced
  */
 public class ServerSocketChannel {
-    @Async(@Await("yield"))
+    @Async(@Await("awaitResume"))
     public static AsynchronousSocketChannel accept(AsynchronousServerSocketChannel channel) {
         Coro coro = Coro.get();
         final AsynchronousSocketChannel[] res = new AsynchronousSocketChannel[1];
         final Throwable[] exc = new Throwable[1];
-        coro.yield(() -> channel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Object>() {
+        channel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Object>() {
             @Override
             public void completed(AsynchronousSocketChannel result, Object attachment) {
                 res[0] = result;
-                coro.resume();
+                coro.dispatchResume();
             }
 
             @Override
             public void failed(Throwable e, Object attachment) {
                 exc[0] = e;
-                coro.resume();
+                coro.dispatchResume();
             }
-        }));
+        });
+        coro.awaitResume();
         if (exc[0] != null) throw new RuntimeException(exc[0]);
         return res[0];
     }
@@ -14,155 +14,162 @@ import java.util.concurrent.TimeUnit;
  * @author bedefaced
  */
 public class SocketChannel {
-    @Async(@Await("yield"))
+    @Async(@Await("awaitResume"))
     public static void connect(AsynchronousSocketChannel channel, SocketAddress remote) {
         Coro coro = Coro.get();
         final Throwable[] exc = new Throwable[1];
-        coro.yield(() -> channel.connect(remote, null, new CompletionHandler<Void, Object>() {
+        channel.connect(remote, null, new CompletionHandler<Void, Object>() {
             @Override
             public void completed(Void result, Object attachment) {
-                coro.resume();
+                coro.dispatchResume();
             }
 
             @Override
             public void failed(Throwable e, Object attachment) {
                 exc[0] = e;
-                coro.resume();
+                coro.dispatchResume();
             }
-        }));
+        });
+        coro.awaitResume();
         if (exc[0] != null) throw new RuntimeException(exc[0]);
     }
 
-    @Async(@Await("yield"))
+    @Async(@Await("awaitResume"))
     public static Integer read(AsynchronousSocketChannel channel, ByteBuffer buffer) {
         Coro coro = Coro.get();
         final Integer[] res = new Integer[1];
         final Throwable[] exc = new Throwable[1];
-        coro.yield(() -> channel.read(buffer, null, new CompletionHandler<Integer, Object>() {
+        channel.read(buffer, null, new CompletionHandler<Integer, Object>() {
             @Override
             public void completed(Integer result, Object attachment) {
                 res[0] = result;
-                coro.resume();
+                coro.dispatchResume();
             }
 
             @Override
             public void failed(Throwable e, Object attachment) {
                 exc[0] = e;
-                coro.resume();
+                coro.dispatchResume();
             }
-        }));
+        });
+        coro.awaitResume();
         if (exc[0] != null) throw new RuntimeException(exc[0]);
         return res[0];
     }
 
-    @Async(@Await("yield"))
+    @Async(@Await("awaitResume"))
     public static Integer read(AsynchronousSocketChannel channel, ByteBuffer buffer, long timeout, TimeUnit unit) {
         Coro coro = Coro.get();
         final Integer[] res = new Integer[1];
         final Throwable[] exc = new Throwable[1];
-        coro.yield(() -> channel.read(buffer, timeout, unit, null, new CompletionHandler<Integer, Object>() {
+        channel.read(buffer, timeout, unit, null, new CompletionHandler<Integer, Object>() {
             @Override
             public void completed(Integer result, Object attachment) {
                 res[0] = result;
-                coro.resume();
+                coro.dispatchResume();
             }
 
             @Override
             public void failed(Throwable e, Object attachment) {
                 exc[0] = e;
-                coro.resume();
+                coro.dispatchResume();
             }
-        }));
+        });
+        coro.awaitResume();
         if (exc[0] != null) throw new RuntimeException(exc[0]);
         return res[0];
     }
 
-    @Async(@Await("yield"))
+    @Async(@Await("awaitResume"))
     public static Long read(AsynchronousSocketChannel channel, ByteBuffer[] dsts, int offset,
                             int length, long timeout, TimeUnit unit) {
         Coro coro = Coro.get();
         final Long[] res = new Long[1];
         final Throwable[] exc = new Throwable[1];
-        coro.yield(() -> channel.read(dsts, offset, length, timeout, unit, null, new CompletionHandler<Long, Object>() {
+        channel.read(dsts, offset, length, timeout, unit, null, new CompletionHandler<Long, Object>() {
             @Override
             public void completed(Long result, Object attachment) {
                 res[0] = result;
-                coro.resume();
+                coro.dispatchResume();
             }
 
             @Override
             public void failed(Throwable e, Object attachment) {
                 exc[0] = e;
-                coro.resume();
+                coro.dispatchResume();
             }
-        }));
+        });
+        coro.awaitResume();
         if (exc[0] != null) throw new RuntimeException(exc[0]);
         return res[0];
     }
 
-    @Async(@Await("yield"))
+    @Async(@Await("awaitResume"))
     public static Integer write(AsynchronousSocketChannel channel, ByteBuffer buffer) {
         Coro coro = Coro.get();
         final Integer[] res = new Integer[1];
         final Throwable[] exc = new Throwable[1];
-        coro.yield(() -> channel.write(buffer, null, new CompletionHandler<Integer, Object>() {
+        channel.write(buffer, null, new CompletionHandler<Integer, Object>() {
             @Override
             public void completed(Integer result, Object attachment) {
                 res[0] = result;
-                coro.resume();
+                coro.dispatchResume();
             }
 
             @Override
             public void failed(Throwable e, Object attachment) {
                 exc[0] = e;
-                coro.resume();
+                coro.dispatchResume();
             }
-        }));
+        });
+        coro.awaitResume();
         if (exc[0] != null) throw new RuntimeException(exc[0]);
         return res[0];
     }
 
-    @Async(@Await("yield"))
+    @Async(@Await("awaitResume"))
     public static Integer write(AsynchronousSocketChannel channel, ByteBuffer buffer, long timeout, TimeUnit unit) {
         Coro coro = Coro.get();
         final Integer[] res = new Integer[1];
         final Throwable[] exc = new Throwable[1];
-        coro.yield(() -> channel.write(buffer, timeout, unit, null, new CompletionHandler<Integer, Object>() {
+        channel.write(buffer, timeout, unit, null, new CompletionHandler<Integer, Object>() {
             @Override
             public void completed(Integer result, Object attachment) {
                 res[0] = result;
-                coro.resume();
+                coro.dispatchResume();
             }
 
             @Override
             public void failed(Throwable e, Object attachment) {
                 exc[0] = e;
-                coro.resume();
+                coro.dispatchResume();
             }
-        }));
+        });
+        coro.awaitResume();
         if (exc[0] != null) throw new RuntimeException(exc[0]);
         return res[0];
     }
 
-    @Async(@Await("yield"))
+    @Async(@Await("awaitResume"))
     public static Long write(AsynchronousSocketChannel channel, ByteBuffer[] dsts, int offset,
                             int length, long timeout, TimeUnit unit) {
         Coro coro = Coro.get();
         final Long[] res = new Long[1];
         final Throwable[] exc = new Throwable[1];
-        coro.yield(() -> channel.write(dsts, offset, length, timeout, unit, null, new CompletionHandler<Long, Object>() {
+        channel.write(dsts, offset, length, timeout, unit, null, new CompletionHandler<Long, Object>() {
             @Override
             public void completed(Long result, Object attachment) {
                 res[0] = result;
-                coro.resume();
+                coro.dispatchResume();
             }
 
             @Override
             public void failed(Throwable e, Object attachment) {
                 exc[0] = e;
-                coro.resume();
+                coro.dispatchResume();
             }
-        }));
+        });
+        coro.awaitResume();
         if (exc[0] != null) throw new RuntimeException(exc[0]);
         return res[0];
     }
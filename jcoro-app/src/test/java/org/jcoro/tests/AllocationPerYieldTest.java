@@ -0,0 +1,90 @@
+package org.jcoro.tests;
+
+import org.jcoro.Async;
+import org.jcoro.Await;
+import org.jcoro.Coro;
+import org.jcoro.ICoroRunnable;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Checks that saving and restoring of primitive locals doesn't allocate anything
+ * (values shouldn't be boxed when pushing to coro stacks).
+ *
+ * @author elwood
+ */
+public class AllocationPerYieldTest {
+    private static final int WARMUP_CYCLES = 20000;
+    private static final int MEASURED_CYCLES = 20000;
+
+    // Some slack for allocations which are not related to coro stacks (JIT deoptimizations etc)
+    private static final long MAX_BYTES_PER_CYCLE = 8;
+
+    public static void main(String[] args) {
+        new AllocationPerYieldTest().test();
+    }
+
+    @Test
+    public void test() {
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadMXBean;
+        Assume.assumeTrue(bean.isThreadAllocatedMemorySupported());
+        bean.setThreadAllocatedMemoryEnabled(true);
+        // When instrumented with frame classes, each frame is saved to newly allocated object by design
+        Assume.assumeFalse(instrumentedWithFrameClasses());
+
+        final long[] sum = new long[1];
+        Coro coro = Coro.initSuspended(new ICoroRunnable() {
+            @Override
+            @Async(@Await("loop"))
+            public void run() {
+                final long result = loop(WARMUP_CYCLES + MEASURED_CYCLES);
+                sum[0] = result;
+            }
+
+            @Async(@Await("yield"))
+            private long loop(int n) {
+                long l = Long.MAX_VALUE / 2; // Not cached by Long.valueOf()
+                double d = 1000.5;
+                float f = 1000.5f;
+                final Coro c = Coro.get();
+                for (int i = 0; i < n; i++) {
+                    c.yield();
+                    l++;
+                    d += 1;
+                    f += 1;
+                }
+                return l + (long) d + (long) f;
+            }
+        });
+        coro.start();
+        for (int i = 0; i < WARMUP_CYCLES; i++) {
+            coro.resume();
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        final long before = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_CYCLES; i++) {
+            coro.resume();
+        }
+        final long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+
+        Assert.assertTrue(sum[0] != 0);
+        Assert.assertTrue(String.format("Allocated %d bytes per yield/resume cycle", allocated / MEASURED_CYCLES),
+                allocated / MEASURED_CYCLES <= MAX_BYTES_PER_CYCLE);
+    }
+
+    private static boolean instrumentedWithFrameClasses() {
+        try {
+            Class.forName(AllocationPerYieldTest.class.getName() + "$1$$Frame0");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
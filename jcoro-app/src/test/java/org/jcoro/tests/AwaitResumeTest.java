@@ -0,0 +1,86 @@
+package org.jcoro.tests;
+
+import org.jcoro.Async;
+import org.jcoro.Await;
+import org.jcoro.Coro;
+import org.jcoro.ICoroRunnable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks try-then-suspend primitive Coro.awaitResume().
+ *
+ * @author elwood
+ */
+public class AwaitResumeTest {
+    public static void main(String[] args) throws Exception {
+        new AwaitResumeTest().testCompletedImmediately();
+        new AwaitResumeTest().testCompletedLater();
+    }
+
+    /**
+     * Root run() is not instrumented, so it is called again each time coro is resumed after suspending.
+     */
+    private static abstract class CountingRunnable implements ICoroRunnable {
+        int runs;
+
+        @Override
+        public void run() {
+            runs++;
+            body();
+        }
+
+        protected abstract void body();
+    }
+
+    /**
+     * Operation is completed before awaitResume() is called, coro shouldn't be suspended.
+     */
+    @Test
+    public void testCompletedImmediately() {
+        final int[] result = new int[1];
+        final CountingRunnable runnable = new CountingRunnable() {
+            @Override
+            @Async(@Await("awaitResume"))
+            protected void body() {
+                final Coro c = Coro.get();
+                for (int i = 0; i < 1000; i++) {
+                    result[0]++;
+                    c.resume(); // Completion handler called synchronously
+                    c.awaitResume();
+                }
+            }
+        };
+        final Coro coro = Coro.initSuspended(runnable);
+        coro.start();
+        Assert.assertEquals(1000, result[0]);
+        Assert.assertEquals(1, runnable.runs);
+    }
+
+    /**
+     * Operation is completed after awaitResume() is called, coro should be suspended as usual.
+     */
+    @Test
+    public void testCompletedLater() throws InterruptedException {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final CountingRunnable runnable = new CountingRunnable() {
+            @Override
+            @Async(@Await("awaitResume"))
+            protected void body() {
+                final Coro c = Coro.get();
+                c.awaitResume();
+                finished.countDown();
+            }
+        };
+        final Coro coro = Coro.initSuspended(runnable);
+        coro.start();
+        Assert.assertEquals(1, finished.getCount());
+        coro.resume();
+        Assert.assertTrue(finished.await(1, TimeUnit.SECONDS));
+        // In continuations mode run() isn't called again: body() is continued by its frame
+        Assert.assertEquals(InstrumentationMode.isContinuations(runnable.getClass()) ? 1 : 2, runnable.runs);
+    }
+}
@@ -0,0 +1,64 @@
+package org.jcoro.tests;
+
+import org.jcoro.Async;
+import org.jcoro.Await;
+import org.jcoro.Coro;
+import org.jcoro.ICoroRunnable;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that frame with several values of each type (saved by bulk save helper) is restored correctly,
+ * including stack bottom operands of different types and null operand.
+ *
+ * @author elwood
+ */
+public class BulkSaveTest {
+    public static void main(String[] args) {
+        new BulkSaveTest().test();
+    }
+
+    @Test
+    public void test() {
+        final String[] result = new String[2];
+        Coro coro = Coro.initSuspended(new ICoroRunnable() {
+            @Override
+            @Async({@Await("yield"), @Await("pass")})
+            public void run() {
+                int i1 = 1;
+                int i2 = 2;
+                long l1 = 3;
+                long l2 = 4;
+                float f1 = 5;
+                float f2 = 6;
+                double d1 = 7;
+                double d2 = 8;
+                boolean b = true;
+                char c = 'c';
+                String s1 = "s1";
+                String s2 = "s2";
+                Coro.get().yield();
+                result[0] = "" + i1 + i2 + l1 + l2 + f1 + f2 + d1 + d2 + b + c + s1 + s2;
+                // Stack bottom: [result, 1, this, s1, l1, d1, null, f1, i2]
+                result[1] = join(s1, l1, d1, null, f1, i2, pass(s2));
+                result[0] += i1 + l2 + f2 + d2;
+            }
+
+            private String join(String s, long l, double d, Object o, float f, int i, String s2) {
+                return s + l + d + o + f + i + s2;
+            }
+
+            @Async(@Await("yield"))
+            private String pass(String s) {
+                Coro.get().yield();
+                return s;
+            }
+        });
+        coro.start();
+        coro.resume();
+        Assert.assertEquals("12345.06.07.08.0truecs1s2", result[0]);
+        coro.resume();
+        Assert.assertEquals("s13" + "7.0" + "null" + "5.0" + "2" + "s2", result[1]);
+        Assert.assertEquals("12345.06.07.08.0truecs1s2" + "19.0", result[0]);
+    }
+}
@@ -0,0 +1,193 @@
+package org.jcoro.tests;
+
+import org.jcoro.Async;
+import org.jcoro.Await;
+import org.jcoro.Coro;
+import org.jcoro.CoroPool;
+import org.jcoro.CoroScheduler;
+import org.jcoro.ICoroRunnable;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Field;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that finished coros are reset and reused (by Coro.reset() and CoroPool), and that pooled coros
+ * don't keep stacks grown over max retained capacity.
+ *
+ * @author elwood
+ */
+public class CoroPoolTest {
+    private static final int CYCLES = 20000;
+
+    // Some slack for allocations which are not related to coros (JIT deoptimizations etc)
+    private static final long MAX_BYTES_PER_CYCLE = 16;
+
+    public static void main(String[] args) throws Exception {
+        new CoroPoolTest().testReset();
+        new CoroPoolTest().testPoolReuse();
+        new CoroPoolTest().testRetainedCapacity();
+        new CoroPoolTest().testSpawn();
+        new CoroPoolTest().testNoAllocation();
+    }
+
+    private static class Counter implements ICoroRunnable {
+        private int value;
+
+        @Override
+        @Async(@Await("yield"))
+        public void run() {
+            value++;
+            Coro.get().yield();
+            value++;
+        }
+    }
+
+    @Async({@Await("yield"), @Await("descend")})
+    static long descend(int depth, long value) {
+        if (depth == 0) {
+            Coro.get().yield();
+            return value;
+        }
+        return descend(depth - 1, value + depth) + 1;
+    }
+
+    @Test
+    public void testReset() {
+        final Counter first = new Counter();
+        final Coro coro = Coro.initSuspended(first);
+        coro.start();
+        try {
+            coro.reset(new Counter());
+            Assert.fail("Suspended coro can't be reset");
+        } catch (IllegalStateException e) {
+            // Ok
+        }
+        coro.resume();
+        Assert.assertEquals(2, first.value);
+
+        final Counter second = new Counter();
+        coro.reset(second);
+        coro.start();
+        coro.resume();
+        Assert.assertEquals(2, first.value);
+        Assert.assertEquals(2, second.value);
+    }
+
+    @Test
+    public void testPoolReuse() {
+        final CoroPool pool = new CoroPool(1);
+        final Counter first = new Counter();
+        final Coro coro = pool.initSuspended(first);
+        coro.start();
+        Assert.assertEquals(0, pool.size());
+        coro.resume();
+        Assert.assertEquals(2, first.value);
+        Assert.assertEquals(1, pool.size());
+
+        final Counter second = new Counter();
+        final Coro reused = pool.initSuspended(second);
+        Assert.assertSame(coro, reused);
+        Assert.assertEquals(0, pool.size());
+        reused.start();
+        reused.resume();
+        Assert.assertEquals(2, second.value);
+
+        // Pool keeps only one coro
+        final Coro third = pool.initSuspended(new Counter());
+        final Coro fourth = pool.initSuspended(new Counter());
+        Assert.assertSame(coro, third);
+        Assert.assertNotSame(coro, fourth);
+        third.start();
+        fourth.start();
+        third.resume();
+        fourth.resume();
+        Assert.assertEquals(1, pool.size());
+    }
+
+    @Test
+    public void testRetainedCapacity() throws Exception {
+        final CoroPool pool = new CoroPool(1, 64);
+        final long[] result = new long[1];
+        final Coro coro = pool.initSuspended(new ICoroRunnable() {
+            @Override
+            @Async(@Await("descend"))
+            public void run() {
+                result[0] = descend(1000, 0);
+            }
+        });
+        coro.start();
+        Assert.assertTrue(stateCapacity(coro) > 64);
+        coro.resume();
+        Assert.assertEquals(500500 + 1000, result[0]);
+        Assert.assertEquals(1, pool.size());
+        Assert.assertTrue(stateCapacity(coro) <= 64);
+    }
+
+    // Capacity of stack, which has grown most (stack of states or frames, depending on instrumentation mode)
+    private static int stateCapacity(Coro coro) throws Exception {
+        final Field statesStack = Coro.class.getDeclaredField("statesStack");
+        statesStack.setAccessible(true);
+        final Field continuations = Coro.class.getDeclaredField("continuations");
+        continuations.setAccessible(true);
+        return Math.max(((int[]) statesStack.get(coro)).length, ((Object[]) continuations.get(coro)).length);
+    }
+
+    @Test
+    public void testSpawn() throws InterruptedException {
+        final CoroPool pool = new CoroPool(16);
+        final int nCoros = 1000;
+        final CountDownLatch finished = new CountDownLatch(nCoros);
+        try (CoroScheduler scheduler = new CoroScheduler(2)) {
+            for (int i = 0; i < nCoros; i++) {
+                pool.spawn(scheduler, new ICoroRunnable() {
+                    @Override
+                    @Async(@Await("yield"))
+                    public void run() {
+                        final Coro coro = Coro.get();
+                        coro.yield(coro::dispatchResume);
+                        finished.countDown();
+                    }
+                });
+            }
+            Assert.assertTrue(finished.await(30, TimeUnit.SECONDS));
+        }
+        // Coros are returned to pool after countDown(), wait for the last of them
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (pool.size() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        Assert.assertTrue(pool.size() >= 2);
+        Assert.assertTrue(pool.size() <= 16);
+    }
+
+    @Test
+    public void testNoAllocation() {
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadMXBean;
+        Assume.assumeTrue(bean.isThreadAllocatedMemorySupported());
+        bean.setThreadAllocatedMemoryEnabled(true);
+
+        final CoroPool pool = new CoroPool(1);
+        final int[] runs = new int[1];
+        final ICoroRunnable runnable = () -> runs[0]++;
+        for (int i = 0; i < CYCLES; i++) {
+            pool.initSuspended(runnable).start();
+        }
+        final long threadId = Thread.currentThread().getId();
+        final long before = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < CYCLES; i++) {
+            pool.initSuspended(runnable).start();
+        }
+        final long allocated = bean.getThreadAllocatedBytes(threadId) - before;
+        Assert.assertEquals(2 * CYCLES, runs[0]);
+        Assert.assertTrue("Allocated " + allocated + " bytes per coro",
+                allocated <= MAX_BYTES_PER_CYCLE * CYCLES);
+    }
+}
@@ -0,0 +1,142 @@
+package org.jcoro.tests;
+
+import org.jcoro.Async;
+import org.jcoro.Await;
+import org.jcoro.Coro;
+import org.jcoro.CoroScheduler;
+import org.jcoro.CoroThread;
+import org.jcoro.ICoroRunnable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author elwood
+ */
+public class CoroSchedulerTest {
+    private static final int N_COROS = 1000;
+    private static final int N_YIELDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        new CoroSchedulerTest().testResumeOnHomeWorker();
+        new CoroSchedulerTest().testWorkStealing();
+        new CoroSchedulerTest().testStealingOrder();
+    }
+
+    /**
+     * Coros are resumed from the foreign thread (like completion handlers do), and resume should be
+     * executed by scheduler workers.
+     */
+    @Test
+    public void testResumeOnHomeWorker() throws InterruptedException {
+        final CoroScheduler scheduler = new CoroScheduler(4);
+        final ConcurrentLinkedQueue<Coro> suspended = new ConcurrentLinkedQueue<>();
+        final CountDownLatch finished = new CountDownLatch(N_COROS);
+        final AtomicInteger notInWorker = new AtomicInteger();
+        try {
+            for (int i = 0; i < N_COROS; i++) {
+                Coro.spawn(scheduler, new ICoroRunnable() {
+                    @Override
+                    @Async(@Await("yield"))
+                    public void run() {
+                        final Coro coro = Coro.get();
+                        for (int j = 0; j < N_YIELDS; j++) {
+                            if (!(Thread.currentThread() instanceof CoroThread)) notInWorker.incrementAndGet();
+                            coro.yield(() -> suspended.add(coro));
+                        }
+                        finished.countDown();
+                    }
+                });
+            }
+            // Emulate completion handlers called in another thread
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (finished.getCount() > 0 && System.nanoTime() < deadline) {
+                final Coro coro = suspended.poll();
+                if (coro != null) coro.dispatchResume();
+                else Thread.yield();
+            }
+            Assert.assertTrue(finished.await(1, TimeUnit.SECONDS));
+            Assert.assertEquals(0, notInWorker.get());
+        } finally {
+            scheduler.shutdown();
+            Assert.assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * All tasks are enqueued to one worker, but idle workers should steal some of them.
+     */
+    @Test
+    public void testWorkStealing() throws InterruptedException {
+        final CoroScheduler scheduler = new CoroScheduler(4);
+        final int nTasks = 40;
+        final CountDownLatch finished = new CountDownLatch(nTasks);
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<>());
+        try {
+            scheduler.execute(() -> {
+                // Executed from the worker, so all tasks go to this worker's deque
+                for (int i = 0; i < nTasks; i++) {
+                    scheduler.execute(() -> {
+                        threads.add(Thread.currentThread().getName());
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        finished.countDown();
+                    });
+                }
+            });
+            Assert.assertTrue(finished.await(30, TimeUnit.SECONDS));
+            Assert.assertTrue(threads.size() > 1);
+        } finally {
+            scheduler.shutdown();
+            Assert.assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * Worker submits tasks to itself while it's busy: idle worker should be woken up and steal them
+     * in FIFO order (the oldest task first).
+     */
+    @Test
+    public void testStealingOrder() throws InterruptedException {
+        final CoroScheduler scheduler = new CoroScheduler(2);
+        final int nTasks = 20;
+        final CountDownLatch stolen = new CountDownLatch(nTasks);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        try {
+            scheduler.execute(() -> {
+                for (int i = 0; i < nTasks; i++) {
+                    final int task = i;
+                    scheduler.execute(() -> {
+                        order.add(task);
+                        stolen.countDown();
+                    });
+                }
+                // Busy worker doesn't take its tasks until all of them are stolen
+                try {
+                    Assert.assertTrue(stolen.await(30, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            Assert.assertTrue(stolen.await(30, TimeUnit.SECONDS));
+            final List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < nTasks; i++) expected.add(i);
+            Assert.assertEquals(expected, order);
+        } finally {
+            scheduler.shutdown();
+            Assert.assertTrue(scheduler.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.jcoro.tests;
+
+import org.jcoro.Async;
+import org.jcoro.Await;
+import org.jcoro.Coro;
+import org.jcoro.CoroThreadFactory;
+import org.jcoro.ICoroRunnable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that coro can be started in usual thread and resumed in CoroThread (and vice versa).
+ *
+ * @author elwood
+ */
+public class CoroThreadTest {
+    public static void main(String[] args) throws Exception {
+        new CoroThreadTest().test();
+    }
+
+    @Test
+    public void test() throws InterruptedException, ExecutionException {
+        final int[] state = new int[1];
+        final Coro[] coroInside = new Coro[2];
+        Coro coro = Coro.initSuspended(new ICoroRunnable() {
+            @Override
+            @Async(@Await("yield"))
+            public void run() {
+                int i = 5;
+                coroInside[0] = Coro.get();
+                Coro.get().yield();
+                coroInside[1] = Coro.get();
+                state[0] = i;
+                Coro.get().yield();
+                state[0] = i * 2;
+            }
+        });
+
+        ExecutorService executor = Executors.newSingleThreadExecutor(new CoroThreadFactory("test", true));
+        try {
+            // Start in usual thread, resume in CoroThread
+            coro.start();
+            Assert.assertNull(Coro.getSafe());
+            executor.submit(() -> {
+                coro.resume();
+                Assert.assertNull(Coro.getSafe());
+            }).get();
+            Assert.assertEquals(5, state[0]);
+            // And back
+            coro.resume();
+            Assert.assertEquals(10, state[0]);
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        Assert.assertSame(coro, coroInside[0]);
+        Assert.assertSame(coro, coroInside[1]);
+    }
+}
@@ -0,0 +1,206 @@
+package org.jcoro.tests;
+
+import org.jcoro.Async;
+import org.jcoro.Await;
+import org.jcoro.Coro;
+import org.jcoro.DeepParker;
+import org.jcoro.ICoroRunnable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks that states of idle coros are moved off heap by DeepParker and are restored when coros are resumed
+ * (also when coros are resumed concurrently with sweeping).
+ *
+ * @author elwood
+ */
+public class DeepParkTest {
+    private static final int YIELDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        new DeepParkTest().testParkAndResume();
+        new DeepParkTest().testIdleTime();
+        new DeepParkTest().testAnotherParker();
+        new DeepParkTest().testResetAndTrackAgain();
+        new DeepParkTest().testConcurrentResume();
+    }
+
+    private static class Connection implements ICoroRunnable {
+        private final int id;
+        private long result;
+        private boolean done;
+
+        Connection(int id) {
+            this.id = id;
+        }
+
+        @Override
+        @Async(@Await("poll"))
+        public void run() {
+            long sum = 0;
+            for (int i = 0; i < YIELDS; i++) {
+                sum += poll(id + i, id * 3L, id / 2.0f, id * 1.5);
+            }
+            result = sum;
+            done = true;
+        }
+
+        // All kinds of primitives are saved while coro is suspended
+        @Async(@Await("yield"))
+        static long poll(int i, long l, float f, double d) {
+            final char c = (char) ('a' + i % 26);
+            final boolean even = i % 2 == 0;
+            Coro.get().yield();
+            return i + l + (long) (f * 2) + (long) (d * 2) + c + (even ? 1 : 0);
+        }
+
+        long expected() {
+            long sum = 0;
+            for (int i = 0; i < YIELDS; i++) {
+                final int n = id + i;
+                sum += n + id * 3L + id + (long) (id * 3.0) + 'a' + n % 26 + (n % 2 == 0 ? 1 : 0);
+            }
+            return sum;
+        }
+    }
+
+    @Test
+    public void testParkAndResume() {
+        final DeepParker parker = new DeepParker(0, TimeUnit.MILLISECONDS);
+        final Connection connection = new Connection(7);
+        final Coro coro = Coro.initSuspended(connection);
+        parker.track(coro);
+        // Not started coro isn't parked
+        Assert.assertEquals(0, parker.sweep());
+        coro.start();
+        for (int i = 0; i < YIELDS; i++) {
+            Assert.assertEquals(1, parker.sweep());
+            Assert.assertTrue(coro.isDeepParked());
+            Assert.assertTrue(parker.getParkedBytes() > 0);
+            // Already parked
+            Assert.assertEquals(0, parker.sweep());
+            coro.resume();
+            Assert.assertFalse(coro.isDeepParked());
+            Assert.assertEquals(0, parker.getParkedBytes());
+        }
+        Assert.assertTrue(connection.done);
+        Assert.assertEquals(connection.expected(), connection.result);
+        // Finished coro isn't tracked anymore
+        Assert.assertEquals(0, parker.sweep());
+        Assert.assertEquals(0, parker.getTrackedCount());
+    }
+
+    @Test
+    public void testIdleTime() {
+        final DeepParker parker = new DeepParker(1, TimeUnit.HOURS);
+        final Coro coro = Coro.initSuspended(new Connection(1));
+        parker.track(coro);
+        coro.start();
+        Assert.assertEquals(0, parker.sweep());
+        Assert.assertFalse(coro.isDeepParked());
+        Assert.assertEquals(1, parker.getTrackedCount());
+    }
+
+    @Test
+    public void testAnotherParker() {
+        final DeepParker parker = new DeepParker(0, TimeUnit.MILLISECONDS);
+        final DeepParker another = new DeepParker(0, TimeUnit.MILLISECONDS);
+        final Connection connection = new Connection(3);
+        final Coro coro = Coro.initSuspended(connection);
+        parker.track(coro);
+        coro.start();
+        Assert.assertEquals(1, parker.sweep());
+        // State is parked in memory of the first parker
+        try {
+            another.track(coro);
+            Assert.fail("Coro can't be tracked by two parkers");
+        } catch (IllegalStateException e) {
+            // Ok
+        }
+        // Tracking by the same parker again is ignored
+        parker.track(coro);
+        Assert.assertEquals(0, parker.sweep());
+        Assert.assertEquals(1, parker.getTrackedCount());
+        Assert.assertEquals(0, another.sweep());
+        Assert.assertEquals(0, another.getTrackedCount());
+        for (int i = 0; i < YIELDS; i++) {
+            coro.resume();
+        }
+        Assert.assertTrue(connection.done);
+        Assert.assertEquals(connection.expected(), connection.result);
+        Assert.assertEquals(0, parker.getParkedBytes());
+    }
+
+    @Test
+    public void testResetAndTrackAgain() {
+        final int reuses = 100;
+        final DeepParker parker = new DeepParker(0, TimeUnit.MILLISECONDS);
+        final Coro coro = Coro.initSuspended(new Connection(0));
+        for (int i = 0; i < reuses; i++) {
+            // Coro is reused (e.g. by CoroPool) and tracked by the same parker again
+            final Connection connection = new Connection(i);
+            coro.reset(connection);
+            parker.track(coro);
+            // Sometimes coro is reset and tracked again before sweep
+            if (i % 2 == 0) continue;
+            coro.start();
+            Assert.assertEquals(1, parker.sweep());
+            Assert.assertEquals(1, parker.getTrackedCount());
+            for (int j = 0; j < YIELDS; j++) {
+                coro.resume();
+            }
+            Assert.assertTrue(connection.done);
+            Assert.assertEquals(connection.expected(), connection.result);
+        }
+        coro.reset(new Connection(0));
+        parker.track(coro);
+        parker.sweep();
+        Assert.assertEquals(1, parker.getTrackedCount());
+        Assert.assertEquals(0, parker.getParkedBytes());
+    }
+
+    @Test
+    public void testConcurrentResume() throws InterruptedException {
+        final int nCoros = 200;
+        final DeepParker parker = new DeepParker(0, TimeUnit.MILLISECONDS);
+        final List<Connection> connections = new ArrayList<>();
+        final ConcurrentLinkedQueue<Coro> suspended = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < nCoros; i++) {
+            final Connection connection = new Connection(i);
+            connections.add(connection);
+            final Coro coro = Coro.initSuspended(connection);
+            parker.track(coro);
+            coro.start();
+            suspended.add(coro);
+        }
+        final AtomicBoolean stop = new AtomicBoolean();
+        final Thread sweeper = new Thread(() -> {
+            while (!stop.get()) parker.sweep();
+        });
+        sweeper.start();
+        try {
+            // Each coro is resumed YIELDS times in random order relative to sweeping
+            for (int i = 0; i < YIELDS; i++) {
+                for (int j = 0; j < nCoros; j++) {
+                    final Coro coro = suspended.poll();
+                    coro.resume();
+                    suspended.add(coro);
+                }
+            }
+        } finally {
+            stop.set(true);
+            sweeper.join();
+        }
+        for (Connection connection : connections) {
+            Assert.assertTrue(connection.done);
+            Assert.assertEquals(connection.expected(), connection.result);
+        }
+        Assert.assertEquals(0, parker.getParkedBytes());
+    }
+}
@@ -0,0 +1,165 @@
+package org.jcoro.tests;
+
+import org.jcoro.Async;
+import org.jcoro.Await;
+import org.jcoro.Coro;
+import org.jcoro.ICoroRunnable;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Suspends coro at different depths of recursion and passes results and exceptions of resumed methods
+ * to their callers. In continuations mode inner frames are continued first, and outer ones get results
+ * (or exceptions) of them when they are completed.
+ *
+ * @author elwood
+ */
+public class DeepStackTest {
+    public static void main(String[] args) {
+        new DeepStackTest().testResults();
+        new DeepStackTest().testExceptions();
+    }
+
+    private static class Recursion {
+        private final StringBuilder trace = new StringBuilder();
+
+        // Yields at the bottom and after each returned level
+        @Async({@Await("yield"), @Await("sum")})
+        long sum(int depth) {
+            if (depth == 0) {
+                Coro.get().yield();
+                return 0;
+            }
+            final long result = depth + sum(depth - 1);
+            trace.append(depth).append(';');
+            Coro.get().yield();
+            return result;
+        }
+
+        @Async(@Await("yield"))
+        static double half(double value) {
+            Coro.get().yield();
+            return value / 2;
+        }
+
+        @Async(@Await("yield"))
+        static char letter(boolean upper) {
+            Coro.get().yield();
+            return upper ? 'A' : 'a';
+        }
+
+        @Async(@Await("yield"))
+        static boolean not(boolean value) {
+            Coro.get().yield();
+            return !value;
+        }
+
+        @Async(@Await("yield"))
+        static int[] array(int n) {
+            Coro.get().yield();
+            return new int[n];
+        }
+
+        @Async(@Await("yield"))
+        void fail(String message) {
+            Coro.get().yield();
+            throw new IllegalStateException(message);
+        }
+
+        @Async({@Await("fail"), @Await("failDeeper")})
+        void failDeeper(int depth) {
+            if (depth == 0) {
+                fail("depth " + trace.length());
+                return;
+            }
+            failDeeper(depth - 1);
+        }
+
+        // Catches exception thrown by inner frame after resuming
+        @Async({@Await("failDeeper"), @Await("yield")})
+        String catchFailure(int depth) {
+            final String prefix = "caught:";
+            try {
+                failDeeper(depth);
+            } catch (IllegalStateException e) {
+                Coro.get().yield();
+                return prefix + e.getMessage();
+            }
+            return "not thrown";
+        }
+    }
+
+    @Test
+    public void testResults() {
+        final Object[] results = new Object[6];
+        final Recursion recursion = new Recursion();
+        final Coro coro = Coro.initSuspended(new ICoroRunnable() {
+            @Override
+            @Async({@Await("sum"), @Await("half"), @Await("letter"), @Await("not"), @Await("array")})
+            public void run() {
+                results[0] = recursion.sum(10);
+                results[1] = Recursion.half(5);
+                results[2] = Recursion.letter(true);
+                results[3] = Recursion.not(false);
+                results[4] = Recursion.array(3).length;
+                results[5] = "done";
+            }
+        });
+        coro.start();
+        int resumes = 0;
+        while (results[5] == null) {
+            Assert.assertTrue(resumes++ < 100);
+            coro.resume();
+        }
+        // 11 yields of sum() and one yield of each other method
+        Assert.assertEquals(15, resumes);
+        Assert.assertEquals(55L, results[0]);
+        Assert.assertEquals(2.5, results[1]);
+        Assert.assertEquals('A', results[2]);
+        Assert.assertEquals(true, results[3]);
+        Assert.assertEquals(3, results[4]);
+        Assert.assertEquals("1;2;3;4;5;6;7;8;9;10;", recursion.trace.toString());
+    }
+
+    @Test
+    public void testExceptions() {
+        final Object[] results = new Object[2];
+        final Recursion recursion = new Recursion();
+        final Coro coro = Coro.initSuspended(new ICoroRunnable() {
+            @Override
+            @Async({@Await("catchFailure"), @Await("failDeeper")})
+            public void run() {
+                results[0] = recursion.catchFailure(5);
+                try {
+                    recursion.failDeeper(3);
+                } catch (IllegalStateException e) {
+                    results[1] = e.getMessage();
+                }
+            }
+        });
+        coro.start();
+        coro.resume(); // fail() throws, catchFailure() catches it and yields
+        Assert.assertNull(results[0]);
+        coro.resume(); // catchFailure() returns, failDeeper() goes down to fail()
+        Assert.assertEquals("caught:depth 0", results[0]);
+        Assert.assertNull(results[1]);
+        coro.resume(); // fail() throws again, exception is caught by run()
+        Assert.assertEquals("depth 0", results[1]);
+
+        // Exception which isn't caught inside coro is thrown from resume()
+        final Coro failing = Coro.initSuspended(new ICoroRunnable() {
+            @Override
+            @Async(@Await("failDeeper"))
+            public void run() {
+                recursion.failDeeper(2);
+            }
+        });
+        failing.start();
+        try {
+            failing.resume();
+            Assert.fail("Exception expected");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("depth 0", e.getMessage());
+        }
+    }
+}
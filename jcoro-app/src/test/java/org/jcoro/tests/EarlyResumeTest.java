@@ -0,0 +1,96 @@
+package org.jcoro.tests;
+
+import org.jcoro.Async;
+import org.jcoro.Await;
+import org.jcoro.Coro;
+import org.jcoro.ICoroRunnable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coro is resumed from another thread before it has been suspended.
+ *
+ * @author elwood
+ */
+public class EarlyResumeTest {
+    public static void main(String[] args) throws Exception {
+        new EarlyResumeTest().testResumeBeforeYield();
+        new EarlyResumeTest().testConcurrentResumes();
+    }
+
+    /**
+     * resume() is called while coro is running. Coro should be continued by the thread
+     * which runs it, right after unwinding.
+     */
+    @Test
+    public void testResumeBeforeYield() throws InterruptedException {
+        final Thread mainThread = Thread.currentThread();
+        final boolean[] continuedInMainThread = new boolean[1];
+        final Coro coro = Coro.initSuspended(new ICoroRunnable() {
+            @Override
+            @Async(@Await("yield"))
+            public void run() {
+                final Coro c = Coro.get();
+                final CountDownLatch resumed = new CountDownLatch(1);
+                final Thread resumer = new Thread(() -> {
+                    c.resume();
+                    resumed.countDown();
+                });
+                resumer.start();
+                try {
+                    Assert.assertTrue(resumed.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                c.yield();
+                continuedInMainThread[0] = Thread.currentThread() == mainThread;
+            }
+        });
+        coro.start();
+        Assert.assertTrue(continuedInMainThread[0]);
+    }
+
+    private static final int N_OPERATIONS = 100000;
+
+    /**
+     * Operations are completed in another thread at arbitrary moments: before yield, while unwinding
+     * or after suspending. Each operation should resume coro exactly once.
+     */
+    @Test
+    public void testConcurrentResumes() throws InterruptedException {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CountDownLatch finished = new CountDownLatch(1);
+        final int[] completed = new int[1];
+        try {
+            final Coro coro = Coro.initSuspended(new ICoroRunnable() {
+                @Override
+                @Async(@Await("yield"))
+                public void run() {
+                    final Coro c = Coro.get();
+                    for (int i = 0; i < N_OPERATIONS; i++) {
+                        final int[] result = new int[1];
+                        final int expected = i;
+                        executor.execute(() -> {
+                            result[0] = expected;
+                            c.resume();
+                        });
+                        c.yield();
+                        Assert.assertEquals(expected, result[0]);
+                        completed[0]++;
+                    }
+                    finished.countDown();
+                }
+            });
+            coro.start();
+            Assert.assertTrue(finished.await(60, TimeUnit.SECONDS));
+            Assert.assertEquals(N_OPERATIONS, completed[0]);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
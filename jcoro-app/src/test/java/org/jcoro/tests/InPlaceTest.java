@@ -0,0 +1,116 @@
+package org.jcoro.tests;
+
+import org.jcoro.Program;
+import org.junit.Assert;
+import org.junit.Test;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Checks instrumenting in place (--source and --dest are the same directory): classes, which
+ * are not changed by instrumenting, should stay untouched, other classes should be overwritten
+ * by instrumented versions.
+ *
+ * @author elwood
+ */
+public class InPlaceTest {
+    private static final int PLAIN_CLASSES = 10;
+
+    public static void main(String[] args) throws Exception {
+        new InPlaceTest().testInPlace();
+    }
+
+    @Test
+    public void testInPlace() throws IOException {
+        final Map<String, byte[]> plainClasses = new LinkedHashMap<>();
+        for (int i = 0; i < PLAIN_CLASSES; i++) {
+            final String name = "org/jcoro/inplace/Plain" + i;
+            plainClasses.put(name, generateClass(name));
+        }
+        final String asyncName = "org/jcoro/inplace/Fixture";
+        final byte[] async = generateFixture(asyncName);
+
+        final File dir = Files.createTempDirectory("jcoro-in-place").toFile();
+        try {
+            for (Map.Entry<String, byte[]> plainClass : plainClasses.entrySet()) {
+                writeClass(dir, plainClass.getKey(), plainClass.getValue());
+            }
+            writeClass(dir, asyncName, async);
+
+            Program.main(new String[]{"--source", dir.getPath(), "--dest", dir.getPath()});
+
+            for (Map.Entry<String, byte[]> plainClass : plainClasses.entrySet()) {
+                final File file = classFile(dir, plainClass.getKey());
+                Assert.assertTrue("Class file is lost: " + file, file.isFile());
+                Assert.assertArrayEquals(plainClass.getValue(), Files.readAllBytes(file.toPath()));
+            }
+            final File asyncFile = classFile(dir, asyncName);
+            Assert.assertTrue("Class file is lost: " + asyncFile, asyncFile.isFile());
+            Assert.assertFalse("Class is not instrumented",
+                    Arrays.equals(async, Files.readAllBytes(asyncFile.toPath())));
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    /**
+     * Generates class with async method:
+     * @Async(@Await("yield")) public static void run() { Coro.get().yield(); }
+     */
+    private static byte[] generateFixture(String name) {
+        final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, "java/lang/Object", null);
+        final MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "run", "()V", null, null);
+        final AnnotationVisitor async = mv.visitAnnotation("Lorg/jcoro/Async;", true);
+        final AnnotationVisitor awaits = async.visitArray("value");
+        final AnnotationVisitor await = awaits.visitAnnotation(null, "Lorg/jcoro/Await;");
+        await.visit("value", "yield");
+        await.visitEnd();
+        awaits.visitEnd();
+        async.visitEnd();
+        mv.visitCode();
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "get", "()Lorg/jcoro/Coro;", false);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "org/jcoro/Coro", "yield", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static byte[] generateClass(String name) {
+        final ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, "java/lang/Object", null);
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static File classFile(File dir, String name) {
+        return new File(dir, name + ".class");
+    }
+
+    private static void writeClass(File dir, String name, byte[] data) throws IOException {
+        final File file = classFile(dir, name);
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), data);
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,25 @@
+package org.jcoro.tests;
+
+import org.jcoro.Continuation;
+
+/**
+ * Detects mode, in which test classes are instrumented (some tests check details of saved state).
+ *
+ * @author elwood
+ */
+final class InstrumentationMode {
+    private InstrumentationMode() {
+    }
+
+    /**
+     * Returns true if classes are instrumented in continuations mode: the first frame class
+     * of specified instrumented class extends Continuation.
+     */
+    static boolean isContinuations(Class<?> instrumentedClass) {
+        try {
+            return Continuation.class.isAssignableFrom(Class.forName(instrumentedClass.getName() + "$$Frame0"));
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
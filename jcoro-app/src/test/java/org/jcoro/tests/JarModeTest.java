@@ -0,0 +1,127 @@
+package org.jcoro.tests;
+
+import org.jcoro.Program;
+import org.junit.Assert;
+import org.junit.Test;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Checks instrumenting of multi-release jar (--source-jar): module descriptor, versioned classes
+ * (META-INF/versions/N/...) and classes of versions not supported by ASM are copied as is,
+ * other classes are instrumented.
+ *
+ * @author elwood
+ */
+public class JarModeTest {
+    // Java 9 class file version (ASM 5 supports versions up to Java 8)
+    private static final int V9 = Opcodes.V1_8 + 1;
+
+    private static final String FIXTURE = "org/jcoro/jartest/Fixture.class";
+    private static final String VERSIONED_FIXTURE = "META-INF/versions/9/" + FIXTURE;
+    private static final String NEWER = "org/jcoro/jartest/Newer.class";
+    private static final String MODULE_INFO = "module-info.class";
+
+    public static void main(String[] args) throws Exception {
+        new JarModeTest().testMultiReleaseJar();
+    }
+
+    @Test
+    public void testMultiReleaseJar() throws IOException {
+        final byte[] fixture = generateFixture("org/jcoro/jartest/Fixture", Opcodes.V1_8);
+        final byte[] versionedFixture = generateFixture("org/jcoro/jartest/Fixture", V9);
+        final byte[] newer = generateFixture("org/jcoro/jartest/Newer", V9);
+        final byte[] moduleInfo = generateClass("module-info", V9);
+
+        final File dir = Files.createTempDirectory("jcoro-jar").toFile();
+        final File sourceJar = new File(dir, "source.jar");
+        final File destJar = new File(dir, "dest.jar");
+        try {
+            try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(sourceJar))) {
+                putEntry(out, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\nMulti-Release: true\n".getBytes("UTF-8"));
+                putEntry(out, MODULE_INFO, moduleInfo);
+                putEntry(out, FIXTURE, fixture);
+                putEntry(out, VERSIONED_FIXTURE, versionedFixture);
+                putEntry(out, NEWER, newer);
+            }
+            Program.main(new String[]{"--source-jar", sourceJar.getPath(), "--dest-jar", destJar.getPath()});
+
+            Assert.assertTrue("Jar is not written", destJar.isFile());
+            try (ZipFile result = new ZipFile(destJar)) {
+                Assert.assertFalse("Base class is not instrumented", Arrays.equals(fixture, readEntry(result, FIXTURE)));
+                Assert.assertArrayEquals(versionedFixture, readEntry(result, VERSIONED_FIXTURE));
+                Assert.assertArrayEquals(newer, readEntry(result, NEWER));
+                Assert.assertArrayEquals(moduleInfo, readEntry(result, MODULE_INFO));
+            }
+        } finally {
+            sourceJar.delete();
+            destJar.delete();
+            dir.delete();
+        }
+    }
+
+    /**
+     * Generates class with async method:
+     * @Async(@Await("yield")) public static void run() { Coro.get().yield(); }
+     */
+    private static byte[] generateFixture(String name, int version) {
+        final ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(version, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, "java/lang/Object", null);
+        final MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "run", "()V", null, null);
+        final AnnotationVisitor async = mv.visitAnnotation("Lorg/jcoro/Async;", true);
+        final AnnotationVisitor awaits = async.visitArray("value");
+        final AnnotationVisitor await = awaits.visitAnnotation(null, "Lorg/jcoro/Await;");
+        await.visit("value", "yield");
+        await.visitEnd();
+        awaits.visitEnd();
+        async.visitEnd();
+        mv.visitCode();
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jcoro/Coro", "get", "()Lorg/jcoro/Coro;", false);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "org/jcoro/Coro", "yield", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static byte[] generateClass(String name, int version) {
+        final ClassWriter cw = new ClassWriter(0);
+        cw.visit(version, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void putEntry(ZipOutputStream out, String name, byte[] data) throws IOException {
+        out.putNextEntry(new ZipEntry(name));
+        out.write(data);
+        out.closeEntry();
+    }
+
+    private static byte[] readEntry(ZipFile zipFile, String name) throws IOException {
+        final ZipEntry entry = zipFile.getEntry(name);
+        Assert.assertNotNull("Entry not found: " + name, entry);
+        try (InputStream in = zipFile.getInputStream(entry)) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.jcoro.tests;
+
+import org.jcoro.Async;
+import org.jcoro.Await;
+import org.jcoro.Coro;
+import org.jcoro.ICoroRunnable;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Dead locals are not saved at restore points. Checks that locals which are still needed
+ * (in following loop iterations or in exception handlers) are restored correctly.
+ *
+ * @author elwood
+ */
+public class LiveLocalsTest {
+    public static void main(String[] args) {
+        new LiveLocalsTest().testLoop();
+        new LiveLocalsTest().testHandler();
+    }
+
+    @Test
+    public void testLoop() {
+        final long[] result = new long[1];
+        final Coro coro = Coro.initSuspended(new ICoroRunnable() {
+            @Override
+            @Async(@Await("yield"))
+            public void run() {
+                final Coro c = Coro.get();
+                long sum = 0;
+                for (int i = 0; i < 10; i++) {
+                    String temp = "value" + i; // Dead after yield
+                    sum += temp.length();
+                    c.yield();
+                    sum += i;
+                }
+                result[0] = sum;
+            }
+        });
+        coro.start();
+        for (int i = 0; i < 10; i++) {
+            coro.resume();
+        }
+        Assert.assertEquals(10 * 6 + 45, result[0]);
+    }
+
+    @Test
+    public void testHandler() {
+        final String[] result = new String[1];
+        final Coro coro = Coro.initSuspended(new ICoroRunnable() {
+            @Override
+            @Async(@Await("yield"))
+            public void run() {
+                final Coro c = Coro.get();
+                String usedInHandler = "handled";
+                try {
+                    c.yield();
+                    throw new IllegalStateException();
+                } catch (IllegalStateException e) {
+                    result[0] = usedInHandler;
+                }
+            }
+        });
+        coro.start();
+        Assert.assertNull(result[0]);
+        coro.resume();
+        Assert.assertEquals("handled", result[0]);
+    }
+}
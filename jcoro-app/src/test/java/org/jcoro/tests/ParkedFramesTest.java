@@ -0,0 +1,139 @@
+package org.jcoro.tests;
+
+import org.jcoro.Async;
+import org.jcoro.Await;
+import org.jcoro.Continuation;
+import org.jcoro.Coro;
+import org.jcoro.ICoroRunnable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Handler loop at depth 30 (called through unpatchable code, so all frames below it are called again
+ * on each resume) performs 1000 reads. In continuations mode frames, which are called again but don't run
+ * until the next yield, are not saved again: only frames of handler and read() are saved on each read.
+ *
+ * @author elwood
+ */
+public class ParkedFramesTest {
+    public static void main(String[] args) throws Exception {
+        new ParkedFramesTest().testHandlerLoop();
+        new ParkedFramesTest().testCaughtException();
+    }
+
+    private static final int DEPTH = 30;
+    private static final int READS = 1000;
+
+    private static class Connection {
+        private int reads;
+        private long sum;
+        private boolean closed;
+
+        @Async(@Await("yield"))
+        int read() {
+            Coro.get().yield();
+            return ++reads;
+        }
+
+        @Async(@Await("read"))
+        void handle() {
+            for (int i = 0; i < READS; i++) {
+                sum += read();
+            }
+        }
+
+        @Async({@Await("descend"), @Await("handle")})
+        void descend(int depth) {
+            if (depth == 0) {
+                handle();
+                return;
+            }
+            descend(depth - 1);
+        }
+
+        @Async(@Await("yield"))
+        void fail(int n) {
+            Coro.get().yield();
+            throw new IllegalStateException("read " + n);
+        }
+
+        // Catches exception of callee, so it isn't parked in the call anymore and should save new frame
+        @Async(@Await("fail"))
+        void retry(StringBuilder sb) {
+            for (int i = 0; i < 3; i++) {
+                try {
+                    fail(i);
+                } catch (IllegalStateException e) {
+                    sb.append(e.getMessage()).append(';');
+                }
+            }
+        }
+
+        public void serve() {
+            // Not instrumented: calls instrumented method from unpatchable code
+            descend(DEPTH);
+            closed = true;
+        }
+    }
+
+    @Test
+    public void testHandlerLoop() throws Exception {
+        final Connection connection = new Connection();
+        final Coro coro = Coro.initSuspended(new ICoroRunnable() {
+            @Override
+            @Async(@Await(value = "serve", patchable = false))
+            public void run() {
+                connection.serve();
+            }
+        });
+        coro.start();
+        final boolean continuations = InstrumentationMode.isContinuations(Connection.class);
+        final Field continuationsField = Coro.class.getDeclaredField("continuations");
+        continuationsField.setAccessible(true);
+        final Set<Continuation> saved = Collections.newSetFromMap(new IdentityHashMap<>());
+        int savedFrames = 0;
+        for (int i = 0; i < READS; i++) {
+            Assert.assertEquals(i, connection.reads);
+            if (continuations) {
+                for (Continuation frame : (Continuation[]) continuationsField.get(coro)) {
+                    if (frame != null && saved.add(frame)) savedFrames++;
+                }
+            }
+            coro.resume();
+        }
+        Assert.assertTrue(connection.closed);
+        Assert.assertEquals(READS * (READS + 1) / 2, connection.sum);
+        if (continuations) {
+            // The first yield saves all frames, after that only handle() and read() are saved on each read
+            // (instead of DEPTH + 4 frames)
+            Assert.assertEquals(DEPTH + 4 + 2 * (READS - 1), savedFrames);
+        }
+    }
+
+    @Test
+    public void testCaughtException() {
+        final Connection connection = new Connection();
+        final StringBuilder sb = new StringBuilder();
+        final Coro coro = Coro.initSuspended(new ICoroRunnable() {
+            @Override
+            @Async(@Await(value = "retryUnpatchable", patchable = false))
+            public void run() {
+                retryUnpatchable();
+            }
+
+            public void retryUnpatchable() {
+                connection.retry(sb);
+            }
+        });
+        coro.start();
+        for (int i = 0; i < 3; i++) {
+            coro.resume();
+        }
+        Assert.assertEquals("read 0;read 1;read 2;", sb.toString());
+    }
+}
@@ -2,13 +2,13 @@ package org.jcoro.tests;
 
 import org.jcoro.Async;
 import org.jcoro.Await;
+import org.jcoro.Continuation;
 import org.jcoro.Coro;
 import org.jcoro.ICoroRunnable;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.lang.reflect.Field;
-import java.util.Stack;
 
 /**
  * @author elwood
@@ -20,7 +20,7 @@ public class PreciseMethodNameTest {
 
     @Test
     public void test() {
-        Coro coro = Coro.initSuspended(new ICoroRunnable() {
+        final ICoroRunnable runnable = new ICoroRunnable() {
             @Async({@Await(value = "bar", desc = "", owner = "org/jcoro/tests/PreciseMethodNameTest$Moo")})
             public void run() {
                 Foo foo = new Foo();
@@ -28,21 +28,31 @@ public class PreciseMethodNameTest {
                 Moo moo = new Moo();
                 moo.bar();
             }
-        });
+        };
+        Coro coro = Coro.initSuspended(runnable);
         coro.start();
 
         // If foo.bar() will be instrumented, state after yielded moo.bar() will be 1
         // So we should check that state is equal to 0
-        final Field statesStackField;
-        final Stack statesStack;
+        final int state;
         try {
-            statesStackField = Coro.class.getDeclaredField("statesStack");
-            statesStackField.setAccessible(true);
-            statesStack = (Stack) statesStackField.get(coro);
+            if (InstrumentationMode.isContinuations(runnable.getClass())) {
+                // Frame of run() is the outermost one
+                final Field continuationsField = Coro.class.getDeclaredField("continuations");
+                continuationsField.setAccessible(true);
+                state = ((Continuation[]) continuationsField.get(coro))[0].state;
+            } else {
+                final Field statesStackField = Coro.class.getDeclaredField("statesStack");
+                statesStackField.setAccessible(true);
+                final int[] statesStack = (int[]) statesStackField.get(coro);
+                final Field statesStackSizeField = Coro.class.getDeclaredField("statesStackSize");
+                statesStackSizeField.setAccessible(true);
+                state = statesStack[statesStackSizeField.getInt(coro) - 1];
+            }
         } catch (NoSuchFieldException | IllegalAccessException e) {
             throw new RuntimeException(e);
         }
-        Assert.assertTrue((Integer) statesStack.peek() == 0);
+        Assert.assertTrue(state == 0);
         coro.resume();
     }
 
@@ -0,0 +1,170 @@
+package org.jcoro.tests;
+
+import org.jcoro.Async;
+import org.jcoro.Await;
+import org.jcoro.Coro;
+import org.jcoro.ICoroRunnable;
+import org.jcoro.MethodReport;
+import org.junit.Assert;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+
+/**
+ * This test is run on classes instrumented with --split-huge-methods and low --huge-method-limit
+ * (see splitMethodTest in build.gradle), so straight-line code between restore points of large methods
+ * is moved into synthetic helpers (and restore points are moved into async helpers if method is still
+ * too large). Checks that locals passed to helpers and returned from them are saved and restored correctly,
+ * and that instrumented methods are not larger than the limit.
+ *
+ * @author elwood
+ */
+public class SplitMethodTest {
+    // --huge-method-limit of splitMethodTest (see build.gradle)
+    private static final int SPLIT_METHODS_LIMIT = 500;
+
+    public static void main(String[] args) throws IOException {
+        new SplitMethodTest().testSplit();
+    }
+
+    // The same computation, as is done by each block of coroutine
+    private static long step(long sum, int k) {
+        long a = sum * 31 + k;
+        a ^= a >>> 13;
+        a *= 0x5bd1e995L;
+        a ^= a >>> 15;
+        final String s = Long.toHexString(a);
+        int digits = 0;
+        digits += s.length();
+        digits += (int) (a & 0xff);
+        return sum + digits + a % 1000;
+    }
+
+    @Test
+    public void testSplit() throws IOException {
+        final StringBuilder trace = new StringBuilder();
+        final long[] result = new long[1];
+        final ICoroRunnable runnable = new ICoroRunnable() {
+            @Override
+            @Async(@Await("yield"))
+            public void run() {
+                final Coro c = Coro.get();
+                long sum = 1;
+                double ratio = 0.5;
+                {
+                    long a = sum * 31 + 1;
+                    a ^= a >>> 13;
+                    a *= 0x5bd1e995L;
+                    a ^= a >>> 15;
+                    final String s = Long.toHexString(a);
+                    int digits = 0;
+                    digits += s.length();
+                    digits += (int) (a & 0xff);
+                    sum += digits + a % 1000;
+                }
+                c.yield();
+                trace.append(sum % 10);
+                {
+                    long a = sum * 31 + 2;
+                    a ^= a >>> 13;
+                    a *= 0x5bd1e995L;
+                    a ^= a >>> 15;
+                    final String s = Long.toHexString(a);
+                    int digits = 0;
+                    digits += s.length();
+                    digits += (int) (a & 0xff);
+                    sum += digits + a % 1000;
+                }
+                c.yield();
+                trace.append(sum % 10);
+                {
+                    long a = sum * 31 + 3;
+                    a ^= a >>> 13;
+                    a *= 0x5bd1e995L;
+                    a ^= a >>> 15;
+                    final String s = Long.toHexString(a);
+                    int digits = 0;
+                    digits += s.length();
+                    digits += (int) (a & 0xff);
+                    sum += digits + a % 1000;
+                }
+                c.yield();
+                trace.append(sum % 10);
+                {
+                    // Double input, which is live across restore points
+                    long a = sum * 31 + (long) (ratio * 8);
+                    a ^= a >>> 13;
+                    a *= 0x5bd1e995L;
+                    a ^= a >>> 15;
+                    final String s = Long.toHexString(a);
+                    int digits = 0;
+                    digits += s.length();
+                    digits += (int) (a & 0xff);
+                    sum += digits + a % 1000;
+                }
+                c.yield();
+                trace.append(sum % 10);
+                {
+                    long a = sum * 31 + 5;
+                    a ^= a >>> 13;
+                    a *= 0x5bd1e995L;
+                    a ^= a >>> 15;
+                    final String s = Long.toHexString(a);
+                    int digits = 0;
+                    digits += s.length();
+                    digits += (int) (a & 0xff);
+                    sum += digits + a % 1000;
+                }
+                c.yield();
+                trace.append(sum % 10);
+                result[0] = sum;
+            }
+        };
+        final Coro coro = Coro.initSuspended(runnable);
+        coro.start();
+        for (int i = 0; i < 5; i++) {
+            coro.resume();
+        }
+
+        long expected = 1;
+        final StringBuilder expectedTrace = new StringBuilder();
+        for (int k = 1; k <= 5; k++) {
+            expected = step(expected, k);
+            expectedTrace.append(expected % 10);
+        }
+        Assert.assertEquals(expected, result[0]);
+        Assert.assertEquals(expectedTrace.toString(), trace.toString());
+
+        boolean hasHelpers = false;
+        for (Method method : runnable.getClass().getDeclaredMethods()) {
+            if (method.getName().startsWith("run$$split")) {
+                Assert.assertTrue(method.isSynthetic());
+                Assert.assertTrue(Modifier.isStatic(method.getModifiers()));
+                hasHelpers = true;
+            }
+        }
+        Assert.assertTrue("Method is not split", hasHelpers);
+
+        // Class file on classpath is the instrumented one, unless class is instrumented at load time by agent
+        // (then it's the original class without helpers)
+        final Map<String, Integer> codeSizes = readCodeSizes(runnable.getClass());
+        if (codeSizes.keySet().stream().anyMatch(method -> method.startsWith("run$$split"))) {
+            for (Map.Entry<String, Integer> entry : codeSizes.entrySet()) {
+                Assert.assertTrue(entry.getKey() + " is " + entry.getValue() + " bytes",
+                        entry.getValue() <= SPLIT_METHODS_LIMIT);
+            }
+        }
+    }
+
+    private static Map<String, Integer> readCodeSizes(Class<?> clazz) throws IOException {
+        final String resource = clazz.getName().substring(clazz.getName().lastIndexOf('.') + 1) + ".class";
+        try (InputStream in = clazz.getResourceAsStream(resource)) {
+            return MethodReport.codeSizes(new ClassReader(in));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.jcoro.tests;
+
+import org.jcoro.Async;
+import org.jcoro.Await;
+import org.jcoro.Coro;
+import org.jcoro.ICoroRunnable;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that operands lying on the stack under the arguments of restore point call
+ * are saved and restored in correct order.
+ *
+ * @author elwood
+ */
+public class StackBottomTest {
+    public static void main(String[] args) {
+        new StackBottomTest().test();
+    }
+
+    @Test
+    public void test() {
+        final long[] longs = new long[2];
+        final String[] strings = new String[1];
+        Coro coro = Coro.initSuspended(new ICoroRunnable() {
+            @Override
+            @Async({@Await("foo"), @Await("bar")})
+            public void run() {
+                // Stack bottom: [longs, 1, 100L]
+                longs[1] = 100L + foo(5);
+                // Stack bottom: [strings, 0, StringBuilder]
+                strings[0] = "a" + bar("b") + "c";
+            }
+
+            @Async(@Await("yield"))
+            private long foo(int x) {
+                Coro.get().yield();
+                return x;
+            }
+
+            @Async(@Await("yield"))
+            private String bar(String s) {
+                Coro.get().yield();
+                return s;
+            }
+        });
+        coro.start();
+        coro.resume();
+        Assert.assertEquals(105L, longs[1]);
+        coro.resume();
+        Assert.assertEquals("abc", strings[0]);
+    }
+}
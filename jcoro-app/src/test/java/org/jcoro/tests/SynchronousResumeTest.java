@@ -0,0 +1,58 @@
+package org.jcoro.tests;
+
+import org.jcoro.Async;
+import org.jcoro.Await;
+import org.jcoro.Coro;
+import org.jcoro.ICoroRunnable;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Emulates asynchronous operations which are completed synchronously (in the deferFunc),
+ * so completion handler calls resume() while the coro's resume() is still on the stack.
+ * Stack depth should not grow with count of such operations.
+ *
+ * @author elwood
+ */
+public class SynchronousResumeTest {
+    private static final int OPERATIONS = 1000000;
+    private static final int SAMPLE_EACH = 10000;
+
+    public static void main(String[] args) {
+        new SynchronousResumeTest().test();
+    }
+
+    @Test
+    public void test() {
+        final int[] minDepth = {Integer.MAX_VALUE};
+        final int[] maxDepth = {0};
+        final int[] completed = {0};
+        final Coro coro = Coro.initSuspended(new ICoroRunnable() {
+            @Override
+            @Async(@Await("yield"))
+            public void run() {
+                final Coro c = Coro.get();
+                for (int i = 0; i < OPERATIONS; i++) {
+                    // Sampled after resuming (the first iteration is executed by start())
+                    if (i % SAMPLE_EACH == 1) {
+                        final int depth = Thread.currentThread().getStackTrace().length;
+                        minDepth[0] = Math.min(minDepth[0], depth);
+                        maxDepth[0] = Math.max(maxDepth[0], depth);
+                    }
+                    // Completion handler is called immediately in the same thread
+                    c.yield(c::resume);
+                    completed[0]++;
+                }
+            }
+        });
+        coro.setTrampolineResume(true);
+        final long start = System.nanoTime();
+        coro.start();
+        final long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%d synchronous completions: %d ms, stack depth: %d..%d",
+                OPERATIONS, elapsed / 1000000, minDepth[0], maxDepth[0]));
+
+        Assert.assertEquals(OPERATIONS, completed[0]);
+        Assert.assertEquals(minDepth[0], maxDepth[0]);
+    }
+}
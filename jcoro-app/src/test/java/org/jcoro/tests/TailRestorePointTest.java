@@ -0,0 +1,129 @@
+package org.jcoro.tests;
+
+import org.jcoro.Async;
+import org.jcoro.Await;
+import org.jcoro.Coro;
+import org.jcoro.ICoroRunnable;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Restore points, result of which is returned right after the call (thin async wrappers), save only
+ * state and "this". Checks that such wrappers are resumed correctly and return results of wrapped calls.
+ *
+ * @author elwood
+ */
+public class TailRestorePointTest {
+    public static void main(String[] args) {
+        new TailRestorePointTest().testWrappers();
+        new TailRestorePointTest().testLoop();
+    }
+
+    private static class Source {
+        private final String prefix;
+
+        Source(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Async(@Await("yield"))
+        public String read(int n) {
+            final String result = prefix + n;
+            Coro.get().yield();
+            return result;
+        }
+
+        // Tail call of instance method with dead locals
+        @Async(@Await("read"))
+        public String readWrapper(int n) {
+            final int doubled = n * 2;
+            return read(doubled);
+        }
+
+        @Async(@Await("read"))
+        public static String readStatic(Source source, int n) {
+            return source.read(n);
+        }
+
+        @Async(@Await("readWrapper"))
+        public String readTwice(int n) {
+            // Not a tail call: result is used after the call
+            final String first = readWrapper(n);
+            return first + "," + readWrapper(n + 1);
+        }
+
+        @Async(@Await("yield"))
+        public long count(long n) {
+            Coro.get().yield();
+            return n + 1;
+        }
+
+        @Async(@Await("count"))
+        public long countWrapper(long n, double unused) {
+            return count(n);
+        }
+
+        @Async(@Await("yield"))
+        public void step(StringBuilder sb) {
+            Coro.get().yield();
+            sb.append("step;");
+        }
+
+        @Async(@Await("step"))
+        public void stepWrapper(StringBuilder sb) {
+            step(sb);
+        }
+    }
+
+    @Test
+    public void testWrappers() {
+        final Object[] results = new Object[5];
+        final StringBuilder sb = new StringBuilder();
+        final Coro coro = Coro.initSuspended(new ICoroRunnable() {
+            @Override
+            @Async({@Await("readWrapper"), @Await("readStatic"), @Await("readTwice"),
+                    @Await("countWrapper"), @Await("stepWrapper")})
+            public void run() {
+                final Source source = new Source("v");
+                results[0] = source.readWrapper(1);
+                results[1] = Source.readStatic(source, 3);
+                results[2] = source.readTwice(5);
+                results[3] = source.countWrapper(41, 0.5);
+                source.stepWrapper(sb);
+                results[4] = "done";
+            }
+        });
+        coro.start();
+        int resumes = 0;
+        while (results[4] == null) {
+            Assert.assertTrue(resumes++ < 10);
+            coro.resume();
+        }
+        Assert.assertEquals(6, resumes);
+        Assert.assertEquals("v2", results[0]);
+        Assert.assertEquals("v3", results[1]);
+        Assert.assertEquals("v10,v12", results[2]);
+        Assert.assertEquals(42L, results[3]);
+        Assert.assertEquals("step;", sb.toString());
+    }
+
+    @Test
+    public void testLoop() {
+        final StringBuilder sb = new StringBuilder();
+        final Coro coro = Coro.initSuspended(new ICoroRunnable() {
+            @Override
+            @Async(@Await("readWrapper"))
+            public void run() {
+                final Source source = new Source("i");
+                for (int i = 0; i < 3; i++) {
+                    sb.append(source.readWrapper(i));
+                }
+            }
+        });
+        coro.start();
+        for (int i = 0; i < 3; i++) {
+            coro.resume();
+        }
+        Assert.assertEquals("i0i2i4", sb.toString());
+    }
+}